@@ -6,32 +6,44 @@ import java.io.File;
 
 /** Represents a gitlet blob object.
  *
- * This class represents a blob object in gitlet. It contains the content of the
- * file that is being tracked by gitlet. It also contains a unique id that is
- * generated based on the content of the file.
+ * This class represents a blob object in gitlet. It refers to the file that
+ * is being tracked by gitlet and contains a unique id that is generated based
+ * on the content of the file. The content itself is never held in memory: it
+ * is hashed and stored by streaming it from the file, so files of any size
+ * can be tracked.
  *
  * @author Kunhua Huang
  */
 public class Blob implements Serializable, Dumpable {
-    private final byte[] contentBytes;
     private final String id;
+    private final transient File source;
 
     /** Constructor for the blob object.
      *
      * @param filePath the path of the file that is being tracked
      */
     public Blob(File filePath) {
-        contentBytes = Utils.readContents(filePath);
-        id = Utils.sha1((Object) contentBytes);
+        source = filePath;
+        id = Utils.sha1(filePath);
     }
 
-    /** getContentBytes
-     * Returns the content of the file that is being tracked.
+    /** Constructor for a blob whose id is already known.
      *
-     * @return the content of the file that is being tracked
+     * @param filePath the path of the file that is being tracked
+     * @param id the id of the file's contents
+     */
+    Blob(File filePath, String id) {
+        this.source = filePath;
+        this.id = id;
+    }
+
+    /** getSource
+     * Returns the file the contents of this blob are read from.
+     *
+     * @return the file that is being tracked
      */
-    public byte[] getContentBytes() {
-        return contentBytes;
+    public File getSource() {
+        return source;
     }
 
     /** getId
@@ -0,0 +1,427 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static gitlet.Utils.*;
+
+/** Changed-path Bloom filters: for each commit, a Bloom filter of the
+ *  paths it changed from its first parent, kept next to the commit graph.
+ *
+ *  A filter answers "did this commit change PATH?" with either "no", which
+ *  is certain, or "maybe", so a path-limited log reads only the commits
+ *  whose filter says maybe and passes over every other one by its id
+ *  alone. Each changed file is entered together with every directory
+ *  above it, so a directory can be asked about too. A filter takes
+ *  BITS_PER_PATH bits per path and sets HASHES bits for each, which keeps
+ *  false maybes to about one in a hundred. Each of the bits comes from a
+ *  hash of its own: the usual h1 + k * h2 allows so few patterns in a
+ *  filter of a few bytes that some pairs of paths would collide in every
+ *  commit. A commit that changed more than MAX_PATHS paths gets a one-byte filter with every bit set, which says
+ *  maybe to everything, and one that changed nothing gets an empty filter.
+ *
+ *  The file is laid out as
+ *
+ *      MAGIC VERSION COUNT IDS[COUNT] ENDS[COUNT] FILTERS { ID LENGTH FILTER }*
+ *
+ *  with the raw 20-byte commit ids in ascending order, the 4-byte offset
+ *  in FILTERS at which the filter of each commit ends, and the filters
+ *  themselves, each starting where the one before it ends. That sorted
+ *  part is mapped and searched in place. New commits are appended after
+ *  it as a tail of records in no order, each a commit id, the 4-byte
+ *  length of its filter and the filter, so that writing a commit costs
+ *  only its own filter; the tail is looked up through a small in-memory
+ *  map, and merged into the sorted part once it holds more than an eighth
+ *  as many commits, and whenever the filters are rebuilt. A record cut
+ *  short by an interrupted append is ignored and written over. Like the
+ *  commit graph, the filters only repeat what the commits already say,
+ *  so they are rebuilt from the object store whenever the file is missing
+ *  or damaged.
+ *
+ *  @author Kunhua Huang
+ */
+class ChangedPathFilters {
+
+    /** "CPTH" */
+    private static final int MAGIC = 0x43505448;
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 12;
+    private static final int ID_BYTES = UID_LENGTH / 2;
+    private static final int BITS_PER_PATH = 10;
+    private static final int HASHES = 7;
+    private static final int MAX_PATHS = 512;
+    /** The tail is never merged while it holds fewer commits. */
+    private static final int MIN_MERGE = 64;
+
+    private final File file;
+    private final ObjectStore store;
+    /** The mapped file, or null until first loaded. */
+    private ByteBuffer buf;
+    /** The number of commits in the sorted part. */
+    private int count;
+    /** Where the filter of each commit in the tail starts in the file. */
+    private Map<ObjectId, Integer> tail;
+    /** The length of the file up to the end of its last whole record. */
+    private int validLength;
+    /** The stamp of the file when it was last read or written. */
+    private FileStamp stamp;
+
+    /** Constructor for the filters in FILE, covering the commits in STORE.
+     *
+     * @param file the filter file
+     * @param store the object store the commits live in
+     */
+    ChangedPathFilters(File file, ObjectStore store) {
+        this.file = file;
+        this.store = store;
+    }
+
+    /** mayHaveChanged
+     * Checks if a commit may have changed the file or directory at PATH
+     * from its first parent. False is certain; true is certain only for a
+     * commit with no filter.
+     *
+     * @param commitId the full id of the commit
+     * @param path the path, without a trailing '/'
+     * @return false if the commit did not change PATH
+     */
+    boolean mayHaveChanged(String commitId, String path) {
+        load();
+        int i = find(commitId);
+        int start;
+        int bits;
+        if (i >= 0) {
+            start = dataOffset() + (i == 0 ? 0 : endAt(i - 1));
+            bits = (dataOffset() + endAt(i) - start) * 8;
+        } else {
+            Integer tailStart = ObjectId.isId(commitId)
+                    ? tail.get(ObjectId.fromHex(commitId)) : null;
+            if (tailStart == null) {
+                return true;
+            }
+            start = tailStart;
+            bits = buf.getInt(start - 4) * 8;
+        }
+        if (bits == 0) {
+            return false;
+        }
+        long hash = hash(path);
+        for (int k = 0; k < HASHES; k += 1) {
+            int bit = bitOf(hash, k, bits);
+            if ((buf.get(start + bit / 8) & (1 << (bit % 8))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** add
+     * Appends the filters of the given commits that are new to the tail of
+     * the file, or merges the tail into the sorted part if it has grown
+     * long enough. The first parent of each must be in the store.
+     *
+     * @param commits the commits that were just stored
+     */
+    void add(Collection<Commit> commits) {
+        load();
+        SortedMap<String, byte[]> filters = new TreeMap<>();
+        for (Commit commit : commits) {
+            if (find(commit.getId()) < 0
+                    && !tail.containsKey(ObjectId.fromHex(commit.getId()))) {
+                filters.put(commit.getId(), filterOf(commit));
+            }
+        }
+        if (filters.isEmpty()) {
+            return;
+        }
+        if (tail.size() + filters.size() > Math.max(MIN_MERGE, count / 8)) {
+            for (int i = 0; i < count; i += 1) {
+                filters.put(idAt(i), filterAt(i));
+            }
+            for (Map.Entry<ObjectId, Integer> entry : tail.entrySet()) {
+                int start = entry.getValue();
+                byte[] filter = new byte[buf.getInt(start - 4)];
+                ((ByteBuffer) buf.duplicate().position(start)).get(filter);
+                filters.put(entry.getKey().toString(), filter);
+            }
+            save(filters);
+        } else {
+            append(filters);
+        }
+    }
+
+    /** rebuild
+     * Recreates the filters by reading every commit in the store.
+     */
+    void rebuild() {
+        SortedMap<String, byte[]> filters = new TreeMap<>();
+        for (String id : store.list("")) {
+            if (store.typeOf(id).equals(ObjectStore.COMMIT)) {
+                filters.put(id, filterOf(readCommit(id)));
+            }
+        }
+        save(filters);
+    }
+
+    /** filterOf
+     * Builds the filter of the paths COMMIT changed from its first parent.
+     */
+    private byte[] filterOf(Commit commit) {
+        List<String> parents = commit.getParent();
+        Commit parent = parents.isEmpty() ? null : readCommit(parents.get(0));
+        Set<String> files = new HashSet<>();
+        if (commit.getTree() != null && (parent == null || parent.getTree() != null)) {
+            Tree.diff(parent == null ? null : parent.getTree(), commit.getTree(), "",
+                    Tree.reader(store), files);
+        } else {
+            Map<String, String> old = parent == null ? Collections.emptyMap()
+                    : parent.getBlobs();
+            Map<String, String> now = commit.getBlobs();
+            for (String path : old.keySet()) {
+                if (!Objects.equals(old.get(path), now.get(path))) {
+                    files.add(path);
+                }
+            }
+            for (String path : now.keySet()) {
+                if (!old.containsKey(path)) {
+                    files.add(path);
+                }
+            }
+        }
+        Set<String> paths = new HashSet<>();
+        for (String path : files) {
+            for (int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', slash + 1)) {
+                paths.add(path.substring(0, slash));
+            }
+            paths.add(path);
+        }
+        if (paths.size() > MAX_PATHS) {
+            return new byte[] {(byte) 0xff};
+        }
+        byte[] filter = new byte[(paths.size() * BITS_PER_PATH + 7) / 8];
+        for (String path : paths) {
+            long hash = hash(path);
+            for (int k = 0; k < HASHES; k += 1) {
+                int bit = bitOf(hash, k, filter.length * 8);
+                filter[bit / 8] |= (byte) (1 << (bit % 8));
+            }
+        }
+        return filter;
+    }
+
+    /** readCommit
+     * Reads the commit with the given id from the store.
+     */
+    private Commit readCommit(String id) {
+        Commit commit = Commit.fromBytes(store.read(id, ObjectStore.COMMIT));
+        commit.setTreeReader(Tree.reader(store));
+        return commit;
+    }
+
+    /** hash
+     * Returns the 64-bit FNV-1a hash of the UTF-8 bytes of PATH.
+     */
+    private static long hash(String path) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : path.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /** mix
+     * Returns VALUE with its bits mixed by the MurmurHash3 finalizer, so
+     * that every bit of the result depends on every bit of VALUE.
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        return value ^ (value >>> 33);
+    }
+
+    /** bitOf
+     * Returns the bit the Kth hash of a path sets in a filter of BITS
+     * bits, from the path's HASH.
+     */
+    private static int bitOf(long hash, int k, int bits) {
+        return (int) Long.remainderUnsigned(mix(hash + k * 0x9e3779b97f4a7c15L), bits);
+    }
+
+    /** find
+     * Returns the position of the commit with the given full id, or -1.
+     */
+    private int find(String id) {
+        if (!ObjectId.isId(id)) {
+            return -1;
+        }
+        byte[] key = fromHex(id);
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = 0;
+            for (int k = 0; k < ID_BYTES && cmp == 0; k += 1) {
+                cmp = (key[k] & 0xff) - (buf.get(HEADER_LENGTH + mid * ID_BYTES + k) & 0xff);
+            }
+            if (cmp == 0) {
+                return mid;
+            } else if (cmp > 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the id of the commit at position I. */
+    private String idAt(int i) {
+        byte[] raw = new byte[ID_BYTES];
+        ((ByteBuffer) buf.duplicate().position(HEADER_LENGTH + i * ID_BYTES)).get(raw);
+        return toHex(raw, 0, ID_BYTES);
+    }
+
+    /** Returns the offset in FILTERS where the filter at position I ends. */
+    private int endAt(int i) {
+        return buf.getInt(HEADER_LENGTH + count * ID_BYTES + i * 4);
+    }
+
+    /** Returns the offset in the file where FILTERS starts. */
+    private int dataOffset() {
+        return HEADER_LENGTH + count * (ID_BYTES + 4);
+    }
+
+    /** Returns the filter at position I. */
+    private byte[] filterAt(int i) {
+        int start = i == 0 ? 0 : endAt(i - 1);
+        byte[] filter = new byte[endAt(i) - start];
+        ((ByteBuffer) buf.duplicate().position(dataOffset() + start)).get(filter);
+        return filter;
+    }
+
+    /** append
+     * Appends the given filters, by commit id, to the tail of the file,
+     * first dropping a record left partly written by an interrupted
+     * append, and maps the file again.
+     */
+    private void append(SortedMap<String, byte[]> filters) {
+        int length = 0;
+        for (byte[] filter : filters.values()) {
+            length += ID_BYTES + 4 + filter.length;
+        }
+        ByteBuffer records = ByteBuffer.allocate(length);
+        for (Map.Entry<String, byte[]> entry : filters.entrySet()) {
+            records.put(fromHex(entry.getKey())).putInt(entry.getValue().length)
+                    .put(entry.getValue());
+        }
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.getChannel().truncate(validLength);
+            out.write(records.array());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        buf = null;
+        if (!map()) {
+            throw new IllegalArgumentException("cannot read " + file);
+        }
+    }
+
+    /** save
+     * Writes the given filters, by commit id, to the file as its sorted
+     * part, with an empty tail, and maps it.
+     */
+    private void save(SortedMap<String, byte[]> filters) {
+        int length = HEADER_LENGTH + filters.size() * (ID_BYTES + 4);
+        for (byte[] filter : filters.values()) {
+            length += filter.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(length);
+        out.putInt(MAGIC).putInt(VERSION).putInt(filters.size());
+        for (String id : filters.keySet()) {
+            out.put(fromHex(id));
+        }
+        int end = 0;
+        for (byte[] filter : filters.values()) {
+            end += filter.length;
+            out.putInt(end);
+        }
+        for (byte[] filter : filters.values()) {
+            out.put(filter);
+        }
+        Journal.replace(file, out.array());
+        buf = null;
+        if (!map()) {
+            throw new IllegalArgumentException("cannot read " + file);
+        }
+    }
+
+    /** refresh
+     * Forgets the mapped file if another process has changed it since it
+     * was mapped, so that it is mapped again on next use.
+     */
+    void refresh() {
+        if (!FileStamp.matches(stamp, file)) {
+            buf = null;
+        }
+    }
+
+    /** load
+     * Maps the file on first use, rebuilding it if it is missing or
+     * damaged.
+     */
+    private void load() {
+        if (buf == null && !map()) {
+            rebuild();
+        }
+    }
+
+    /** map
+     * Maps the file.
+     *
+     * @return false if the file is missing or damaged
+     */
+    private boolean map() {
+        if (!file.isFile()) {
+            return false;
+        }
+        ByteBuffer mapped = mapContents(file);
+        if (mapped.capacity() < HEADER_LENGTH || mapped.getInt(0) != MAGIC
+                || mapped.getInt(4) != VERSION) {
+            return false;
+        }
+        int n = mapped.getInt(8);
+        long dataStart = HEADER_LENGTH + (long) n * (ID_BYTES + 4);
+        if (n < 0 || dataStart > mapped.capacity()) {
+            return false;
+        }
+        long dataEnd = n == 0 ? dataStart : dataStart + mapped.getInt((int) dataStart - 4);
+        if (dataEnd < dataStart || dataEnd > mapped.capacity()) {
+            return false;
+        }
+        Map<ObjectId, Integer> records = new HashMap<>();
+        byte[] raw = new byte[ID_BYTES];
+        int pos = (int) dataEnd;
+        while (pos + ID_BYTES + 4 <= mapped.capacity()) {
+            int length = mapped.getInt(pos + ID_BYTES);
+            if (length < 0 || pos + ID_BYTES + 4 + (long) length > mapped.capacity()) {
+                break;
+            }
+            ((ByteBuffer) mapped.duplicate().position(pos)).get(raw);
+            records.put(ObjectId.fromRaw(raw, 0), pos + ID_BYTES + 4);
+            pos += ID_BYTES + 4 + length;
+        }
+        buf = mapped;
+        count = n;
+        tail = records;
+        validLength = pos;
+        stamp = new FileStamp(file);
+        return true;
+    }
+}
@@ -0,0 +1,134 @@
+package gitlet;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static gitlet.Utils.*;
+
+/** Moves a working directory from the files of one commit to those of
+ *  another, as checkout and reset do.
+ *
+ *  The two file maps are compared first, and only the paths whose blob
+ *  differs are written. A path whose blob is the same in both is left
+ *  alone if the stat cache shows the working file still holds that blob,
+ *  so switching between two large commits costs about one stat per
+ *  unchanged file. The files that do need writing are streamed out of the
+ *  object store on a pool of at most MAX_THREADS threads.
+ *
+ *  @author Kunhua Huang
+ */
+class CheckoutEngine {
+
+    /** The most files written at once. */
+    private static final int MAX_THREADS = 8;
+
+    private final File workDir;
+    private final ObjectStore store;
+    private final StatCache statCache;
+
+    /** Constructor for an engine that writes files into WORKDIR from
+     *  STORE, keeping STATCACHE up to date.
+     *
+     * @param workDir the working directory
+     * @param store the object store holding every blob to be written
+     * @param statCache the stat cache of the working directory
+     */
+    CheckoutEngine(File workDir, ObjectStore store, StatCache statCache) {
+        this.workDir = workDir;
+        this.store = store;
+        this.statCache = statCache;
+    }
+
+    /** checkout
+     * Makes the working directory hold the files of TARGET instead of
+     * those of CURRENT: writes every file of TARGET that is not already
+     * there with the right contents, and deletes every file of CURRENT
+     * that TARGET does not have, along with the directories that leaves
+     * empty. The deletions come first, so that a file and a directory of
+     * the same name can trade places.
+     *
+     * @param current the file names and blob ids of the current commit
+     * @param target the file names and blob ids of the target commit
+     */
+    void checkout(Map<String, String> current, Map<String, String> target) {
+        for (String fileName : current.keySet()) {
+            if (!target.containsKey(fileName)) {
+                restrictedDelete(workDir, fileName);
+                statCache.forget(fileName);
+            }
+        }
+        write(changedFiles(current, target));
+    }
+
+    /** changedFiles
+     * Returns the files of TARGET that have to be written.
+     *
+     * @param current the file names and blob ids of the current commit
+     * @param target the file names and blob ids of the target commit
+     * @return the file names and blob ids to write
+     */
+    private Map<String, String> changedFiles(Map<String, String> current,
+                                             Map<String, String> target) {
+        Map<String, String> changed = new HashMap<>();
+        for (Map.Entry<String, String> entry : target.entrySet()) {
+            String fileName = entry.getKey();
+            String blobId = entry.getValue();
+            File file = join(workDir, fileName);
+            if (!blobId.equals(current.get(fileName)) || !file.isFile()
+                    || !statCache.idOf(fileName, file).equals(blobId)) {
+                changed.put(fileName, blobId);
+            }
+        }
+        return changed;
+    }
+
+    /** write
+     * Writes the given files, in parallel when there are several.
+     *
+     * @param files the file names and blob ids to write
+     */
+    private void write(Map<String, String> files) {
+        if (files.size() <= 1) {
+            for (Map.Entry<String, String> entry : files.entrySet()) {
+                writeFile(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+        int threads = Math.min(Math.min(MAX_THREADS, files.size()),
+                Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> pending = new ArrayList<>();
+            for (Map.Entry<String, String> entry : files.entrySet()) {
+                pending.add(pool.submit(() -> writeFile(entry.getKey(), entry.getValue())));
+            }
+            for (Future<?> future : pending) {
+                future.get();
+            }
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (ExecutionException excp) {
+            Throwable cause = excp.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause
+                    : new IllegalArgumentException(cause.getMessage());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** writeFile
+     * Writes one file from its blob, creating its directory if need be,
+     * and records its stat data.
+     */
+    private void writeFile(String fileName, String blobId) {
+        File file = join(workDir, fileName);
+        file.getParentFile().mkdirs();
+        copyToFile(store.open(blobId, ObjectStore.BLOB), file);
+        statCache.record(fileName, file, blobId);
+    }
+}
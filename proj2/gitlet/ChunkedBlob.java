@@ -0,0 +1,252 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/** A large blob stored as a list of chunks.
+ *
+ *  The id of a blob is always the SHA-1 of the whole file, but a file of
+ *  at least the chunking threshold is not stored as one object. It is cut
+ *  into chunks of MIN_SIZE to MAX_SIZE bytes, AVERAGE_SIZE on average,
+ *  each stored as a blob of its own, and the blob id holds the list of
+ *  them. The cuts are placed FastCDC-style, where a rolling gear hash of
+ *  the bytes just before has its top bits all zero, so they depend only on
+ *  the contents near them: appending to a file or editing it in one place
+ *  changes only the chunks around the change, and every other chunk is
+ *  already stored, or already at the other end of a fetch or push.
+ *
+ *  The hash is looked at only from MIN_SIZE bytes into a chunk, and is
+ *  held to a stricter mask until AVERAGE_SIZE and a looser one after, so
+ *  that chunk sizes cluster around the average.
+ *
+ *  The list is stored as
+ *
+ *      MAGIC COUNT { LENGTH ID }*
+ *
+ *  with the length of each chunk as a varint and its raw 20-byte id.
+ *
+ *  @author Kunhua Huang
+ */
+final class ChunkedBlob {
+
+    /** "CHNK" */
+    private static final int MAGIC = 0x43484e4b;
+    private static final int ID_BYTES = Utils.UID_LENGTH / 2;
+
+    /** Files smaller than this are stored whole unless told otherwise. */
+    static final long DEFAULT_THRESHOLD = 1 << 20;
+    /** The sizes of chunks. */
+    static final int MIN_SIZE = 16 << 10;
+    static final int AVERAGE_SIZE = 64 << 10;
+    static final int MAX_SIZE = 256 << 10;
+    /** The top bits of the hash that must be zero before and after the
+     *  average size: two more and two fewer than the 16 of the average. */
+    private static final long MASK_SMALL = -1L << (64 - 18);
+    private static final long MASK_LARGE = -1L << (64 - 14);
+    /** The random value each byte adds to the hash. They are fixed, since
+     *  changing them would move every cut. */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6769746c6574L);
+        for (int i = 0; i < GEAR.length; i += 1) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final List<String> chunks;
+    private final List<Long> lengths;
+
+    /** Constructor for the list of the given chunks, which it keeps. */
+    private ChunkedBlob(List<String> chunks, List<Long> lengths) {
+        this.chunks = chunks;
+        this.lengths = lengths;
+    }
+
+    /** getChunks
+     * Returns the ids of the chunks, in order.
+     *
+     * @return the chunk ids
+     */
+    List<String> getChunks() {
+        return chunks;
+    }
+
+    /** size
+     * Returns the length of the whole blob.
+     *
+     * @return the sum of the lengths of the chunks
+     */
+    long size() {
+        long size = 0;
+        for (long length : lengths) {
+            size += length;
+        }
+        return size;
+    }
+
+    /** write
+     * Cuts FILE into chunks and stores each chunk STORE lacks, then the
+     * list of them under BLOBID. The file is read once, through a buffer
+     * of two chunks, and hashed as it is read; if it no longer matches
+     * BLOBID, because it changed since it was hashed, the list is not
+     * stored.
+     *
+     * @param file the file to store
+     * @param blobId the id of the contents of the file
+     * @param store the object store to write to
+     */
+    static void write(File file, String blobId, ObjectStore store) {
+        List<String> chunks = new ArrayList<>();
+        List<Long> lengths = new ArrayList<>();
+        byte[] buf = new byte[2 * MAX_SIZE];
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+        try (InputStream in = new DigestInputStream(Utils.openContents(file), md)) {
+            while (true) {
+                // Keep a whole chunk ahead, so that every cut sees MAX_SIZE bytes
+                if (!eof && end - start < MAX_SIZE) {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    while (end < buf.length) {
+                        int n = in.read(buf, end, buf.length - end);
+                        if (n < 0) {
+                            eof = true;
+                            break;
+                        }
+                        end += n;
+                    }
+                }
+                if (start == end) {
+                    break;
+                }
+                int cut = cut(buf, start, end);
+                byte[] chunk = Arrays.copyOfRange(buf, start, cut);
+                String chunkId = Utils.sha1((Object) chunk);
+                if (!store.contains(chunkId)) {
+                    store.write(ObjectStore.BLOB, chunkId, chunk);
+                }
+                chunks.add(chunkId);
+                lengths.add((long) chunk.length);
+                start = cut;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (!Utils.toHex(md.digest(), 0, ID_BYTES).equals(blobId)) {
+            throw new IllegalArgumentException("the contents of blob " + blobId
+                    + " changed while it was written");
+        }
+        store.write(ObjectStore.CHUNKED, blobId, new ChunkedBlob(chunks, lengths).toBytes());
+    }
+
+    /** cut
+     * Returns where the chunk starting at START ends, given the bytes up
+     * to END.
+     */
+    private static int cut(byte[] buf, int start, int end) {
+        int size = Math.min(end - start, MAX_SIZE);
+        if (size <= MIN_SIZE) {
+            return start + size;
+        }
+        int normal = Math.min(size, AVERAGE_SIZE);
+        long hash = 0;
+        int i = start + MIN_SIZE;
+        for (; i < start + normal; i += 1) {
+            hash = (hash << 1) + GEAR[buf[i] & 0xff];
+            if ((hash & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < start + size; i += 1) {
+            hash = (hash << 1) + GEAR[buf[i] & 0xff];
+            if ((hash & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+        return start + size;
+    }
+
+    /** open
+     * Opens the whole blob as one stream, which opens each chunk of STORE
+     * only when the one before it is used up.
+     *
+     * @param store the object store holding the chunks
+     * @return a stream over the contents of the blob
+     */
+    InputStream open(ObjectStore store) {
+        Iterator<String> next = chunks.iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return next.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                return store.open(next.next(), ObjectStore.BLOB);
+            }
+        });
+    }
+
+    /** toBytes
+     * Returns the stored form of this list.
+     *
+     * @return the encoded list
+     */
+    byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(ByteBuffer.allocate(4).putInt(MAGIC).array(), 0, 4);
+        Delta.writeVarint(out, chunks.size());
+        for (int i = 0; i < chunks.size(); i += 1) {
+            Delta.writeVarint(out, lengths.get(i));
+            out.write(Utils.fromHex(chunks.get(i)), 0, ID_BYTES);
+        }
+        return out.toByteArray();
+    }
+
+    /** fromBytes
+     * Reads a list of chunks from its stored form.
+     *
+     * @param data the stored list
+     * @return the list
+     */
+    static ChunkedBlob fromBytes(byte[] data) {
+        if (data.length < 4 || ByteBuffer.wrap(data).getInt() != MAGIC) {
+            throw new IllegalArgumentException("not a chunk list");
+        }
+        try {
+            int[] pos = {4};
+            int count = (int) Delta.readVarint(data, pos);
+            List<String> chunks = new ArrayList<>();
+            List<Long> lengths = new ArrayList<>();
+            for (int i = 0; i < count; i += 1) {
+                lengths.add(Delta.readVarint(data, pos));
+                if (pos[0] + ID_BYTES > data.length) {
+                    throw new IndexOutOfBoundsException();
+                }
+                chunks.add(Utils.toHex(data, pos[0], ID_BYTES));
+                pos[0] += ID_BYTES;
+            }
+            return new ChunkedBlob(chunks, lengths);
+        } catch (IndexOutOfBoundsException excp) {
+            throw new IllegalArgumentException("truncated chunk list");
+        }
+    }
+}
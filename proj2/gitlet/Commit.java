@@ -1,31 +1,61 @@
 package gitlet;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.function.Function;
 
 /** Represents a gitlet commit object.
  *
  *  This class represents a commit object in gitlet. It contains the message,
- *  timestamp, parent commit id, and the blobs that are tracked by this commit.
- *  It also contains a unique id that is generated based on the message and
- *  timestamp of the commit.
+ *  timestamp, parent commit id, and the ids of the blobs that are tracked by
+ *  this commit. Blob contents are stored separately, so a commit stays small
+ *  no matter how large the tracked files are.
+ *  It also contains a unique id that is generated based on the message,
+ *  timestamp, parents and files of the commit.
+ *
+ *  Commits are stored in a compact binary form,
+ *
+ *      MAGIC VERSION ID TIME MESSAGE PARENTS ID* TREE
+ *
+ *  with raw 20-byte ids, the timestamp in milliseconds since the epoch, and
+ *  every count and string length as a varint. TREE is the id of the Tree
+ *  of the root directory; the files are read from the trees the first time
+ *  they are asked for. Version 1 commits, which list every file as
+ *  FILES { NAME ID }* in place of the tree, and commits written by older
+ *  versions of Gitlet with Java serialization are still read.
  *
  *  @author Kunhua Huang
  */
 public class Commit implements Serializable, Dumpable {
+    /** Pinned so that stored commits stay readable as this class changes. */
+    private static final long serialVersionUID = 1L;
+    /** "CMIT" */
+    private static final int MAGIC = 0x434d4954;
+    private static final int VERSION = 2;
+    /** The version that lists every file instead of naming a tree. */
+    private static final int FLAT_VERSION = 1;
+    private static final int ID_BYTES = Utils.UID_LENGTH / 2;
 
     private final String id;
     private final String message;
     private final Date timestamp;
     private List<String> parents;
-    private final Map<String, Blob> tracked;
+    /** The files by path, or null until read from the trees. */
+    private Map<String, String> tracked;
+    /** The id of the root tree, or null until the commit is stored. */
+    private String tree;
+    /** Reads the trees when the files are first asked for. */
+    private transient Function<String, Tree> treeReader;
 
     /** Constructor for initial commit.
      *
      * @param message The message of the commit.
-     * @param blobs The blobs that are tracked by this commit.
+     * @param blobs The blob ids that are tracked by this commit.
      */
-    public Commit(String message, String parent, Map<String, Blob> blobs) {
+    public Commit(String message, String parent, Map<String, String> blobs) {
         this(message, Collections.singletonList(parent), blobs);
     }
 
@@ -33,9 +63,9 @@ public class Commit implements Serializable, Dumpable {
      *
      * @param message The message of the commit.
      * @param parents The parent commit ids.
-     * @param blobs The blobs that are tracked by this commit.
+     * @param blobs The blob ids that are tracked by this commit.
      */
-    public Commit(String message, List<String> parents, Map<String, Blob> blobs) {
+    public Commit(String message, List<String> parents, Map<String, String> blobs) {
         this.message = message;
         this.parents = new ArrayList<>(parents);
         this.tracked = new HashMap<>();
@@ -44,13 +74,44 @@ public class Commit implements Serializable, Dumpable {
         this.id = generateId();
     }
 
-    /** Generate the unique id for this commit.
+    /** Constructor for an existing commit, used when reading stored
+     *  commits and when rewriting commits from an older repository format.
+     *  The id and timestamp are kept as they were instead of being
+     *  regenerated.
+     *
+     * @param id The id of the commit.
+     * @param message The message of the commit.
+     * @param timestamp The timestamp of the commit.
+     * @param parents The parent commit ids.
+     * @param blobs The blob ids that are tracked by this commit, or null
+     *              if they are to be read from its trees.
+     */
+    Commit(String id, String message, Date timestamp, List<String> parents,
+           Map<String, String> blobs) {
+        this.id = id;
+        this.message = message;
+        this.timestamp = timestamp;
+        this.parents = new ArrayList<>(parents);
+        this.tracked = blobs == null ? null : new HashMap<>(blobs);
+    }
+
+    /** Generate the unique id for this commit. The timestamp only counts
+     *  whole seconds, so the parents and files go in too: two commits made
+     *  with the same message in the same second must not share an id.
      *
      * @return The unique id of this commit.
      */
     public String generateId() {
         assert timestamp != null;
-        return Utils.sha1(message + timestamp);
+        List<Object> vals = new ArrayList<>();
+        vals.add(message + timestamp);
+        for (String parent : parents) {
+            vals.add("\0" + parent);
+        }
+        for (Map.Entry<String, String> entry : new TreeMap<>(tracked).entrySet()) {
+            vals.add("\0" + entry.getKey() + "\0" + entry.getValue());
+        }
+        return Utils.sha1(vals);
     }
 
     /** Get the id of this commit.
@@ -82,9 +143,18 @@ public class Commit implements Serializable, Dumpable {
      * @return The formatted timestamp of this commit.
      */
     public String getFormattedTimestamp() {
+        return formatTimestamp(timestamp);
+    }
+
+    /** Format a timestamp the way it is shown in the log.
+     *
+     * @param date The timestamp to format.
+     * @return The formatted timestamp.
+     */
+    public static String formatTimestamp(Date date) {
         // Setting the locale to US to ensure English names for days and months
         return String.format(Locale.US, "%ta %tb %td %tT %tY %tz",
-                timestamp, timestamp, timestamp, timestamp, timestamp, timestamp);
+                date, date, date, date, date, date);
     }
 
     /** Get the parent commit id.
@@ -104,14 +174,175 @@ public class Commit implements Serializable, Dumpable {
     }
 
     /** Get the blobs that are tracked by this commit.
-     *  The key is the file name and the value is the blob object.
+     *  The key is the path of the file, with '/' between directories, and
+     *  the value is the id of the blob, whose contents live in the object
+     *  store.
      *
-     * @return The blobs that are tracked by this commit.
+     * @return The blob ids that are tracked by this commit.
      */
-    public Map<String, Blob> getBlobs() {
+    public Map<String, String> getBlobs() {
+        if (tracked == null) {
+            if (treeReader == null) {
+                throw new IllegalStateException("no trees to read commit " + id + " from");
+            }
+            Map<String, String> files = new HashMap<>();
+            Tree.flatten(tree, "", treeReader, files);
+            tracked = files;
+        }
         return tracked;
     }
 
+    /** isLoaded
+     *  Checks if the files of this commit are in memory.
+     *
+     * @return false if they would still have to be read from the trees
+     */
+    boolean isLoaded() {
+        return tracked != null;
+    }
+
+    /** getTree
+     *  Returns the id of the root tree, or null if the commit has not been
+     *  stored since it was made or was stored before trees existed.
+     *
+     * @return the id of the root tree, or null
+     */
+    String getTree() {
+        return tree;
+    }
+
+    /** setTree
+     *  Sets the id of the root tree, once the trees have been written.
+     *
+     * @param tree the id of the root tree
+     */
+    void setTree(String tree) {
+        this.tree = tree;
+    }
+
+    /** setTreeReader
+     *  Sets where the trees of this commit are read from when its files
+     *  are first asked for.
+     *
+     * @param reader reads trees by id
+     */
+    void setTreeReader(Function<String, Tree> reader) {
+        this.treeReader = reader;
+    }
+
+
+    /** toBytes
+     * Returns the stored form of this commit: naming its root tree, or, for
+     * a commit without one, listing its files in order of name, so equal
+     * commits are stored identically.
+     *
+     * @return the encoded commit
+     */
+    byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(ByteBuffer.allocate(4).putInt(MAGIC).array(), 0, 4);
+        Delta.writeVarint(out, tree == null ? FLAT_VERSION : VERSION);
+        writeId(out, id);
+        Delta.writeVarint(out, timestamp.getTime());
+        writeString(out, message);
+        Delta.writeVarint(out, parents.size());
+        for (String parent : parents) {
+            writeId(out, parent);
+        }
+        if (tree != null) {
+            writeId(out, tree);
+            return out.toByteArray();
+        }
+        Delta.writeVarint(out, tracked.size());
+        for (Map.Entry<String, String> entry : new TreeMap<>(tracked).entrySet()) {
+            writeString(out, entry.getKey());
+            writeId(out, entry.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    /** fromBytes
+     * Reads a commit from its stored form, or from the Java serialization
+     * that older versions of Gitlet stored.
+     *
+     * @param data the stored commit
+     * @return the commit
+     */
+    static Commit fromBytes(byte[] data) {
+        if (data.length < 4 || ByteBuffer.wrap(data).getInt() != MAGIC) {
+            return Utils.deserialize(data, Commit.class);
+        }
+        try {
+            int[] pos = {4};
+            long version = Delta.readVarint(data, pos);
+            if (version != VERSION && version != FLAT_VERSION) {
+                throw new IllegalArgumentException("unknown commit version");
+            }
+            String id = readId(data, pos);
+            Date timestamp = new Date(Delta.readVarint(data, pos));
+            String message = readString(data, pos);
+            int parentCount = (int) Delta.readVarint(data, pos);
+            List<String> parents = new ArrayList<>(parentCount);
+            for (int i = 0; i < parentCount; i += 1) {
+                parents.add(readId(data, pos));
+            }
+            if (version == VERSION) {
+                Commit commit = new Commit(id, message, timestamp, parents, null);
+                commit.tree = readId(data, pos);
+                return commit;
+            }
+            int fileCount = (int) Delta.readVarint(data, pos);
+            Map<String, String> tracked = new HashMap<>();
+            for (int i = 0; i < fileCount; i += 1) {
+                String fileName = readString(data, pos);
+                tracked.put(fileName, readId(data, pos));
+            }
+            return new Commit(id, message, timestamp, parents, tracked);
+        } catch (IndexOutOfBoundsException excp) {
+            throw new IllegalArgumentException("truncated commit");
+        }
+    }
+
+    /** writeId
+     * Writes a hexadecimal id as raw bytes.
+     */
+    private static void writeId(ByteArrayOutputStream out, String id) {
+        out.write(Utils.fromHex(id), 0, ID_BYTES);
+    }
+
+    /** readId
+     * Reads a raw id at POS[0], advancing POS[0].
+     */
+    private static String readId(byte[] data, int[] pos) {
+        if (pos[0] + ID_BYTES > data.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        String id = Utils.toHex(data, pos[0], ID_BYTES);
+        pos[0] += ID_BYTES;
+        return id;
+    }
+
+    /** writeString
+     * Writes a string as its UTF-8 length and bytes.
+     */
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        Delta.writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /** readString
+     * Reads a string written by writeString at POS[0], advancing POS[0].
+     */
+    private static String readString(byte[] data, int[] pos) {
+        int length = (int) Delta.readVarint(data, pos);
+        if (length < 0 || pos[0] + length > data.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        String value = new String(data, pos[0], length, StandardCharsets.UTF_8);
+        pos[0] += length;
+        return value;
+    }
 
     @Override
     public boolean dump() {
@@ -0,0 +1,444 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static gitlet.Utils.*;
+
+/** The catalog of every commit in a repository, in the order the commits
+ *  were added, for global-log and find.
+ *
+ *  The catalog file is laid out as
+ *
+ *      MAGIC VERSION { ID TIME PARENT1 PARENT2 OFFSET LENGTH HASH }*
+ *
+ *  with fixed-size records: raw 20-byte ids (all zero for an absent
+ *  parent), an 8-byte timestamp in milliseconds, and the 8-byte offset,
+ *  4-byte length and 4-byte hash code of the commit message, whose UTF-8
+ *  bytes are kept in a separate messages file. Both files are only ever
+ *  appended to, message first, so a command interrupted halfway at worst
+ *  leaves a partial record at the end, which is ignored.
+ *
+ *  Listing every commit reads only the records, and finding a message
+ *  compares hashes before looking at any message, so neither command
+ *  reads a commit object. The messages file is mapped once, like the
+ *  catalog, rather than opened per message. The catalog is rebuilt from
+ *  the object store whenever it is missing, damaged or out of step with
+ *  the commit graph.
+ *
+ *  The message hashes of the first COUNT records are also kept sorted in
+ *  a hashes file,
+ *
+ *      MAGIC VERSION COUNT { HASH POSITION }[COUNT]
+ *
+ *  ordered by hash and then position, so find looks up a message by
+ *  binary search there and only scans the records added since. The file
+ *  is written again once those make up more than an eighth of the
+ *  catalog, so that appending a commit stays cheap. It is only an
+ *  optimization: without it, find scans every record.
+ *
+ *  @author Kunhua Huang
+ */
+class CommitCatalog {
+
+    /** "CTLG" */
+    private static final int MAGIC = 0x43544c47;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final int ID_BYTES = UID_LENGTH / 2;
+    private static final int RECORD_BYTES = ID_BYTES + 8 + ID_BYTES + ID_BYTES + 8 + 4 + 4;
+    private static final int TIME = ID_BYTES;
+    private static final int PARENT1 = TIME + 8;
+    private static final int PARENT2 = PARENT1 + ID_BYTES;
+    private static final int OFFSET = PARENT2 + ID_BYTES;
+    private static final int LENGTH = OFFSET + 8;
+    private static final int HASH = LENGTH + 4;
+    private static final byte[] NO_PARENT = new byte[ID_BYTES];
+    /** "CTHS" */
+    private static final int HASHES_MAGIC = 0x43544853;
+    private static final int HASHES_HEADER_LENGTH = 12;
+    private static final int HASH_ENTRY_BYTES = 8;
+    /** The hashes file is never written for fewer unindexed records. */
+    private static final int MIN_UNINDEXED = 64;
+
+    private final File file;
+    private final File messagesFile;
+    private final File hashesFile;
+    private final ObjectStore store;
+    /** The mapped catalog, or null until first loaded. */
+    private MappedByteBuffer records;
+    private int count;
+    /** The mapped messages, mapped along with the catalog. */
+    private MappedByteBuffer messages;
+    /** The mapped hashes file, or null if there is none. */
+    private MappedByteBuffer hashes;
+    /** The number of records the hashes file covers. */
+    private int indexed;
+    /** The stamp of the catalog file when it was mapped. */
+    private FileStamp stamp;
+
+    /** Constructor for the catalog in FILE with its messages in
+     *  MESSAGESFILE and its sorted message hashes in HASHESFILE, covering
+     *  the commits in STORE.
+     *
+     * @param file the catalog file
+     * @param messagesFile the file holding the commit messages
+     * @param hashesFile the file holding the sorted message hashes
+     * @param store the object store the commits live in
+     */
+    CommitCatalog(File file, File messagesFile, File hashesFile, ObjectStore store) {
+        this.file = file;
+        this.messagesFile = messagesFile;
+        this.hashesFile = hashesFile;
+        this.store = store;
+    }
+
+    /** size
+     * Returns the number of commits in the catalog.
+     *
+     * @return the number of commits
+     */
+    int size() {
+        load();
+        return count;
+    }
+
+    /** idAt
+     * Returns the id of the I-th commit.
+     *
+     * @param i the position of the commit
+     * @return the id, as hexadecimal
+     */
+    String idAt(int i) {
+        return readId(i, 0);
+    }
+
+    /** timeAt
+     * Returns the timestamp of the I-th commit.
+     *
+     * @param i the position of the commit
+     * @return the timestamp in milliseconds
+     */
+    long timeAt(int i) {
+        load();
+        return records.getLong(HEADER_LENGTH + i * RECORD_BYTES + TIME);
+    }
+
+    /** parentsAt
+     * Returns the ids of the parents of the I-th commit.
+     *
+     * @param i the position of the commit
+     * @return the parent ids, first parent first
+     */
+    List<String> parentsAt(int i) {
+        List<String> parents = new ArrayList<>();
+        for (int field : new int[] {PARENT1, PARENT2}) {
+            String parent = readId(i, field);
+            if (parent != null) {
+                parents.add(parent);
+            }
+        }
+        return parents;
+    }
+
+    /** messageAt
+     * Returns the message of the I-th commit.
+     *
+     * @param i the position of the commit
+     * @return the commit message
+     */
+    String messageAt(int i) {
+        load();
+        int base = HEADER_LENGTH + i * RECORD_BYTES;
+        long offset = records.getLong(base + OFFSET);
+        byte[] message = new byte[records.getInt(base + LENGTH)];
+        if (offset + message.length > messages.capacity()) {
+            throw new IllegalArgumentException("truncated commit catalog");
+        }
+        ByteBuffer view = messages.duplicate();
+        view.position((int) offset);
+        view.get(message);
+        return new String(message, StandardCharsets.UTF_8);
+    }
+
+    /** newestFirst
+     * Returns the positions of all commits, newest first. Commits with the
+     * same timestamp are listed in reverse order of addition.
+     *
+     * @return the positions of the commits
+     */
+    Integer[] newestFirst() {
+        Integer[] order = new Integer[size()];
+        long[] times = new long[count];
+        for (int i = 0; i < count; i += 1) {
+            order[i] = count - 1 - i;
+            times[i] = timeAt(i);
+        }
+        Arrays.sort(order, (i, j) -> Long.compare(times[j], times[i]));
+        return order;
+    }
+
+    /** find
+     * Returns the ids of the commits with exactly the given message, in
+     * order of addition. The records with the message's hash are found
+     * through the hashes file, and only their messages are read.
+     *
+     * @param message the message to look for
+     * @return the ids of the matching commits
+     */
+    List<String> find(String message) {
+        load();
+        int hash = message.hashCode();
+        List<Integer> positions = new ArrayList<>();
+        if (hashes != null) {
+            int low = 0;
+            int high = indexed;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (hashes.getInt(HASHES_HEADER_LENGTH + mid * HASH_ENTRY_BYTES) < hash) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            for (int k = low; k < indexed; k += 1) {
+                int entry = HASHES_HEADER_LENGTH + k * HASH_ENTRY_BYTES;
+                if (hashes.getInt(entry) != hash) {
+                    break;
+                }
+                positions.add(hashes.getInt(entry + 4));
+            }
+        }
+        for (int i = indexed; i < count; i += 1) {
+            if (hashAt(i) == hash) {
+                positions.add(i);
+            }
+        }
+        List<String> result = new ArrayList<>();
+        for (int i : positions) {
+            if (messageAt(i).equals(message)) {
+                result.add(idAt(i));
+            }
+        }
+        return result;
+    }
+
+    /** append
+     * Appends commits that are new to the repository. If the catalog
+     * would not end up with EXPECTEDSIZE commits, it has fallen out of step
+     * with the repository and is rebuilt instead.
+     *
+     * @param commits the new commits, none of them in the catalog yet
+     * @param expectedSize the number of commits in the repository afterwards
+     */
+    void append(Collection<Commit> commits, int expectedSize) {
+        if (size() == expectedSize) {
+            return;
+        }
+        if (count + commits.size() != expectedSize) {
+            rebuild();
+            return;
+        }
+        write(commits, true);
+    }
+
+    /** rebuild
+     * Recreates the catalog by reading every commit in the store, oldest
+     * first.
+     */
+    void rebuild() {
+        List<Commit> commits = new ArrayList<>();
+        for (String id : store.list("")) {
+            if (store.typeOf(id).equals(ObjectStore.COMMIT)) {
+                commits.add(Commit.fromBytes(store.read(id, ObjectStore.COMMIT)));
+            }
+        }
+        commits.sort(Comparator.comparing(Commit::getTimestamp));
+        write(commits, false);
+    }
+
+    /** write
+     * Writes records and messages for the given commits, appending to the
+     * existing files or replacing them.
+     */
+    private void write(Collection<Commit> commits, boolean append) {
+        if (!append) {
+            // Its positions would point at the old records
+            hashesFile.delete();
+        }
+        long offset = append ? messagesFile.length() : 0;
+        ByteBuffer buf = ByteBuffer.allocate((append ? 0 : HEADER_LENGTH)
+                + commits.size() * RECORD_BYTES);
+        if (!append) {
+            buf.putInt(MAGIC).putInt(VERSION);
+        }
+        try (FileOutputStream messages = new FileOutputStream(messagesFile, append)) {
+            for (Commit commit : commits) {
+                byte[] message = commit.getMessage().getBytes(StandardCharsets.UTF_8);
+                List<String> parents = commit.getParent();
+                buf.put(fromHex(commit.getId()));
+                buf.putLong(commit.getTimestamp().getTime());
+                buf.put(parents.size() > 0 ? fromHex(parents.get(0)) : NO_PARENT);
+                buf.put(parents.size() > 1 ? fromHex(parents.get(1)) : NO_PARENT);
+                buf.putLong(offset).putInt(message.length).putInt(commit.getMessage().hashCode());
+                messages.write(message);
+                offset += message.length;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try (FileOutputStream out = new FileOutputStream(file, append)) {
+            // Drop a partial record left by an interrupted append first
+            if (append) {
+                out.getChannel().truncate(HEADER_LENGTH + (long) count * RECORD_BYTES);
+            }
+            out.write(buf.array());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        records = null;
+        writeHashes();
+    }
+
+    /** writeHashes
+     * Writes the hashes file again, covering every record, once more than
+     * an eighth of the records are not covered by it.
+     */
+    private void writeHashes() {
+        load();
+        if (count - indexed <= Math.max(MIN_UNINDEXED, indexed / 8)) {
+            return;
+        }
+        // The hash in the high half and the position in the low half, so
+        // that sorting orders by hash and then position
+        long[] entries = new long[count];
+        for (int i = 0; i < count; i += 1) {
+            entries[i] = (long) hashAt(i) << 32 | i;
+        }
+        Arrays.sort(entries);
+        ByteBuffer buf = ByteBuffer.allocate(HASHES_HEADER_LENGTH + count * HASH_ENTRY_BYTES);
+        buf.putInt(HASHES_MAGIC).putInt(VERSION).putInt(count);
+        for (long entry : entries) {
+            buf.putInt((int) (entry >> 32)).putInt((int) entry);
+        }
+        Journal.replace(hashesFile, buf.array());
+        records = null;
+    }
+
+    /** hashAt
+     * Returns the hash code of the message of the I-th commit.
+     */
+    private int hashAt(int i) {
+        return records.getInt(HEADER_LENGTH + i * RECORD_BYTES + HASH);
+    }
+
+    /** refresh
+     * Forgets the mapping if another process has changed the catalog since
+     * it was mapped, so that it is mapped again on next use.
+     */
+    void refresh() {
+        if (!FileStamp.matches(stamp, file)) {
+            records = null;
+        }
+    }
+
+    /** readId
+     * Returns the id stored at FIELD of the I-th record, or null if it is
+     * all zero.
+     */
+    private String readId(int i, int field) {
+        load();
+        byte[] id = new byte[ID_BYTES];
+        int base = HEADER_LENGTH + i * RECORD_BYTES + field;
+        for (int k = 0; k < ID_BYTES; k += 1) {
+            id[k] = records.get(base + k);
+        }
+        return Arrays.equals(id, NO_PARENT) ? null : toHex(id, 0, ID_BYTES);
+    }
+
+    /** load
+     * Maps the catalog on first use, rebuilding it if either file is
+     * missing or the catalog is damaged.
+     */
+    private void load() {
+        if (records != null) {
+            return;
+        }
+        if (!map()) {
+            rebuild();
+            if (!map()) {
+                throw error("Cannot read commit catalog.");
+            }
+        }
+    }
+
+    /** map
+     * Maps the catalog file.
+     *
+     * @return false if the catalog is missing or damaged
+     */
+    private boolean map() {
+        if (!file.isFile() || !messagesFile.isFile()) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            return false;
+        }
+        if (records.capacity() < HEADER_LENGTH || records.getInt(0) != MAGIC
+                || records.getInt(4) != VERSION) {
+            records = null;
+            return false;
+        }
+        count = (records.capacity() - HEADER_LENGTH) / RECORD_BYTES;
+        try (RandomAccessFile raf = new RandomAccessFile(messagesFile, "r");
+             FileChannel channel = raf.getChannel()) {
+            messages = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            records = null;
+            return false;
+        }
+        mapHashes();
+        stamp = new FileStamp(file);
+        return true;
+    }
+
+    /** mapHashes
+     * Maps the hashes file, or goes without it if it is missing, damaged
+     * or covers records the catalog does not have.
+     */
+    private void mapHashes() {
+        hashes = null;
+        indexed = 0;
+        if (!hashesFile.isFile()) {
+            return;
+        }
+        MappedByteBuffer mapped;
+        try (RandomAccessFile raf = new RandomAccessFile(hashesFile, "r");
+             FileChannel channel = raf.getChannel()) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            return;
+        }
+        if (mapped.capacity() < HASHES_HEADER_LENGTH || mapped.getInt(0) != HASHES_MAGIC
+                || mapped.getInt(4) != VERSION) {
+            return;
+        }
+        int covered = mapped.getInt(8);
+        if (covered < 0 || covered > count
+                || mapped.capacity() < HASHES_HEADER_LENGTH + (long) covered * HASH_ENTRY_BYTES) {
+            return;
+        }
+        hashes = mapped;
+        indexed = covered;
+    }
+}
@@ -0,0 +1,738 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static gitlet.Utils.*;
+
+/** The commit graph of a repository: every commit id, with the positions
+ *  of its parents, its generation number and its timestamp.
+ *
+ *  Commits are numbered by the position of their id in ascending order,
+ *  so an abbreviated id is resolved by binary search. The generation of a
+ *  commit is one more than the largest generation of its parents (a root
+ *  commit has generation 1), which means a commit can never be an ancestor
+ *  of one with a smaller or equal generation. Ancestry questions are
+ *  answered by walking parents in the graph, skipping every commit whose
+ *  generation shows it cannot matter, without reading any commit objects.
+ *
+ *  The file is laid out as
+ *
+ *      MAGIC VERSION COUNT IDS[COUNT] { PARENT1 PARENT2 GENERATION TIME }[COUNT]
+ *      { ID PARENT1 PARENT2 GENERATION TIME }*
+ *
+ *  with raw 20-byte ids, 4-byte parent positions (-1 for none), 4-byte
+ *  generations and 8-byte timestamps in milliseconds. New commits are
+ *  appended after the sorted part as a tail of records in no order, taking
+ *  the positions after it, so that writing a commit costs only its own
+ *  record; the tail is looked up through a small in-memory map, and merged
+ *  into the sorted part once it holds more than an eighth as many commits,
+ *  and whenever commits are dropped or the graph is rebuilt. A record cut
+ *  short by an interrupted append is ignored and written over. The graph
+ *  only repeats what the commits already say, so it is rebuilt from the
+ *  object store whenever its file is missing or damaged.
+ *
+ *  @author Kunhua Huang
+ */
+class CommitGraph {
+
+    /** "CGPH" */
+    private static final int MAGIC = 0x43475048;
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 12;
+    private static final int ID_BYTES = UID_LENGTH / 2;
+    private static final int DATA_BYTES = 4 + 4 + 4 + 8;
+    /** Marks an absent parent. */
+    private static final int NONE = -1;
+    /** The tail is never merged while it holds fewer commits. */
+    private static final int MIN_MERGE = 64;
+
+    /** Flags for the merge base search. */
+    private static final int FROM_A = 1;
+    private static final int FROM_B = 2;
+    private static final int STALE = 4;
+
+    private final File file;
+    private final ObjectStore store;
+    /** The raw ids, sorted up to SORTED and then in the order they were
+     *  appended, or null until first loaded. */
+    private byte[] ids;
+    /** The number of commits in the sorted part. */
+    private int sorted;
+    /** The positions of the commits in the tail, by id. */
+    private Map<ObjectId, Integer> tail;
+    /** The length of the file up to the end of its last whole record. */
+    private long validLength;
+    private int[] parent1;
+    private int[] parent2;
+    private int[] generations;
+    private long[] times;
+    /** The stamp of the file when it was last read or written. */
+    private FileStamp stamp;
+
+    /** Constructor for the commit graph in FILE, covering the commits in
+     *  STORE.
+     *
+     * @param file the commit graph file
+     * @param store the object store the commits live in
+     */
+    CommitGraph(File file, ObjectStore store) {
+        this.file = file;
+        this.store = store;
+    }
+
+    /** size
+     * Returns the number of commits in the graph.
+     *
+     * @return the number of commits
+     */
+    int size() {
+        load();
+        return generations.length;
+    }
+
+    /** idAt
+     * Returns the id of the commit at position I.
+     *
+     * @param i the position of the commit
+     * @return the id, as hexadecimal
+     */
+    String idAt(int i) {
+        load();
+        return toHex(ids, i * ID_BYTES, ID_BYTES);
+    }
+
+    /** positionOf
+     * Returns the position of the commit with the given full id, or -1 if
+     * it is not in the graph.
+     *
+     * @param id the full id of the commit
+     * @return the position of the commit, or -1
+     */
+    int positionOf(String id) {
+        if (!ObjectId.isId(id)) {
+            return NONE;
+        }
+        return positionOf(ObjectId.fromHex(id));
+    }
+
+    /** positionOf
+     * Returns the position of the commit with id KEY, or NONE.
+     */
+    private int positionOf(ObjectId key) {
+        load();
+        int position = find(ids, sorted, key);
+        return position != NONE ? position : tail.getOrDefault(key, NONE);
+    }
+
+    /** list
+     * Returns the ids of the commits that start with the given prefix, in
+     * ascending order. An empty prefix lists every commit.
+     *
+     * @param prefix the prefix of the ids
+     * @return the matching commit ids
+     */
+    List<String> list(String prefix) {
+        load();
+        List<String> result = new ArrayList<>();
+        ByteBuffer raw = ByteBuffer.wrap(ids);
+        for (int i = lowerBound(prefix); i < sorted
+                && ObjectId.compareHex(raw, i * ID_BYTES, prefix) == 0; i += 1) {
+            result.add(idAt(i));
+        }
+        if (!tail.isEmpty()) {
+            for (int i = sorted; i < size(); i += 1) {
+                if (ObjectId.compareHex(raw, i * ID_BYTES, prefix) == 0) {
+                    result.add(idAt(i));
+                }
+            }
+            Collections.sort(result);
+        }
+        return result;
+    }
+
+    /** isAncestor
+     * Checks if the commit ANCESTOR is DESCENDANT or one of its ancestors.
+     * Walks back from DESCENDANT, never going below the generation of
+     * ANCESTOR.
+     *
+     * @param ancestor the id of the possible ancestor
+     * @param descendant the id of the possible descendant
+     * @return true if ANCESTOR is an ancestor of DESCENDANT
+     */
+    boolean isAncestor(String ancestor, String descendant) {
+        int target = positionOf(ancestor);
+        int start = positionOf(descendant);
+        if (target == NONE || start == NONE) {
+            return false;
+        }
+        int minGeneration = generations[target];
+        BitSet visited = new BitSet(size());
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(start);
+        visited.set(start);
+        while (!queue.isEmpty()) {
+            int current = queue.poll();
+            if (current == target) {
+                return true;
+            }
+            for (int parent : parentsOf(current)) {
+                if (!visited.get(parent) && generations[parent] >= minGeneration) {
+                    visited.set(parent);
+                    queue.add(parent);
+                }
+            }
+        }
+        return false;
+    }
+
+    /** missingFrom
+     * Returns the ids of the commits reachable from TIP that the graph
+     * HAVE lacks, parents before children. This graph holds what is
+     * wanted and HAVE what the other side has; since a repository holding
+     * a commit holds all of its ancestors too, the walk stops at every
+     * commit HAVE knows, and no commit object is read.
+     *
+     * @param tip the id of the wanted commit
+     * @param have the commit graph of the repository receiving the commits
+     * @return the missing commit ids, in increasing generation order
+     */
+    List<String> missingFrom(String tip, CommitGraph have) {
+        int start = positionOf(tip);
+        if (start == NONE || have.positionOf(tip) != NONE) {
+            return new ArrayList<>();
+        }
+        List<Integer> missing = new ArrayList<>();
+        BitSet visited = new BitSet(size());
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(start);
+        visited.set(start);
+        while (!stack.isEmpty()) {
+            int current = stack.pop();
+            missing.add(current);
+            for (int parent : parentsOf(current)) {
+                if (!visited.get(parent)) {
+                    visited.set(parent);
+                    if (have.positionOf(ObjectId.fromRaw(ids, parent * ID_BYTES)) == NONE) {
+                        stack.push(parent);
+                    }
+                }
+            }
+        }
+        missing.sort(Comparator.comparingInt(i -> generations[i]));
+        List<String> result = new ArrayList<>(missing.size());
+        for (int i : missing) {
+            result.add(idAt(i));
+        }
+        return result;
+    }
+
+    /** reachable
+     * Returns the positions of the given commits and of all of their
+     * ancestors as a bitmap, in one walk that visits each commit once. Ids
+     * not in the graph are ignored.
+     *
+     * @param tips the ids of the commits to start from
+     * @return the bitmap of reachable positions
+     */
+    BitSet reachable(Collection<String> tips) {
+        BitSet marked = new BitSet(size());
+        Deque<Integer> stack = new ArrayDeque<>();
+        for (String tip : tips) {
+            int start = positionOf(tip);
+            if (start != NONE && !marked.get(start)) {
+                marked.set(start);
+                stack.push(start);
+            }
+        }
+        while (!stack.isEmpty()) {
+            for (int parent : parentsOf(stack.pop())) {
+                if (!marked.get(parent)) {
+                    marked.set(parent);
+                    stack.push(parent);
+                }
+            }
+        }
+        return marked;
+    }
+
+    /** retain
+     * Drops every commit whose position is not in KEEP from the graph and
+     * saves it. KEEP must hold the parents of every commit it holds, as
+     * the bitmaps from reachable do.
+     *
+     * @param keep the positions of the commits to keep
+     */
+    void retain(BitSet keep) {
+        load();
+        int count = keep.cardinality();
+        int[] order = sortedOrder(keep);
+        int[] moved = new int[size()];
+        byte[] newIds = new byte[count * ID_BYTES];
+        for (int k = 0; k < count; k += 1) {
+            moved[order[k]] = k;
+            System.arraycopy(ids, order[k] * ID_BYTES, newIds, k * ID_BYTES, ID_BYTES);
+        }
+        int[] newParent1 = new int[count];
+        int[] newParent2 = new int[count];
+        int[] newGenerations = new int[count];
+        long[] newTimes = new long[count];
+        for (int k = 0; k < count; k += 1) {
+            int i = order[k];
+            newParent1[k] = parent1[i] == NONE ? NONE : moved[parent1[i]];
+            newParent2[k] = parent2[i] == NONE ? NONE : moved[parent2[i]];
+            newGenerations[k] = generations[i];
+            newTimes[k] = times[i];
+        }
+        set(newIds, newParent1, newParent2, newGenerations, newTimes);
+        save();
+    }
+
+    /** sortedOrder
+     * Returns the positions in KEEP ordered by the ids of their commits,
+     * merging the commits of the tail in among the sorted ones.
+     */
+    private int[] sortedOrder(BitSet keep) {
+        List<ObjectId> tailIds = new ArrayList<>();
+        for (Map.Entry<ObjectId, Integer> entry : tail.entrySet()) {
+            if (keep.get(entry.getValue())) {
+                tailIds.add(entry.getKey());
+            }
+        }
+        Collections.sort(tailIds);
+        int[] order = new int[keep.cardinality()];
+        int k = 0;
+        int t = 0;
+        for (int i = keep.nextSetBit(0); i >= 0 && i < sorted; i = keep.nextSetBit(i + 1)) {
+            for (; t < tailIds.size() && tailIds.get(t).compareTo(ids, i * ID_BYTES) < 0;
+                 t += 1) {
+                order[k] = tail.get(tailIds.get(t));
+                k += 1;
+            }
+            order[k] = i;
+            k += 1;
+        }
+        for (; t < tailIds.size(); t += 1) {
+            order[k] = tail.get(tailIds.get(t));
+            k += 1;
+        }
+        return order;
+    }
+
+    /** mergeBase
+     * Returns the id of the latest common ancestor of commits A and B, or
+     * null if they have none. When there are several best candidates (a
+     * criss-cross history), the one with the highest generation wins, and
+     * then the newest.
+     *
+     * Commits are visited in decreasing generation order, so every commit
+     * is seen after all of its descendants. A commit reached from both
+     * sides is a candidate, and everything below it is marked stale; the
+     * walk stops as soon as only stale commits are left. Each commit is in
+     * the queue at most once, and the number of queued commits that are
+     * not stale is kept as they are added, marked and taken out.
+     *
+     * @param a the id of one commit
+     * @param b the id of the other commit
+     * @return the id of the merge base, or null
+     */
+    String mergeBase(String a, String b) {
+        int posA = positionOf(a);
+        int posB = positionOf(b);
+        if (posA == NONE || posB == NONE) {
+            return null;
+        }
+        Map<Integer, Integer> flags = new HashMap<>();
+        PriorityQueue<Integer> queue = new PriorityQueue<>(this::compareRecency);
+        BitSet queued = new BitSet(size());
+        flags.put(posA, FROM_A);
+        flags.merge(posB, FROM_B, (x, y) -> x | y);
+        queue.add(posA);
+        queued.set(posA);
+        if (!queued.get(posB)) {
+            queue.add(posB);
+            queued.set(posB);
+        }
+        int unstale = queue.size();
+
+        List<Integer> candidates = new ArrayList<>();
+        while (unstale > 0) {
+            int current = queue.poll();
+            queued.clear(current);
+            int flag = flags.get(current);
+            if ((flag & STALE) == 0) {
+                unstale -= 1;
+                if ((flag & (FROM_A | FROM_B)) == (FROM_A | FROM_B)) {
+                    candidates.add(current);
+                    flag |= STALE;
+                }
+            }
+            for (int parent : parentsOf(current)) {
+                int old = flags.getOrDefault(parent, 0);
+                if ((old | flag) == old) {
+                    continue;
+                }
+                flags.put(parent, old | flag);
+                if (!queued.get(parent)) {
+                    queue.add(parent);
+                    queued.set(parent);
+                    if (((old | flag) & STALE) == 0) {
+                        unstale += 1;
+                    }
+                } else if ((old & STALE) == 0 && (flag & STALE) != 0) {
+                    unstale -= 1;
+                }
+            }
+        }
+
+        // Drop candidates that are ancestors of other candidates
+        int best = NONE;
+        for (int candidate : candidates) {
+            boolean redundant = false;
+            for (int other : candidates) {
+                if (other != candidate && isAncestor(idAt(candidate), idAt(other))) {
+                    redundant = true;
+                    break;
+                }
+            }
+            if (!redundant && (best == NONE || compareRecency(candidate, best) < 0)) {
+                best = candidate;
+            }
+        }
+        return best == NONE ? null : idAt(best);
+    }
+
+    /** compareRecency
+     * Orders the commits at positions X and Y by decreasing generation, and
+     * then from newest to oldest.
+     */
+    private int compareRecency(int x, int y) {
+        if (generations[x] != generations[y]) {
+            return Integer.compare(generations[y], generations[x]);
+        }
+        return Long.compare(times[y], times[x]);
+    }
+
+    /** generationAt
+     * Returns the generation of the commit at position I.
+     *
+     * @param i the position of the commit
+     * @return the generation, 1 for a root commit
+     */
+    int generationAt(int i) {
+        load();
+        return generations[i];
+    }
+
+    /** parentsOf
+     * Returns the positions of the parents of the commit at position I.
+     *
+     * @param i the position of the commit
+     * @return the positions of its parents
+     */
+    int[] parentsOf(int i) {
+        load();
+        if (parent1[i] == NONE) {
+            return new int[0];
+        } else if (parent2[i] == NONE) {
+            return new int[] {parent1[i]};
+        }
+        return new int[] {parent1[i], parent2[i]};
+    }
+
+    /** add
+     * Adds the given commits to the graph, appending them to the tail of
+     * its file, or merging the tail into the sorted part if it has grown
+     * long enough. The parents of each commit must be in the graph already
+     * or among COMMITS.
+     *
+     * @param commits the commits that were just stored
+     */
+    void add(Collection<Commit> commits) {
+        load();
+        Map<ObjectId, Commit> added = new LinkedHashMap<>();
+        for (Commit commit : commits) {
+            ObjectId id = ObjectId.fromHex(commit.getId());
+            if (positionOf(id) == NONE) {
+                added.put(id, commit);
+            }
+        }
+        if (added.isEmpty()) {
+            return;
+        }
+
+        // The new commits take the positions after the old ones, so no
+        // old parent position changes
+        int oldCount = size();
+        int newCount = oldCount + added.size();
+        byte[] newIds = Arrays.copyOf(ids, newCount * ID_BYTES);
+        int k = oldCount;
+        for (ObjectId id : added.keySet()) {
+            id.copyTo(newIds, k * ID_BYTES);
+            tail.put(id, k);
+            k += 1;
+        }
+        ids = newIds;
+        parent1 = Arrays.copyOf(parent1, newCount);
+        parent2 = Arrays.copyOf(parent2, newCount);
+        generations = Arrays.copyOf(generations, newCount);
+        times = Arrays.copyOf(times, newCount);
+        k = oldCount;
+        for (Commit commit : added.values()) {
+            List<String> parents = commit.getParent();
+            parent1[k] = parents.size() > 0 ? positionOf(parents.get(0)) : NONE;
+            parent2[k] = parents.size() > 1 ? positionOf(parents.get(1)) : NONE;
+            times[k] = commit.getTimestamp().getTime();
+            k += 1;
+        }
+        fillGenerations(parent1, parent2, generations);
+
+        if (tail.size() > Math.max(MIN_MERGE, sorted / 8)) {
+            BitSet all = new BitSet(newCount);
+            all.set(0, newCount);
+            retain(all);
+        } else {
+            append(oldCount);
+        }
+    }
+
+    /** rebuild
+     * Recreates the graph by reading every commit in the store.
+     */
+    void rebuild() {
+        SortedMap<String, Commit> commits = new TreeMap<>();
+        for (String id : store.list("")) {
+            if (store.typeOf(id).equals(ObjectStore.COMMIT)) {
+                commits.put(id, Commit.fromBytes(store.read(id, ObjectStore.COMMIT)));
+            }
+        }
+        int count = commits.size();
+        byte[] allIds = new byte[count * ID_BYTES];
+        Commit[] sorted = commits.values().toArray(new Commit[0]);
+        int k = 0;
+        for (String id : commits.keySet()) {
+            System.arraycopy(fromHex(id), 0, allIds, k * ID_BYTES, ID_BYTES);
+            k += 1;
+        }
+        int[] newParent1 = new int[count];
+        int[] newParent2 = new int[count];
+        int[] newGenerations = new int[count];
+        long[] newTimes = new long[count];
+        for (k = 0; k < count; k += 1) {
+            Commit commit = sorted[k];
+            List<String> parents = commit.getParent();
+            newParent1[k] = parents.size() > 0 ? find(allIds, parents.get(0)) : NONE;
+            newParent2[k] = parents.size() > 1 ? find(allIds, parents.get(1)) : NONE;
+            newTimes[k] = commit.getTimestamp().getTime();
+        }
+        fillGenerations(newParent1, newParent2, newGenerations);
+        set(allIds, newParent1, newParent2, newGenerations, newTimes);
+        save();
+    }
+
+    /** find
+     * Returns the position of ID in the sorted raw ids SORTEDIDS, or NONE.
+     */
+    private static int find(byte[] sortedIds, String id) {
+        return ObjectId.isId(id)
+                ? find(sortedIds, sortedIds.length / ID_BYTES, ObjectId.fromHex(id)) : NONE;
+    }
+
+    /** find
+     * Returns the position of KEY among the first COUNT raw ids in
+     * SORTEDIDS, which are sorted, or NONE.
+     */
+    private static int find(byte[] sortedIds, int count, ObjectId key) {
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = key.compareTo(sortedIds, mid * ID_BYTES);
+            if (cmp == 0) {
+                return mid;
+            } else if (cmp > 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return NONE;
+    }
+
+    /** fillGenerations
+     * Computes the generation of every commit whose generation is still 0,
+     * visiting parents before children without recursion.
+     */
+    private static void fillGenerations(int[] p1, int[] p2, int[] gens) {
+        Deque<Integer> stack = new ArrayDeque<>();
+        for (int start = 0; start < gens.length; start += 1) {
+            if (gens[start] != 0) {
+                continue;
+            }
+            stack.push(start);
+            while (!stack.isEmpty()) {
+                int current = stack.peek();
+                boolean ready = true;
+                int max = 0;
+                for (int parent : new int[] {p1[current], p2[current]}) {
+                    if (parent < 0) {
+                        continue;
+                    }
+                    if (gens[parent] == 0) {
+                        stack.push(parent);
+                        ready = false;
+                    }
+                    max = Math.max(max, gens[parent]);
+                }
+                if (ready) {
+                    stack.pop();
+                    gens[current] = max + 1;
+                }
+            }
+        }
+    }
+
+    /** set
+     * Replaces the in-memory graph with one that is sorted throughout.
+     */
+    private void set(byte[] newIds, int[] newParent1, int[] newParent2,
+                     int[] newGenerations, long[] newTimes) {
+        ids = newIds;
+        parent1 = newParent1;
+        parent2 = newParent2;
+        generations = newGenerations;
+        times = newTimes;
+        sorted = newGenerations.length;
+        tail = new HashMap<>();
+    }
+
+    /** save
+     * Writes the graph, which must have an empty tail, to its file.
+     */
+    private void save() {
+        int count = generations.length;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH + count * (ID_BYTES + DATA_BYTES));
+        buf.putInt(MAGIC).putInt(VERSION).putInt(count);
+        buf.put(ids);
+        for (int k = 0; k < count; k += 1) {
+            buf.putInt(parent1[k]).putInt(parent2[k]).putInt(generations[k]).putLong(times[k]);
+        }
+        Journal.replace(file, buf.array());
+        validLength = buf.capacity();
+        stamp = new FileStamp(file);
+    }
+
+    /** append
+     * Appends the records of the commits from position FROM on to the tail
+     * of the file, first dropping a record left partly written by an
+     * interrupted append.
+     */
+    private void append(int from) {
+        ByteBuffer records = ByteBuffer.allocate((size() - from) * (ID_BYTES + DATA_BYTES));
+        for (int k = from; k < size(); k += 1) {
+            records.put(ids, k * ID_BYTES, ID_BYTES);
+            records.putInt(parent1[k]).putInt(parent2[k]).putInt(generations[k])
+                    .putLong(times[k]);
+        }
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.getChannel().truncate(validLength);
+            out.write(records.array());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        validLength += records.capacity();
+        stamp = new FileStamp(file);
+    }
+
+    /** refresh
+     * Forgets the in-memory graph if another process has changed the file
+     * since it was read, so that it is read again on next use.
+     */
+    void refresh() {
+        if (!FileStamp.matches(stamp, file)) {
+            generations = null;
+        }
+    }
+
+    /** load
+     * Reads the graph on first use, rebuilding it if the file is missing
+     * or damaged.
+     */
+    private void load() {
+        if (generations != null) {
+            return;
+        }
+        if (file.isFile()) {
+            ByteBuffer buf = mapContents(file);
+            if (buf.capacity() >= HEADER_LENGTH && buf.getInt() == MAGIC
+                    && buf.getInt() == VERSION) {
+                int count = buf.getInt();
+                if (count >= 0 && buf.remaining() >= (long) count * (ID_BYTES + DATA_BYTES)
+                        && read(buf, count)) {
+                    stamp = new FileStamp(file);
+                    return;
+                }
+            }
+        }
+        rebuild();
+    }
+
+    /** read
+     * Reads the COUNT sorted commits and then the tail from BUF, which is
+     * just past the header, ignoring a last record that was cut short.
+     * Returns false if a parent position points outside the graph.
+     */
+    private boolean read(ByteBuffer buf, int count) {
+        int total = count + (buf.remaining() - count * (ID_BYTES + DATA_BYTES))
+                / (ID_BYTES + DATA_BYTES);
+        byte[] newIds = new byte[total * ID_BYTES];
+        int[] newParent1 = new int[total];
+        int[] newParent2 = new int[total];
+        int[] newGenerations = new int[total];
+        long[] newTimes = new long[total];
+        buf.get(newIds, 0, count * ID_BYTES);
+        for (int k = 0; k < total; k += 1) {
+            if (k >= count) {
+                buf.get(newIds, k * ID_BYTES, ID_BYTES);
+            }
+            newParent1[k] = buf.getInt();
+            newParent2[k] = buf.getInt();
+            newGenerations[k] = buf.getInt();
+            newTimes[k] = buf.getLong();
+            if (newParent1[k] < NONE || newParent1[k] >= total
+                    || newParent2[k] < NONE || newParent2[k] >= total) {
+                return false;
+            }
+        }
+        set(newIds, newParent1, newParent2, newGenerations, newTimes);
+        sorted = count;
+        for (int k = count; k < total; k += 1) {
+            tail.put(ObjectId.fromRaw(ids, k * ID_BYTES), k);
+        }
+        validLength = buf.position();
+        return true;
+    }
+
+    /** lowerBound
+     * Returns the position of the first id in the sorted part that is not
+     * less than KEY, comparing the raw ids in place.
+     */
+    private int lowerBound(String key) {
+        load();
+        ByteBuffer raw = ByteBuffer.wrap(ids);
+        int lo = 0;
+        int hi = sorted;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ObjectId.compareHex(raw, mid * ID_BYTES, key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
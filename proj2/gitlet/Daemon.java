@@ -0,0 +1,207 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import static gitlet.Utils.*;
+
+/** A long-lived Gitlet process that runs commands for a repository, so
+ *  that each command need not start a new JVM and read the commit graph,
+ *  indexes and stage from disk again.
+ *
+ *  "gitlet daemon" listens on a loopback port and writes the port and a
+ *  random token to .gitlet/daemon, readable only by its owner. Every other
+ *  command first looks for that file and, if a daemon answers, sends it the
+ *  token and the command's arguments and copies back whatever the command
+ *  prints. If there is no daemon, or it does not accept the command, the
+ *  command runs in its own process as usual.
+ *
+ *  The daemon runs one command at a time. Before each one it refreshes
+ *  the repository state, reloading only the files that another process
+ *  changed since the daemon last read them. "gitlet daemon stop" stops it.
+ *
+ *  @author Kunhua Huang
+ */
+class Daemon {
+
+    private static final File DAEMON_FILE =
+            join(System.getProperty("user.dir"), ".gitlet", "daemon");
+    /** Sent to the client once its command has been accepted. */
+    private static final int ACCEPTED = 1;
+    /** How long either side waits on the other, in milliseconds. */
+    private static final int TIMEOUT = 10000;
+    private static final int TOKEN_BYTES = 16;
+
+    /** True once the running daemon has been asked to stop. */
+    private static boolean stopping;
+    private static boolean serving;
+
+    /** serve
+     *  Runs the daemon for the repository in the current directory until
+     *  it is stopped.
+     */
+    static void serve() {
+        Repository.isInitialized();
+        if (DAEMON_FILE.exists()) {
+            try (Socket running = connect()) {
+                if (running != null) {
+                    throw error("A daemon is already running.");
+                }
+            } catch (IOException excp) {
+                // The other daemon answered, which is all that matters
+                throw error("A daemon is already running.");
+            }
+        }
+        byte[] secret = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(secret);
+        String token = toHex(secret, 0, TOKEN_BYTES);
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            writeContents(DAEMON_FILE, "");
+            DAEMON_FILE.setReadable(false, false);
+            DAEMON_FILE.setWritable(false, false);
+            DAEMON_FILE.setReadable(true, true);
+            DAEMON_FILE.setWritable(true, true);
+            writeContents(DAEMON_FILE, server.getLocalPort() + " " + token);
+            DAEMON_FILE.deleteOnExit();
+            System.out.println("Daemon listening on port " + server.getLocalPort() + ".");
+            serving = true;
+            while (!stopping) {
+                try (Socket client = server.accept()) {
+                    handle(client, token);
+                } catch (IOException excp) {
+                    // The client went away; wait for the next one
+                }
+            }
+        } catch (IOException excp) {
+            throw error("Cannot start daemon: %s", excp.getMessage());
+        } finally {
+            serving = false;
+            DAEMON_FILE.delete();
+        }
+    }
+
+    /** stop
+     *  Stops the daemon once the current command finishes. Only the daemon
+     *  itself can be stopped this way.
+     */
+    static void stop() {
+        if (!serving) {
+            throw error("No daemon is running.");
+        }
+        stopping = true;
+        System.out.println("Daemon stopped.");
+    }
+
+    /** handle
+     *  Runs the command sent by one client, with everything it prints sent
+     *  back to that client.
+     */
+    private static void handle(Socket client, String token) throws IOException {
+        client.setSoTimeout(TIMEOUT);
+        DataInputStream in = new DataInputStream(client.getInputStream());
+        byte[] sent = in.readUTF().getBytes(StandardCharsets.UTF_8);
+        if (!MessageDigest.isEqual(sent, token.getBytes(StandardCharsets.UTF_8))) {
+            return;
+        }
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i += 1) {
+            args[i] = in.readUTF();
+        }
+        OutputStream out = new BufferedOutputStream(client.getOutputStream(), BUFFER_SIZE);
+        out.write(ACCEPTED);
+        out.flush();
+        PrintStream console = System.out;
+        PrintStream reply = new PrintStream(out, false);
+        System.setOut(reply);
+        try {
+            Repository.refresh();
+            Main.run(args);
+        } catch (GitletException excp) {
+            reply.println(excp.getMessage());
+        } catch (RuntimeException excp) {
+            excp.printStackTrace(reply);
+        } finally {
+            System.setOut(console);
+            reply.flush();
+            Main.reportCacheStats();
+        }
+    }
+
+    /** forward
+     *  Sends a command to the daemon of the repository in the current
+     *  directory, if there is one, and prints what it prints.
+     *
+     *  @param args the command and its operands
+     *  @return false if the command was not run, and must be run here
+     */
+    static boolean forward(String[] args) {
+        if (!DAEMON_FILE.exists()) {
+            return false;
+        }
+        boolean accepted = false;
+        try (Socket socket = connect()) {
+            if (socket == null) {
+                return false;
+            }
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF(readContentsAsString(DAEMON_FILE).trim().split(" ")[1]);
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+            socket.shutdownOutput();
+            InputStream in = socket.getInputStream();
+            if (in.read() != ACCEPTED) {
+                return false;
+            }
+            accepted = true;
+            // Commands may run for a long time once accepted
+            socket.setSoTimeout(0);
+            byte[] buf = new byte[BUFFER_SIZE];
+            for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+                System.out.write(buf, 0, n);
+            }
+            System.out.flush();
+        } catch (IOException | RuntimeException excp) {
+            // Once accepted, the command must not be run a second time here
+            return accepted;
+        }
+        return true;
+    }
+
+    /** connect
+     *  Connects to the port named in the daemon file.
+     *
+     *  @return the connection, or null if no daemon answers there
+     */
+    private static Socket connect() {
+        Socket socket = new Socket();
+        try {
+            int port = Integer.parseInt(readContentsAsString(DAEMON_FILE).trim().split(" ")[0]);
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), TIMEOUT);
+            socket.setSoTimeout(TIMEOUT);
+            return socket;
+        } catch (IOException | RuntimeException excp) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Nothing more to do
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+
+/** Binary deltas between two versions of a file.
+ *
+ *  A delta describes a target byte array as a sequence of instructions
+ *  against a base array: either copy a range of the base, or insert some
+ *  literal bytes. It starts with the lengths of the base and the target,
+ *  all numbers being unsigned LEB128 varints:
+ *
+ *      BASE_LENGTH TARGET_LENGTH { 0 LENGTH BYTES... | 1 OFFSET LENGTH }*
+ *
+ *  Matches are found by indexing the base in BLOCK-byte blocks and looking
+ *  up every block-sized window of the target, so a small edit in a large
+ *  file yields a delta of roughly the size of the edit.
+ *
+ *  @author Kunhua Huang
+ */
+class Delta {
+
+    /** The length of the blocks of the base that matches are seeded from. */
+    private static final int BLOCK = 16;
+    /** Instruction opcodes. */
+    private static final int INSERT = 0;
+    private static final int COPY = 1;
+
+    /** create
+     *  Returns a delta that turns BASE into TARGET.
+     *
+     *  @param base the base version
+     *  @param target the target version
+     *  @return the delta
+     */
+    static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+
+        int[] table = buildTable(base);
+        int mask = table.length - 1;
+        int insertStart = 0;
+        int pos = 0;
+        while (pos + BLOCK <= target.length) {
+            int candidate = table[hash(target, pos) & mask] - 1;
+            if (candidate >= 0 && regionMatches(base, candidate, target, pos, BLOCK)) {
+                int start = candidate;
+                int targetStart = pos;
+                // Extend the match backwards over bytes not yet emitted
+                while (start > 0 && targetStart > insertStart
+                        && base[start - 1] == target[targetStart - 1]) {
+                    start -= 1;
+                    targetStart -= 1;
+                }
+                int end = candidate + BLOCK;
+                int targetEnd = pos + BLOCK;
+                while (end < base.length && targetEnd < target.length
+                        && base[end] == target[targetEnd]) {
+                    end += 1;
+                    targetEnd += 1;
+                }
+                writeInsert(out, target, insertStart, targetStart);
+                out.write(COPY);
+                writeVarint(out, start);
+                writeVarint(out, end - start);
+                pos = targetEnd;
+                insertStart = pos;
+            } else {
+                pos += 1;
+            }
+        }
+        writeInsert(out, target, insertStart, target.length);
+        return out.toByteArray();
+    }
+
+    /** apply
+     *  Applies DELTA to BASE, returning the target it describes.
+     *
+     *  @param base the base version
+     *  @param delta a delta created against BASE
+     *  @return the target version
+     */
+    static byte[] apply(byte[] base, byte[] delta) {
+        int[] pos = {0};
+        if (readVarint(delta, pos) != base.length) {
+            throw new IllegalArgumentException("delta does not match its base");
+        }
+        byte[] target = new byte[(int) readVarint(delta, pos)];
+        int written = 0;
+        while (pos[0] < delta.length) {
+            int op = delta[pos[0]++];
+            if (op == INSERT) {
+                int length = (int) readVarint(delta, pos);
+                System.arraycopy(delta, pos[0], target, written, length);
+                pos[0] += length;
+                written += length;
+            } else if (op == COPY) {
+                int offset = (int) readVarint(delta, pos);
+                int length = (int) readVarint(delta, pos);
+                System.arraycopy(base, offset, target, written, length);
+                written += length;
+            } else {
+                throw new IllegalArgumentException("corrupt delta");
+            }
+        }
+        if (written != target.length) {
+            throw new IllegalArgumentException("corrupt delta");
+        }
+        return target;
+    }
+
+    /** buildTable
+     *  Indexes the start of every BLOCK-aligned block of BASE by its hash.
+     *  Entries hold offset + 1, so that 0 means empty; later blocks win.
+     *
+     *  @param base the base version
+     *  @return the hash table
+     */
+    private static int[] buildTable(byte[] base) {
+        int blocks = base.length / BLOCK;
+        int size = Integer.highestOneBit(Math.max(blocks, 1) * 2);
+        int[] table = new int[Math.max(size, 16)];
+        for (int offset = 0; offset + BLOCK <= base.length; offset += BLOCK) {
+            table[hash(base, offset) & (table.length - 1)] = offset + 1;
+        }
+        return table;
+    }
+
+    /** hash
+     *  Returns a hash of the BLOCK bytes of DATA starting at OFFSET.
+     *
+     *  @param data the bytes
+     *  @param offset the start of the block
+     *  @return the hash of the block
+     */
+    private static int hash(byte[] data, int offset) {
+        int h = 0;
+        for (int i = offset; i < offset + BLOCK; i += 1) {
+            h = h * 31 + (data[i] & 0xff);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /** regionMatches
+     *  Checks if LENGTH bytes of A at AOFFSET equal those of B at BOFFSET.
+     */
+    private static boolean regionMatches(byte[] a, int aOffset, byte[] b, int bOffset,
+                                         int length) {
+        if (aOffset + length > a.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i += 1) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** writeInsert
+     *  Writes an insert instruction for TARGET[FROM..TO), if it is not empty.
+     */
+    private static void writeInsert(ByteArrayOutputStream out, byte[] target, int from, int to) {
+        if (to > from) {
+            out.write(INSERT);
+            writeVarint(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    /** writeVarint
+     *  Writes VALUE to OUT as an unsigned LEB128 varint.
+     */
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /** readVarint
+     *  Reads an unsigned LEB128 varint from DATA at POS[0], advancing POS[0].
+     */
+    static long readVarint(byte[] data, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[pos[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,144 @@
+package gitlet;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/** A compressed bitmap in the style of EWAH (Enhanced Word-Aligned
+ *  Hybrid).
+ *
+ *  The bits are taken 64 at a time as words. A run of words that are all
+ *  zeros or all ones is stored as a count, and any other word as it is, so
+ *  the bitmap is stored as a sequence of
+ *
+ *      MARKER LITERAL*
+ *
+ *  where bit 0 of MARKER is the bit the run repeats, bits 1 to 32 are the
+ *  number of words in the run, and bits 33 to 63 the number of literal
+ *  words that follow it. Bits past the last word are zero.
+ *
+ *  @author Kunhua Huang
+ */
+final class EwahBitmap {
+
+    private static final long MAX_RUN = 0xffffffffL;
+    private static final long MAX_LITERALS = 0x7fffffffL;
+
+    private final long[] words;
+
+    /** Constructor for the bitmap with the given stored words. */
+    private EwahBitmap(long[] words) {
+        this.words = words;
+    }
+
+    /** of
+     * Compresses a bitmap.
+     *
+     * @param bits the bits to hold
+     * @return the compressed bitmap
+     */
+    static EwahBitmap of(BitSet bits) {
+        long[] plain = bits.toLongArray();
+        long[] out = new long[2 * plain.length + 1];
+        int size = 0;
+        int i = 0;
+        while (i < plain.length) {
+            long runBit = plain[i] == -1L ? 1 : 0;
+            long run = 0;
+            while (i < plain.length && (plain[i] == 0 || plain[i] == -1L)
+                    && (plain[i] == -1L) == (runBit == 1) && run < MAX_RUN) {
+                run += 1;
+                i += 1;
+            }
+            int marker = size;
+            size += 1;
+            long literals = 0;
+            while (i < plain.length && plain[i] != 0 && plain[i] != -1L
+                    && literals < MAX_LITERALS) {
+                out[size] = plain[i];
+                size += 1;
+                literals += 1;
+                i += 1;
+            }
+            out[marker] = runBit | (run << 1) | (literals << 33);
+        }
+        return new EwahBitmap(Arrays.copyOf(out, size));
+    }
+
+    /** toBitSet
+     * Returns the bits of this bitmap, uncompressed.
+     *
+     * @return the bits
+     */
+    BitSet toBitSet() {
+        int length = 0;
+        for (int k = 0; k < words.length; k += 1 + literals(words[k])) {
+            length += run(words[k]) + literals(words[k]);
+        }
+        long[] plain = new long[length];
+        int i = 0;
+        for (int k = 0; k < words.length; k += 1 + literals(words[k])) {
+            long marker = words[k];
+            int run = run(marker);
+            if ((marker & 1) != 0) {
+                Arrays.fill(plain, i, i + run, -1L);
+            }
+            i += run;
+            System.arraycopy(words, k + 1, plain, i, literals(marker));
+            i += literals(marker);
+        }
+        return BitSet.valueOf(plain);
+    }
+
+    /** get
+     * Returns one bit of this bitmap, without uncompressing it.
+     *
+     * @param bit the index of the bit
+     * @return true if the bit is set
+     */
+    boolean get(int bit) {
+        int target = bit >>> 6;
+        int i = 0;
+        for (int k = 0; k < words.length; k += 1 + literals(words[k])) {
+            long marker = words[k];
+            int run = run(marker);
+            if (target < i + run) {
+                return (marker & 1) != 0;
+            }
+            i += run;
+            if (target < i + literals(marker)) {
+                return (words[k + 1 + target - i] >>> (bit & 63) & 1) != 0;
+            }
+            i += literals(marker);
+        }
+        return false;
+    }
+
+    /** getWords
+     * Returns the stored form of this bitmap.
+     *
+     * @return the stored words, which must not be changed
+     */
+    long[] getWords() {
+        return words;
+    }
+
+    /** fromWords
+     * Returns the bitmap with the given stored form.
+     *
+     * @param words the stored words, which the bitmap keeps
+     * @return the bitmap
+     */
+    static EwahBitmap fromWords(long[] words) {
+        return new EwahBitmap(words);
+    }
+
+    /** Returns the number of words in the run of MARKER. */
+    private static int run(long marker) {
+        return (int) ((marker >>> 1) & MAX_RUN);
+    }
+
+    /** Returns the number of literal words after MARKER. */
+    private static int literals(long marker) {
+        return (int) (marker >>> 33);
+    }
+}
@@ -0,0 +1,40 @@
+package gitlet;
+
+import java.io.File;
+
+/** The length and modification time of a file at one moment.
+ *
+ *  Whatever keeps the contents of a .gitlet file in memory between
+ *  commands, as the daemon does, takes a stamp whenever it reads or writes
+ *  the file, and reloads the file once the stamp no longer matches, since
+ *  that means another process has changed it.
+ *
+ *  @author Kunhua Huang
+ */
+class FileStamp {
+
+    private final long length;
+    private final long lastModified;
+
+    /** Constructor for the stamp of FILE as it is now.
+     *
+     * @param file the file to stamp
+     */
+    FileStamp(File file) {
+        length = file.length();
+        lastModified = file.lastModified();
+    }
+
+    /** matches
+     * Checks if FILE still has the length and modification time it had
+     * when this stamp was taken.
+     *
+     * @param stamp the stamp to check, or null if there is none
+     * @param file the file to check
+     * @return true if the file looks unchanged since the stamp was taken
+     */
+    static boolean matches(FileStamp stamp, File file) {
+        return stamp != null && stamp.length == file.length()
+                && stamp.lastModified == file.lastModified();
+    }
+}
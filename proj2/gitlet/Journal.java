@@ -0,0 +1,496 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import static gitlet.Utils.*;
+
+/** Keeps commands on one repository apart, and makes their updates of
+ *  HEAD, the branches and the stage all-or-nothing.
+ *
+ *  While a command runs it holds an operating system lock on .gitlet/lock,
+ *  so a second gitlet process on the same repository waits for it. The
+ *  lock goes away with the process, so a crash never leaves a stale one.
+ *
+ *  Every change to HEAD, a branch or the stage goes through this class.
+ *  Changes made between begin and commit are held back and go out as one
+ *  update; any other change is an update of its own. An update is first
+ *  appended to .gitlet/journal as a record holding everything it does and
+ *  a checksum, and forced to disk together with every object written
+ *  since the last update, and only then are the files changed, each
+ *  replaced by renaming a new file over it. A command that makes one
+ *  update, as most do, syncs once. The journal is left in place when the
+ *  command ends. The next command replays it before anything else,
+ *  redoing whatever did not reach the files, and then empties it. A
+ *  record cut short is ignored together with its update, which had not
+ *  touched any file yet.
+ *
+ *  A record is LENGTH BODY CRC, where BODY is a count and then, for each
+ *  change, an operation byte, the path relative to .gitlet and, for a
+ *  write, the new contents, or for an append, the offset and the bytes.
+ *
+ *  Objects and the commit graph, path index and catalog are not journaled:
+ *  they only ever gain entries and are written before the refs that point
+ *  into them, so a crash leaves at worst something unreferenced. The
+ *  object stores report each object and pack file they write through
+ *  written, so that it is synced before any ref can name it.
+ *
+ *  @author Kunhua Huang
+ */
+class Journal {
+
+    private static final File JOURNAL = join(Repository.GITLET_DIR, "journal");
+    private static final File LOCK = join(Repository.GITLET_DIR, "lock");
+
+    /** Journal operations. */
+    private static final int WRITE = 1;
+    private static final int APPEND = 2;
+    private static final int DELETE = 3;
+
+    /** A change to one file. */
+    private static class Change {
+        private final int op;
+        private final String path;
+        private final long offset;
+        private final byte[] data;
+
+        Change(int op, String path, long offset, byte[] data) {
+            this.op = op;
+            this.path = path;
+            this.offset = offset;
+            this.data = data;
+        }
+    }
+
+    private static FileChannel lockChannel;
+    private static FileLock lock;
+    /** The journal, once the running command has written to it. */
+    private static RandomAccessFile journal;
+    /** The changes held back since begin, or null outside of one. */
+    private static List<Change> pending;
+    /** The length each file will have once the pending changes are made. */
+    private static Map<String, Long> pendingLengths;
+    /** The object and pack files written since the last sync. */
+    private static Set<File> unsynced = new LinkedHashSet<>();
+
+    /** open
+     * Takes the lock of the repository, waiting for any other command to
+     * finish, and replays the journal the last command left. Does nothing
+     * outside a repository.
+     */
+    static synchronized void open() {
+        if (lock != null || !Repository.GITLET_DIR.isDirectory()) {
+            return;
+        }
+        try {
+            lockChannel = FileChannel.open(LOCK.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+            lock = lockChannel.lock();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (JOURNAL.exists()) {
+            replay(Repository.GITLET_DIR);
+        }
+    }
+
+    /** lock
+     * Takes the lock of another repository, such as a remote being pushed
+     * to or fetched from, waiting for any command on it to finish, and
+     * replays the journal its last command left. Nothing is journaled in
+     * that repository; its lock only keeps its commands, and other pushes
+     * and fetches, away until unlock.
+     *
+     * @param gitletDir the .gitlet directory of the repository
+     * @return the lock, or null if the repository is this one
+     */
+    static FileLock lock(File gitletDir) {
+        FileLock other = null;
+        try {
+            if (gitletDir.getCanonicalFile().equals(
+                    Repository.GITLET_DIR.getCanonicalFile())) {
+                return null;
+            }
+            other = FileChannel.open(join(gitletDir, "lock").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE).lock();
+            if (join(gitletDir, "journal").exists()) {
+                replay(gitletDir);
+            }
+            return other;
+        } catch (IOException excp) {
+            unlock(other);
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (RuntimeException excp) {
+            unlock(other);
+            throw excp;
+        }
+    }
+
+    /** unlock
+     * Releases the lock of another repository taken by lock.
+     *
+     * @param other the lock, or null
+     */
+    static void unlock(FileLock other) {
+        if (other == null) {
+            return;
+        }
+        try {
+            other.release();
+            other.channel().close();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** close
+     * Closes the journal if the command wrote to it, and releases the lock.
+     */
+    static synchronized void close() {
+        pending = null;
+        try {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+            if (lock != null) {
+                lock.release();
+                lockChannel.close();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            lock = null;
+            lockChannel = null;
+        }
+    }
+
+    /** begin
+     * Starts holding back changes, so that those up to the next commit go
+     * out as one update.
+     */
+    static synchronized void begin() {
+        pending = new ArrayList<>();
+        pendingLengths = new HashMap<>();
+    }
+
+    /** commit
+     * Records the changes held back since begin as one update, and makes
+     * them.
+     */
+    static synchronized void commit() {
+        List<Change> changes = pending;
+        pending = null;
+        if (changes != null && !changes.isEmpty()) {
+            record(changes);
+        }
+    }
+
+    /** write
+     * Replaces the contents of a file.
+     *
+     * @param file the file to write
+     * @param contents its new contents
+     */
+    static synchronized void write(File file, byte[] contents) {
+        change(file, new Change(WRITE, pathOf(file), 0, contents));
+    }
+
+    /** write
+     * Replaces the contents of a file with a string.
+     *
+     * @param file the file to write
+     * @param contents its new contents
+     */
+    static void write(File file, String contents) {
+        write(file, contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** append
+     * Appends bytes to a file.
+     *
+     * @param file the file to append to
+     * @param data the bytes to append
+     */
+    static synchronized void append(File file, byte[] data) {
+        String path = pathOf(file);
+        long offset = pendingLengths != null && pendingLengths.containsKey(path)
+                ? pendingLengths.get(path) : file.length();
+        change(file, new Change(APPEND, path, offset, data));
+    }
+
+    /** delete
+     * Deletes a file.
+     *
+     * @param file the file to delete
+     */
+    static synchronized void delete(File file) {
+        change(file, new Change(DELETE, pathOf(file), 0, null));
+    }
+
+    /** written
+     * Notes a new object or pack file, which is forced to disk before the
+     * next update is made.
+     *
+     * @param file the file written
+     */
+    static synchronized void written(File file) {
+        unsynced.add(file);
+    }
+
+    /** sync
+     * Forces every file noted by written to disk, and the directories that
+     * name them, so that nothing the refs are about to point at can be lost
+     * in a crash.
+     */
+    static synchronized void sync() {
+        Set<File> dirs = new LinkedHashSet<>();
+        for (File file : unsynced) {
+            if (file.exists()) {
+                force(file.toPath(), false);
+                dirs.add(file.getAbsoluteFile().getParentFile());
+            }
+        }
+        for (File dir : dirs) {
+            force(dir.toPath(), true);
+        }
+        unsynced.clear();
+    }
+
+    /** force
+     * Forces a file or directory to disk.
+     */
+    private static void force(Path path, boolean isDirectory) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException excp) {
+            // Some systems cannot open a directory, and sync its entries
+            // with the files in it
+            if (!isDirectory) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+    }
+
+    /** change
+     * Holds a change back if an update is open, and otherwise records it
+     * as an update of its own and makes it. Files outside the repository,
+     * or changed while no command holds the lock, are changed right away.
+     * A change that cannot be made, such as writing a file into a missing
+     * directory, is refused here, before anything of it is journaled.
+     */
+    private static void change(File file, Change change) {
+        if (change.op != DELETE && !file.getAbsoluteFile().getParentFile().isDirectory()) {
+            throw new IllegalArgumentException("no directory for " + file);
+        }
+        if (lock == null || change.path == null) {
+            sync();
+            apply(file, change);
+        } else if (pending != null) {
+            pending.add(change);
+            long length = change.op == WRITE ? change.data.length
+                    : change.op == APPEND ? change.offset + change.data.length : 0;
+            pendingLengths.put(change.path, length);
+        } else {
+            List<Change> changes = new ArrayList<>();
+            changes.add(change);
+            record(changes);
+        }
+    }
+
+    /** record
+     * Appends an update to the journal and forces it to disk, after the
+     * objects it may point at, then makes its changes. If one of
+     * them fails after all, the record is cut off the journal again, so
+     * that no later command replays it.
+     */
+    private static void record(List<Change> changes) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(body)) {
+            out.writeInt(changes.size());
+            for (Change change : changes) {
+                out.writeByte(change.op);
+                out.writeUTF(change.path);
+                if (change.op == APPEND) {
+                    out.writeLong(change.offset);
+                }
+                if (change.op != DELETE) {
+                    out.writeInt(change.data.length);
+                    out.write(change.data);
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body.toByteArray());
+        sync();
+        long start;
+        try {
+            if (journal == null) {
+                journal = new RandomAccessFile(JOURNAL, "rw");
+                journal.seek(journal.length());
+            }
+            start = journal.getFilePointer();
+            journal.writeInt(body.size());
+            journal.write(body.toByteArray());
+            journal.writeLong(crc.getValue());
+            journal.getFD().sync();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try {
+            for (Change change : changes) {
+                apply(join(Repository.GITLET_DIR, change.path), change);
+            }
+        } catch (IllegalArgumentException excp) {
+            try {
+                journal.setLength(start);
+            } catch (IOException ignored) {
+                // The record stays, and the next command makes it again
+            }
+            throw excp;
+        }
+    }
+
+    /** replay
+     * Makes again every change of each whole record in the journal of the
+     * repository in DIR, then empties it. The changes are idempotent: a write or delete leaves the
+     * same file however often it is made, and an append first cuts the
+     * file back to the offset it was made at.
+     */
+    private static void replay(File dir) {
+        File file = join(dir, "journal");
+        byte[] records = readContents(file);
+        int pos = 0;
+        while (pos + 4 <= records.length) {
+            int length = ByteBuffer.wrap(records, pos, 4).getInt();
+            if (length < 0 || pos + 4 + length + 8 > records.length) {
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(records, pos + 4, length);
+            if (ByteBuffer.wrap(records, pos + 4 + length, 8).getLong() != crc.getValue()) {
+                break;
+            }
+            for (Change change : readChanges(records, pos + 4, length)) {
+                apply(join(dir, change.path), change);
+            }
+            pos += 4 + length + 8;
+        }
+        file.delete();
+    }
+
+    /** readChanges
+     * Returns the changes held in the body of a record.
+     */
+    private static List<Change> readChanges(byte[] records, int offset, int length) {
+        List<Change> changes = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(records, offset, length))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i += 1) {
+                int op = in.readByte();
+                String path = in.readUTF();
+                long at = op == APPEND ? in.readLong() : 0;
+                byte[] data = null;
+                if (op != DELETE) {
+                    data = new byte[in.readInt()];
+                    in.readFully(data);
+                }
+                changes.add(new Change(op, path, at, data));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return changes;
+    }
+
+    /** apply
+     * Makes one change to FILE.
+     */
+    private static void apply(File file, Change change) {
+        switch (change.op) {
+            case WRITE:
+                replace(file, change.data);
+                break;
+            case APPEND:
+                try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                    out.setLength(Math.min(out.length(), change.offset));
+                    out.seek(out.length());
+                    out.write(change.data);
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+                break;
+            default:
+                file.delete();
+                break;
+        }
+    }
+
+    /** replace
+     * Replaces the contents of a file at once, by writing a temporary file
+     * and renaming it over the old one, so that anyone reading the file
+     * sees either the old contents or the new, never part of them. The
+     * temporary file goes in the .gitlet directory the file is in, so that
+     * a crash can never leave one among the branches.
+     *
+     * @param file the file to replace
+     * @param contents its new contents
+     */
+    static void replace(File file, byte[] contents) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        for (File up = dir; up != null; up = up.getParentFile()) {
+            if (up.getName().equals(".gitlet")) {
+                dir = up;
+                break;
+            }
+        }
+        File tmp;
+        try {
+            tmp = File.createTempFile("tmp_", null, dir);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        writeContents(tmp, (Object) contents);
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new IllegalArgumentException("cannot replace " + file + ": "
+                    + excp.getMessage());
+        }
+    }
+
+    /** pathOf
+     * Returns the path of FILE relative to the .gitlet directory, or null
+     * if it is outside of it.
+     */
+    private static String pathOf(File file) {
+        String dir = Repository.GITLET_DIR.getAbsolutePath() + File.separator;
+        String path = file.getAbsolutePath();
+        return path.startsWith(dir) ? path.substring(dir.length()) : null;
+    }
+}
@@ -0,0 +1,374 @@
+package gitlet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/** Finds the lines that differ between two versions of a file, for merge
+ *  and the diff command.
+ *
+ *  Lines are first numbered so that equal lines get equal numbers, and the
+ *  comparison works on those numbers. The main algorithm is histogram
+ *  diff: after trimming the common prefix and suffix of a region, it finds
+ *  the longest run of equal lines built around the line that occurs least
+ *  often in the region, keeps that run as unchanged, and goes on with the
+ *  parts before and after it. Rare lines make good anchors, so this
+ *  follows the structure of source files well and takes little more than
+ *  linear time. A region whose common lines are all too frequent to be
+ *  anchors falls back to Myers' O(ND) algorithm, and a region that would
+ *  cost Myers more than MAX_COST steps is taken as replaced outright.
+ *
+ *  Lines are kept as the bytes of the file, decoded as ISO-8859-1 so that
+ *  any file round-trips exactly, each with its '\n' terminator.
+ *
+ *  @author Kunhua Huang
+ */
+class LineDiff {
+
+    /** Lines occurring more often than this in a region are not anchors. */
+    private static final int MAX_CHAIN = 64;
+    /** The most edits Myers' algorithm looks for in one region. */
+    private static final int MAX_COST = 1024;
+    /** The number of unchanged lines shown around each change. */
+    private static final int CONTEXT = 3;
+
+    /** A change: lines [beginA, endA) of the old version were replaced by
+     *  lines [beginB, endB) of the new one. Either range may be empty. */
+    static class Edit {
+        final int beginA;
+        final int endA;
+        final int beginB;
+        final int endB;
+
+        Edit(int beginA, int endA, int beginB, int endB) {
+            this.beginA = beginA;
+            this.endA = endA;
+            this.beginB = beginB;
+            this.endB = endB;
+        }
+    }
+
+    private final int[] a;
+    private final int[] b;
+    /** The occurrences in the current region of A of each line number. */
+    private final int[] count;
+    /** The last position in the current region of A of each line number. */
+    private final int[] head;
+    /** The previous position of the same line, for each position of A. */
+    private final int[] prev;
+    private final List<Edit> edits = new ArrayList<>();
+
+    /** Constructor for a diff between the numbered lines A and B, of which
+     *  there are LINES different ones. */
+    private LineDiff(int[] a, int[] b, int lines) {
+        this.a = a;
+        this.b = b;
+        count = new int[lines];
+        head = new int[lines];
+        prev = new int[a.length];
+        Arrays.fill(head, -1);
+    }
+
+    /** splitLines
+     * Splits file contents into lines, each with its '\n' terminator. Only
+     * a last line may lack one.
+     *
+     * @param contents the contents of a file
+     * @return the lines
+     */
+    static List<String> splitLines(byte[] contents) {
+        String text = new String(contents, StandardCharsets.ISO_8859_1);
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', start)) {
+            lines.add(text.substring(start, i + 1));
+            start = i + 1;
+        }
+        if (start < text.length()) {
+            lines.add(text.substring(start));
+        }
+        return lines;
+    }
+
+    /** joinLines
+     * Returns the file contents made of the given lines.
+     *
+     * @param lines the lines, each with its terminator
+     * @return the contents
+     */
+    static byte[] joinLines(List<String> lines) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line);
+        }
+        return text.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /** diff
+     * Returns the changes that turn lines A into lines B, in order. Changes
+     * are never adjacent: any two are separated by an unchanged line.
+     *
+     * @param a the old lines
+     * @param b the new lines
+     * @return the edits
+     */
+    static List<Edit> diff(List<String> a, List<String> b) {
+        Map<String, Integer> numbers = new HashMap<>();
+        int[] x = number(a, numbers);
+        int[] y = number(b, numbers);
+        LineDiff diff = new LineDiff(x, y, numbers.size());
+        Deque<int[]> regions = new ArrayDeque<>();
+        regions.push(new int[] {0, x.length, 0, y.length});
+        while (!regions.isEmpty()) {
+            int[] region = regions.pop();
+            diff.histogram(region[0], region[1], region[2], region[3], regions);
+        }
+        return coalesce(diff.edits);
+    }
+
+    /** number
+     * Returns the number of each line, numbering lines not seen before.
+     */
+    private static int[] number(List<String> lines, Map<String, Integer> numbers) {
+        int[] result = new int[lines.size()];
+        for (int i = 0; i < result.length; i += 1) {
+            Integer n = numbers.get(lines.get(i));
+            if (n == null) {
+                n = numbers.size();
+                numbers.put(lines.get(i), n);
+            }
+            result[i] = n;
+        }
+        return result;
+    }
+
+    /** histogram
+     * Diffs lines [as, ae) of A against [bs, be) of B, pushing the regions
+     * left on either side of the chosen anchor onto REGIONS.
+     */
+    private void histogram(int as, int ae, int bs, int be, Deque<int[]> regions) {
+        while (as < ae && bs < be && a[as] == b[bs]) {
+            as += 1;
+            bs += 1;
+        }
+        while (as < ae && bs < be && a[ae - 1] == b[be - 1]) {
+            ae -= 1;
+            be -= 1;
+        }
+        if (as == ae || bs == be) {
+            if (as < ae || bs < be) {
+                edits.add(new Edit(as, ae, bs, be));
+            }
+            return;
+        }
+
+        for (int i = as; i < ae; i += 1) {
+            count[a[i]] += 1;
+            prev[i] = head[a[i]];
+            head[a[i]] = i;
+        }
+        int bestA = -1;
+        int bestB = -1;
+        int bestLength = 0;
+        int bestCount = MAX_CHAIN + 1;
+        boolean common = false;
+        // Twice the middle of B's region, where equally good anchors are
+        // preferred so that the regions left on either side stay balanced
+        int middle = bs + be;
+        for (int j = bs; j < be;) {
+            int next = j + 1;
+            int occurrences = count[b[j]];
+            common |= occurrences > 0;
+            if (occurrences > 0 && occurrences <= bestCount) {
+                for (int i = head[b[j]]; i >= as; i = prev[i]) {
+                    int startA = i;
+                    int startB = j;
+                    int endA = i + 1;
+                    int endB = j + 1;
+                    int lowest = occurrences;
+                    while (startA > as && startB > bs && a[startA - 1] == b[startB - 1]) {
+                        startA -= 1;
+                        startB -= 1;
+                        lowest = Math.min(lowest, count[a[startA]]);
+                    }
+                    while (endA < ae && endB < be && a[endA] == b[endB]) {
+                        lowest = Math.min(lowest, count[a[endA]]);
+                        endA += 1;
+                        endB += 1;
+                    }
+                    if (lowest < bestCount || (lowest == bestCount
+                            && (endA - startA > bestLength || (endA - startA == bestLength
+                            && Math.abs(startB + endB - middle) < Math.abs(2 * bestB
+                            + bestLength - middle))))) {
+                        bestA = startA;
+                        bestB = startB;
+                        bestLength = endA - startA;
+                        bestCount = lowest;
+                    }
+                    next = Math.max(next, endB);
+                }
+            }
+            j = next;
+        }
+        for (int i = as; i < ae; i += 1) {
+            count[a[i]] = 0;
+            head[a[i]] = -1;
+        }
+
+        if (bestA >= 0) {
+            regions.push(new int[] {bestA + bestLength, ae, bestB + bestLength, be});
+            regions.push(new int[] {as, bestA, bs, bestB});
+        } else if (common) {
+            myers(as, ae, bs, be);
+        } else {
+            edits.add(new Edit(as, ae, bs, be));
+        }
+    }
+
+    /** myers
+     * Diffs lines [as, ae) of A against [bs, be) of B with Myers' greedy
+     * algorithm, or takes the whole region as replaced if that would need
+     * more than MAX_COST edits.
+     */
+    private void myers(int as, int ae, int bs, int be) {
+        int n = ae - as;
+        int m = be - bs;
+        int max = Math.min(n + m, MAX_COST);
+        int offset = max + 1;
+        int[] v = new int[2 * max + 3];
+        List<int[]> trace = new ArrayList<>();
+        for (int d = 0; d <= max; d += 1) {
+            trace.add(Arrays.copyOfRange(v, offset - d - 1, offset + d + 2));
+            for (int k = -d; k <= d; k += 2) {
+                int x = (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1]))
+                        ? v[offset + k + 1] : v[offset + k - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[as + x] == b[bs + y]) {
+                    x += 1;
+                    y += 1;
+                }
+                v[offset + k] = x;
+                if (x >= n && y >= m) {
+                    backtrack(trace, d, as, ae, bs, be);
+                    return;
+                }
+            }
+        }
+        edits.add(new Edit(as, ae, bs, be));
+    }
+
+    /** backtrack
+     * Recovers the edits of a Myers search that reached the end of the
+     * region after D steps. TRACE holds, for each step, the furthest points
+     * reached before it.
+     */
+    private void backtrack(List<int[]> trace, int d, int as, int ae, int bs, int be) {
+        int x = ae - as;
+        int y = be - bs;
+        for (; d > 0; d -= 1) {
+            int[] v = trace.get(d);
+            int shift = d + 1;
+            int k = x - y;
+            int prevK = (k == -d || (k != d && v[shift + k - 1] < v[shift + k + 1]))
+                    ? k + 1 : k - 1;
+            int prevX = v[shift + prevK];
+            int prevY = prevX - prevK;
+            if (prevK == k + 1) {
+                edits.add(new Edit(as + prevX, as + prevX, bs + prevY, bs + prevY + 1));
+            } else {
+                edits.add(new Edit(as + prevX, as + prevX + 1, bs + prevY, bs + prevY));
+            }
+            x = prevX;
+            y = prevY;
+        }
+    }
+
+    /** coalesce
+     * Sorts edits and merges those that touch into one.
+     */
+    private static List<Edit> coalesce(List<Edit> edits) {
+        edits.sort((e1, e2) -> e1.beginA != e2.beginA ? Integer.compare(e1.beginA, e2.beginA)
+                : Integer.compare(e1.beginB, e2.beginB));
+        List<Edit> result = new ArrayList<>();
+        for (Edit edit : edits) {
+            Edit last = result.isEmpty() ? null : result.get(result.size() - 1);
+            if (last != null && last.endA == edit.beginA && last.endB == edit.beginB) {
+                result.set(result.size() - 1,
+                        new Edit(last.beginA, edit.endA, last.beginB, edit.endB));
+            } else {
+                result.add(edit);
+            }
+        }
+        return result;
+    }
+
+    /** unified
+     * Returns the changes between two versions of a file in unified diff
+     * format, with CONTEXT unchanged lines around each change.
+     *
+     * @param oldName the name of the old version, as shown after ---
+     * @param newName the name of the new version, as shown after +++
+     * @param a the old lines
+     * @param b the new lines
+     * @return the diff, or an empty string if the versions are equal
+     */
+    static String unified(String oldName, String newName, List<String> a, List<String> b) {
+        List<Edit> edits = diff(a, b);
+        if (edits.isEmpty()) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder();
+        out.append("--- ").append(oldName).append('\n');
+        out.append("+++ ").append(newName).append('\n');
+        int first = 0;
+        while (first < edits.size()) {
+            int last = first;
+            while (last + 1 < edits.size()
+                    && edits.get(last + 1).beginA - edits.get(last).endA <= 2 * CONTEXT) {
+                last += 1;
+            }
+            Edit begin = edits.get(first);
+            Edit end = edits.get(last);
+            int startA = Math.max(0, begin.beginA - CONTEXT);
+            int startB = begin.beginB - (begin.beginA - startA);
+            int endA = Math.min(a.size(), end.endA + CONTEXT);
+            int endB = end.endB + (endA - end.endA);
+            out.append("@@ -").append(range(startA, endA - startA))
+                    .append(" +").append(range(startB, endB - startB)).append(" @@\n");
+            int pos = startA;
+            for (int i = first; i <= last; i += 1) {
+                Edit edit = edits.get(i);
+                appendLines(out, ' ', a, pos, edit.beginA);
+                appendLines(out, '-', a, edit.beginA, edit.endA);
+                appendLines(out, '+', b, edit.beginB, edit.endB);
+                pos = edit.endA;
+            }
+            appendLines(out, ' ', a, pos, endA);
+            first = last + 1;
+        }
+        return out.toString();
+    }
+
+    /** range
+     * Formats the start and length of a hunk as unified diffs do.
+     */
+    private static String range(int start, int length) {
+        if (length == 1) {
+            return String.valueOf(start + 1);
+        }
+        return (length == 0 ? start : start + 1) + "," + length;
+    }
+
+    /** appendLines
+     * Appends lines [from, to) of LINES, each after PREFIX.
+     */
+    private static void appendLines(StringBuilder out, char prefix, List<String> lines,
+                                    int from, int to) {
+        for (int i = from; i < to; i += 1) {
+            String line = lines.get(i);
+            out.append(prefix).append(line);
+            if (!line.endsWith("\n")) {
+                out.append("\n\\ No newline at end of file\n");
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Merges two versions of a file line by line against the version they
+ *  both came from.
+ *
+ *  Each side is diffed against the base. Changes are grouped into chunks
+ *  of base lines: a chunk grows as long as a change of either side
+ *  overlaps it, where an insertion overlaps a change that starts or ends
+ *  at its position. A chunk changed by one side only takes that side's
+ *  lines; a chunk both sides changed the same way takes those lines; any
+ *  other chunk is a conflict, written as
+ *
+ *      <<<<<<< HEAD
+ *      the current side's lines
+ *      =======
+ *      the given side's lines
+ *      >>>>>>>
+ *
+ *  Lines outside every chunk are unchanged on both sides and copied from
+ *  the base.
+ *
+ *  @author Kunhua Huang
+ */
+class LineMerge {
+
+    /** The merged lines. */
+    private final List<String> lines = new ArrayList<>();
+    private boolean conflict;
+
+    /** merge
+     * Merges OURS and THEIRS, the current and given versions of a file,
+     * against BASE, the version at their split point.
+     *
+     * @param base the lines of the split point version
+     * @param ours the lines of the current version
+     * @param theirs the lines of the given version
+     * @return the merge
+     */
+    static LineMerge merge(List<String> base, List<String> ours, List<String> theirs) {
+        LineMerge result = new LineMerge();
+        List<LineDiff.Edit> oursEdits = LineDiff.diff(base, ours);
+        List<LineDiff.Edit> theirsEdits = LineDiff.diff(base, theirs);
+        int i = 0;
+        int j = 0;
+        int copied = 0;
+        // The number of lines each side has gained before the current chunk
+        int oursShift = 0;
+        int theirsShift = 0;
+        while (i < oursEdits.size() || j < theirsEdits.size()) {
+            boolean oursFirst = j == theirsEdits.size() || (i < oursEdits.size()
+                    && oursEdits.get(i).beginA <= theirsEdits.get(j).beginA);
+            LineDiff.Edit edit = oursFirst ? oursEdits.get(i) : theirsEdits.get(j);
+            int start = edit.beginA;
+            int end = edit.endA;
+            int firstOurs = i;
+            int firstTheirs = j;
+            boolean grew = true;
+            while (grew) {
+                grew = false;
+                if (i < oursEdits.size() && overlaps(oursEdits.get(i), start, end)) {
+                    end = Math.max(end, oursEdits.get(i).endA);
+                    i += 1;
+                    grew = true;
+                }
+                if (j < theirsEdits.size() && overlaps(theirsEdits.get(j), start, end)) {
+                    end = Math.max(end, theirsEdits.get(j).endA);
+                    j += 1;
+                    grew = true;
+                }
+            }
+
+            result.lines.addAll(base.subList(copied, start));
+            copied = end;
+            int oursGain = gain(oursEdits, firstOurs, i);
+            int theirsGain = gain(theirsEdits, firstTheirs, j);
+            List<String> oursLines = ours.subList(start + oursShift, end + oursShift + oursGain);
+            List<String> theirsLines = theirs.subList(start + theirsShift,
+                    end + theirsShift + theirsGain);
+            if (firstTheirs == j) {
+                result.lines.addAll(oursLines);
+            } else if (firstOurs == i || oursLines.equals(theirsLines)) {
+                result.lines.addAll(theirsLines);
+            } else {
+                result.conflict = true;
+                result.lines.add("<<<<<<< HEAD\n");
+                result.lines.addAll(oursLines);
+                result.lines.add("=======\n");
+                result.lines.addAll(theirsLines);
+                result.lines.add(">>>>>>>\n");
+            }
+            oursShift += oursGain;
+            theirsShift += theirsGain;
+        }
+        result.lines.addAll(base.subList(copied, base.size()));
+        return result;
+    }
+
+    /** overlaps
+     * Checks if an edit overlaps the chunk of base lines [start, end).
+     */
+    private static boolean overlaps(LineDiff.Edit edit, int start, int end) {
+        if (edit.beginA == edit.endA || start == end) {
+            return edit.beginA <= end && edit.endA >= start;
+        }
+        return edit.beginA < end && edit.endA > start;
+    }
+
+    /** gain
+     * Returns how many lines the edits [from, to) add in all.
+     */
+    private static int gain(List<LineDiff.Edit> edits, int from, int to) {
+        int total = 0;
+        for (int k = from; k < to; k += 1) {
+            LineDiff.Edit edit = edits.get(k);
+            total += (edit.endB - edit.beginB) - (edit.endA - edit.beginA);
+        }
+        return total;
+    }
+
+    /** getLines
+     * Returns the merged lines.
+     *
+     * @return the lines, conflicts included
+     */
+    List<String> getLines() {
+        return lines;
+    }
+
+    /** hasConflict
+     * Checks if any chunk conflicted.
+     *
+     * @return true if the merge has conflict markers
+     */
+    boolean hasConflict() {
+        return conflict;
+    }
+}
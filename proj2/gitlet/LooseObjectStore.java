@@ -0,0 +1,331 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/** An object store that keeps each object in its own file.
+ *
+ *  The object with id ID lives in DIR/ID[0..2]/ID[2..], so no directory
+ *  grows much beyond 1/256th of the store. The file holds the
+ *  deflate-compressed bytes of a header "TYPE LENGTH\0" followed by the
+ *  payload, so the type and size of an object can be found by inflating
+ *  only the first few bytes.
+ *
+ *  @author Kunhua Huang
+ */
+public class LooseObjectStore implements ObjectStore {
+
+    /** The longest header we accept: a type, a space, a long and a NUL. */
+    private static final int MAX_HEADER = 32;
+
+    private final File dir;
+
+    /** Constructor for a loose object store.
+     *
+     * @param dir the directory holding the objects
+     */
+    public LooseObjectStore(File dir) {
+        this.dir = dir;
+    }
+
+    /** fileOf
+     * Returns the file that holds the object with the given id.
+     *
+     * @param id the full id of the object
+     * @return the file for that object
+     */
+    private File fileOf(String id) {
+        return join(dir, id.substring(0, 2), id.substring(2));
+    }
+
+    @Override
+    public boolean contains(String id) {
+        return id.length() == UID_LENGTH && fileOf(id).isFile();
+    }
+
+    @Override
+    public String typeOf(String id) {
+        try (DataInputStream in = inflate(id)) {
+            return readHeader(in)[0];
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    @Override
+    public byte[] read(String id, String type) {
+        try (DataInputStream in = inflate(id)) {
+            long length = payloadLength(id, type, in);
+            if (length > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException(id + " is too large to read into memory");
+            }
+            byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+            return payload;
+        } catch (IOException | NumberFormatException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    @Override
+    public InputStream open(String id, String type) {
+        try {
+            DataInputStream in = inflate(id);
+            try {
+                payloadLength(id, type, in);
+                return in;
+            } catch (IOException | RuntimeException excp) {
+                in.close();
+                throw excp;
+            }
+        } catch (IOException | NumberFormatException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** openBlob
+     * Opens the blob with the given id as a stream over its whole contents.
+     * A blob stored as a ChunkedBlob is put together from its chunks,
+     * which are read from CHUNKS.
+     *
+     * @param id the full id of the blob
+     * @param chunks the object store holding the chunks
+     * @return a stream over the contents of the blob
+     */
+    InputStream openBlob(String id, ObjectStore chunks) {
+        try {
+            DataInputStream in = inflate(id);
+            try {
+                String[] header = readHeader(in);
+                if (header[0].equals(CHUNKED)) {
+                    byte[] list = new byte[Integer.parseInt(header[1])];
+                    in.readFully(list);
+                    in.close();
+                    return ChunkedBlob.fromBytes(list).open(chunks);
+                }
+                if (!header[0].equals(BLOB)) {
+                    throw new IllegalArgumentException(id + " is not a " + BLOB);
+                }
+                return in;
+            } catch (IOException | RuntimeException excp) {
+                in.close();
+                throw excp;
+            }
+        } catch (IOException | NumberFormatException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    @Override
+    public long sizeOf(String id) {
+        try (DataInputStream in = inflate(id)) {
+            return Long.parseLong(readHeader(in)[1]);
+        } catch (IOException | NumberFormatException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    @Override
+    public void write(String type, String id, byte[] payload) {
+        write(type, id, new ByteArrayInputStream(payload), payload.length);
+    }
+
+    @Override
+    public void write(String type, String id, InputStream payload, long length) {
+        File file = fileOf(id);
+        if (file.exists()) {
+            try {
+                payload.close();
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            return;
+        }
+        // Compress into a temporary file first, so that an interrupted
+        // write never leaves a truncated object behind. The name is unique,
+        // so that several threads can write the same object at once.
+        dir.mkdirs();
+        File tmp;
+        try {
+            tmp = File.createTempFile("tmp_", null, dir);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        // A blob is named after the SHA-1 of its contents, which were read
+        // once already to find it; they are hashed again as they are
+        // copied, so that a file changed in between is never stored under
+        // the id of its old contents
+        MessageDigest md;
+        try {
+            md = type.equals(BLOB) ? MessageDigest.getInstance("SHA-1") : null;
+        } catch (NoSuchAlgorithmException excp) {
+            tmp.delete();
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+        try (InputStream in = md == null ? payload : new DigestInputStream(payload, md);
+             OutputStream out = new DeflaterOutputStream(new BufferedOutputStream(
+                     new FileOutputStream(tmp), BUFFER_SIZE))) {
+            out.write(header(type, length));
+            byte[] buf = new byte[BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (n < 0) {
+                    throw new IOException("object " + id + " is shorter than " + length);
+                }
+                out.write(buf, 0, n);
+                remaining -= n;
+            }
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (md != null && !toHex(md.digest(), 0, UID_LENGTH / 2).equals(id)) {
+            tmp.delete();
+            throw new IllegalArgumentException("the contents of blob " + id
+                    + " changed while it was written");
+        }
+        file.getParentFile().mkdirs();
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            if (!file.exists()) {
+                throw new IllegalArgumentException("cannot write object " + id);
+            }
+            return;
+        }
+        Journal.written(file);
+    }
+
+    /** delete
+     * Deletes the object with the given id, and its fan-out folder once
+     * that is empty.
+     *
+     * @param id the full id of the object
+     */
+    void delete(String id) {
+        File file = fileOf(id);
+        file.delete();
+        file.getParentFile().delete();
+    }
+
+    @Override
+    public List<String> list(String prefix) {
+        List<String> ids = new ArrayList<>();
+        if (prefix.length() >= 2) {
+            addIds(ids, prefix.substring(0, 2), prefix);
+        } else {
+            String[] folders = dir.list();
+            if (folders != null) {
+                Arrays.sort(folders);
+                for (String folder : folders) {
+                    if (folder.length() == 2 && folder.startsWith(prefix)) {
+                        addIds(ids, folder, prefix);
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    /** addIds
+     * Adds to IDS the ids of the objects in one fan-out folder that start
+     * with PREFIX.
+     *
+     * @param ids the list to add to
+     * @param folder the name of the fan-out folder
+     * @param prefix the prefix of the ids to add
+     */
+    private void addIds(List<String> ids, String folder, String prefix) {
+        List<String> names = plainFilenamesIn(join(dir, folder));
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            String id = folder + name;
+            if (id.startsWith(prefix)) {
+                ids.add(id);
+            }
+        }
+    }
+
+    /** inflate
+     * Opens the object with the given id for reading its inflated bytes.
+     *
+     * @param id the full id of the object
+     * @return a stream over the header and payload of the object
+     */
+    private DataInputStream inflate(String id) throws IOException {
+        File file = fileOf(id);
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("no object " + id);
+        }
+        return new DataInputStream(new InflaterInputStream(
+                new BufferedInputStream(openContents(file), BUFFER_SIZE)));
+    }
+
+    /** payloadLength
+     * Reads the header of object ID from IN, checking that it is of the
+     * given type, and leaves IN positioned at the payload.
+     *
+     * @return the length of the payload
+     */
+    private static long payloadLength(String id, String type, InputStream in)
+            throws IOException {
+        String[] header = readHeader(in);
+        if (!header[0].equals(type)) {
+            throw new IllegalArgumentException(id + " is not a " + type);
+        }
+        return Long.parseLong(header[1]);
+    }
+
+    /** header
+     * Returns the header for an object of the given type and length.
+     *
+     * @param type the type of the object
+     * @param length the length of the payload
+     * @return the header bytes
+     */
+    static byte[] header(String type, long length) {
+        return (type + " " + length + "\0").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** readHeader
+     * Reads a header from IN, leaving IN positioned at the payload.
+     *
+     * @param in the stream to read from
+     * @return the type and the length of the object, as strings
+     */
+    static String[] readHeader(InputStream in) throws IOException {
+        StringBuilder header = new StringBuilder();
+        int c;
+        while ((c = in.read()) > 0) {
+            header.append((char) c);
+            if (header.length() > MAX_HEADER) {
+                throw new IOException("corrupt object header");
+            }
+        }
+        String[] parts = header.toString().split(" ");
+        if (c < 0 || parts.length != 2) {
+            throw new IOException("corrupt object header");
+        }
+        return parts;
+    }
+}
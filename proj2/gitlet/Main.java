@@ -1,6 +1,7 @@
 package gitlet;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /** Driver class for Gitlet, a subset of the Git version-control system.
  *  @author Kunhua Huang
@@ -15,6 +16,55 @@ public class Main {
             System.out.println("Please enter a command.");
             System.exit(0);
         }
+        boolean local = args[0].equals("init")
+                || (args[0].equals("daemon") && args.length == 1);
+        if (!local && Daemon.forward(args)) {
+            return;
+        }
+        try {
+            run(args);
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        }
+        reportCacheStats();
+    }
+
+    /** reportCacheStats
+     *  Prints the object cache's hit and miss counts to standard error if
+     *  the gitlet.cacheStats system property is set.
+     */
+    static void reportCacheStats() {
+        if (Boolean.getBoolean("gitlet.cacheStats")) {
+            System.err.println(Repository.cacheStats());
+        }
+    }
+
+    /** run
+     *  Runs one command, here or in the daemon. Errors are thrown as a
+     *  GitletException holding the message to print.
+     *
+     *  @param args the command and its operands
+     */
+    static void run(String[] args) {
+        if (args[0].equals("init") || args[0].equals("daemon")) {
+            dispatch(args);
+            return;
+        }
+        // Commands on a repository take turns, and journal their updates
+        Journal.open();
+        try {
+            dispatch(args);
+        } finally {
+            Journal.close();
+        }
+    }
+
+    /** dispatch
+     *  Runs the command named by the first argument.
+     *
+     *  @param args the command and its operands
+     */
+    private static void dispatch(String[] args) {
         String firstArg = args[0];
         switch(firstArg) {
             case "init":
@@ -22,13 +72,19 @@ public class Main {
                 try {
                     Repository.init();
                 } catch (IOException e) {
-                    System.out.println("IOException occurred.");
-                    System.exit(0);
+                    throw Utils.error("IOException occurred.");
                 }
                 break;
             case "add":
-                validArgs(args, 2);
-                Repository.add(args[1]);
+                if (args.length < 2) {
+                    throw Utils.error("Incorrect operands.");
+                }
+                if (args[1].equals("-A")) {
+                    validArgs(args, 2);
+                    Repository.addAll();
+                } else {
+                    Repository.add(Arrays.copyOfRange(args, 1, args.length));
+                }
                 break;
             case "commit":
                 validArgs(args, 2);
@@ -39,8 +95,13 @@ public class Main {
                 Repository.rm(args[1]);
                 break;
             case "log":
-                validArgs(args, 1);
-                Repository.log();
+                if (args.length == 1) {
+                    Repository.log();
+                } else if (args.length == 3 && args[1].equals("--")) {
+                    Repository.log(args[2]);
+                } else {
+                    throw Utils.error("Incorrect operands.");
+                }
                 break;
             case "global-log":
                 validArgs(args, 1);
@@ -54,6 +115,15 @@ public class Main {
                 validArgs(args, 1);
                 Repository.status();
                 break;
+            case "diff":
+                if (args.length == 1) {
+                    Repository.diff();
+                } else if (args.length == 3) {
+                    Repository.diff(args[1], args[2]);
+                } else {
+                    throw Utils.error("Incorrect operands.");
+                }
+                break;
             case "checkout":
                 if (args.length == 2) {
                     Repository.checkoutBranch(args[1]);
@@ -62,8 +132,7 @@ public class Main {
                 } else if (args.length == 4 && args[2].equals("--")) {
                     Repository.checkoutCommit(args[1], args[3]);
                 } else {
-                    System.out.println("Incorrect operands.");
-                    System.exit(0);
+                    throw Utils.error("Incorrect operands.");
                 }
                 break;
             case "branch":
@@ -82,6 +151,14 @@ public class Main {
                 validArgs(args, 2);
                 Repository.merge(args[1], null);
                 break;
+            case "repack":
+                validArgs(args, 1);
+                Repository.repack();
+                break;
+            case "gc":
+                validArgs(args, 1);
+                Repository.gc();
+                break;
             case "add-remote":
                 validArgs(args, 3);
                 Repository.addRemote(args[1], args[2]);
@@ -102,9 +179,17 @@ public class Main {
                 validArgs(args, 3);
                 Repository.pull(args[1], args[2]);
                 break;
+            case "daemon":
+                if (args.length == 1) {
+                    Daemon.serve();
+                } else if (args.length == 2 && args[1].equals("stop")) {
+                    Daemon.stop();
+                } else {
+                    throw Utils.error("Incorrect operands.");
+                }
+                break;
             default:
-                System.out.println("No command with that name exists.");
-                System.exit(0);
+                throw Utils.error("No command with that name exists.");
         }
     }
 
@@ -116,8 +201,7 @@ public class Main {
      */
     private static void validArgs(String[] args, int numArgs) {
         if (args.length != numArgs) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw Utils.error("Incorrect operands.");
         }
     }
 }
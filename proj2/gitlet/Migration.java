@@ -0,0 +1,242 @@
+package gitlet;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamConstants;
+import java.io.Serializable;
+import java.util.*;
+
+import static gitlet.Utils.*;
+
+/** Upgrades .gitlet directories written by older versions of Gitlet.
+ *
+ *  The on-disk format version is kept in .gitlet/version. Repositories
+ *  created before the file existed are version 0: they keep serialized
+ *  Blobs in .gitlet/blobs, serialized Commits embedding every tracked Blob
+ *  in .gitlet/commits, and a serialized StageArea of Blobs as the stage.
+ *  Upgrading rewrites them into the current format in one step. Everything
+ *  else the current format adds, such as packs, trees and the commit
+ *  graph and other indexes, is either optional or rebuilt on first use.
+ *
+ *  @author Kunhua Huang
+ */
+public class Migration {
+
+    /** The format version written by this version of Gitlet. */
+    static final int CURRENT_VERSION = 1;
+
+    /** upgrade
+     *  Brings the repository in GITLETDIR up to the current format version.
+     *  Does nothing if it is already current.
+     *
+     *  @param gitletDir the .gitlet directory of the repository
+     */
+    static void upgrade(File gitletDir) {
+        File versionFile = join(gitletDir, "version");
+        int version = versionFile.exists()
+                ? Integer.parseInt(readContentsAsString(versionFile).trim()) : 0;
+        if (version == CURRENT_VERSION) {
+            return;
+        }
+        if (version > CURRENT_VERSION) {
+            throw error("This repository was written by a newer version of Gitlet.");
+        }
+        upgradeToObjectStore(gitletDir);
+        upgradeStage(gitletDir);
+        // The new objects must be on disk before the only other copy of
+        // the history goes
+        Journal.sync();
+        // Each step can run again if the upgrade is cut short before the
+        // version is written
+        deleteRecursively(join(gitletDir, "blobs"));
+        deleteRecursively(join(gitletDir, "commits"));
+        Journal.write(versionFile, String.valueOf(CURRENT_VERSION));
+    }
+
+    /** upgradeToObjectStore
+     *  Moves the serialized Blobs in .gitlet/blobs and the serialized
+     *  Commits in .gitlet/commits into the object store, leaving the old
+     *  directories for upgrade to remove. Each commit becomes one that maps
+     *  file names to blob ids, and the Blobs it embeds are stored too, since
+     *  a commit pushed to a remote carried its blobs only this way.
+     *
+     *  @param gitletDir the .gitlet directory of the repository
+     */
+    private static void upgradeToObjectStore(File gitletDir) {
+        ObjectStore store = ObjectStore.open(gitletDir);
+        File blobsDir = join(gitletDir, "blobs");
+        File commitsDir = join(gitletDir, "commits");
+
+        List<String> blobFiles = plainFilenamesIn(blobsDir);
+        if (blobFiles != null) {
+            for (String name : blobFiles) {
+                LegacyBlob blob = readLegacy(join(blobsDir, name), LegacyBlob.class);
+                store.write(ObjectStore.BLOB, blob.id, blob.contentBytes);
+            }
+        }
+
+        File[] commitFolders = commitsDir.listFiles();
+        if (commitFolders != null) {
+            for (File folder : commitFolders) {
+                File[] commitFiles = folder.listFiles();
+                if (commitFiles == null) {
+                    continue;
+                }
+                for (File commitFile : commitFiles) {
+                    store.write(ObjectStore.COMMIT, folder.getName() + commitFile.getName(),
+                            upgradeCommit(store, commitFile).toBytes());
+                }
+            }
+        }
+    }
+
+    /** upgradeCommit
+     *  Reads a serialized commit file, storing the blobs it embeds, and
+     *  returns the equivalent commit.
+     *
+     *  @param store the object store to put embedded blobs into
+     *  @param commitFile the commit file to read
+     *  @return the commit, with its id and timestamp unchanged
+     */
+    private static Commit upgradeCommit(ObjectStore store, File commitFile) {
+        LegacyCommit legacy = readLegacy(commitFile, LegacyCommit.class);
+        return new Commit(legacy.id, legacy.message, legacy.timestamp,
+                legacy.parents, storeBlobs(store, legacy.tracked));
+    }
+
+    /** upgradeStage
+     *  Rewrites the serialized StageArea, which maps file names to whole
+     *  Blobs, as the journal of file names and blob ids the stage is now,
+     *  storing the staged contents the Blobs carry.
+     *
+     *  @param gitletDir the .gitlet directory of the repository
+     */
+    private static void upgradeStage(File gitletDir) {
+        File stageFile = join(gitletDir, "stage");
+        if (!stageFile.isFile() || !isSerialized(stageFile)) {
+            // Empty, or already rewritten by an upgrade that was cut short
+            return;
+        }
+        ObjectStore store = ObjectStore.open(gitletDir);
+        LegacyStage legacy = readLegacy(stageFile, LegacyStage.class);
+        StageArea.write(stageFile, storeBlobs(store, legacy.stagedFiles),
+                legacy.removedFiles);
+    }
+
+    /** isSerialized
+     *  Checks if a file holds a Java serialization stream.
+     *
+     *  @param file the file to check
+     *  @return true if FILE starts with the serialization stream header
+     */
+    private static boolean isSerialized(File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readShort() == ObjectStreamConstants.STREAM_MAGIC;
+        } catch (EOFException excp) {
+            return false;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** storeBlobs
+     *  Stores the given Blobs and returns the ids they were stored under.
+     *
+     *  @param store the object store to put the blobs into
+     *  @param blobs the blobs, by file name
+     *  @return the blob ids, by file name
+     */
+    private static Map<String, String> storeBlobs(ObjectStore store,
+                                                  Map<String, LegacyBlob> blobs) {
+        Map<String, String> ids = new HashMap<>();
+        for (Map.Entry<String, LegacyBlob> entry : blobs.entrySet()) {
+            LegacyBlob blob = entry.getValue();
+            store.write(ObjectStore.BLOB, blob.id, blob.contentBytes);
+            ids.put(entry.getKey(), blob.id);
+        }
+        return ids;
+    }
+
+    /** deleteRecursively
+     *  Deletes FILE, and everything in it if it is a directory.
+     *
+     *  @param file the file or directory to delete
+     */
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /** readLegacy
+     *  Reads an object written by an older version of Gitlet, mapping the
+     *  old gitlet classes onto their Legacy counterparts here.
+     *
+     *  @param file the file to read
+     *  @param expectedClass the class of the object
+     *  @return the object read from the file
+     */
+    private static <T extends Serializable> T readLegacy(File file, Class<T> expectedClass) {
+        try (ObjectInputStream in = new LegacyObjectInputStream(new FileInputStream(file))) {
+            return expectedClass.cast(in.readObject());
+        } catch (IOException | ClassCastException | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** An ObjectInputStream that resolves the old gitlet classes to
+     *  the Legacy classes, which have the same serialized fields. */
+    private static class LegacyObjectInputStream extends ObjectInputStream {
+
+        LegacyObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor()
+                throws IOException, ClassNotFoundException {
+            ObjectStreamClass desc = super.readClassDescriptor();
+            switch (desc.getName()) {
+                case "gitlet.Commit":
+                    return ObjectStreamClass.lookup(LegacyCommit.class);
+                case "gitlet.Blob":
+                    return ObjectStreamClass.lookup(LegacyBlob.class);
+                case "gitlet.StageArea":
+                    return ObjectStreamClass.lookup(LegacyStage.class);
+                default:
+                    return desc;
+            }
+        }
+    }
+
+    /** The serialized fields of a version 0 gitlet.Commit. */
+    private static class LegacyCommit implements Serializable {
+        private String id;
+        private String message;
+        private Date timestamp;
+        private List<String> parents;
+        private Map<String, LegacyBlob> tracked;
+    }
+
+    /** The serialized fields of a version 0 gitlet.Blob. */
+    private static class LegacyBlob implements Serializable {
+        private byte[] contentBytes;
+        private String id;
+    }
+
+    /** The serialized fields of a version 0 gitlet.StageArea. */
+    private static class LegacyStage implements Serializable {
+        private Map<String, LegacyBlob> stagedFiles;
+        private Set<String> removedFiles;
+    }
+}
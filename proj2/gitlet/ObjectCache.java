@@ -0,0 +1,137 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/** A size-bounded cache of decoded objects, keyed by id.
+ *
+ *  Objects never change once stored, so an object read once can be handed
+ *  out again for as long as the process lives: for the rest of a command,
+ *  and in the daemon for every later command as well. Each object is
+ *  charged roughly the memory it takes, and once the total passes the
+ *  capacity the least recently used objects are dropped. Hits and misses
+ *  are counted, so that how well the cache works can be checked.
+ *
+ *  @author Kunhua Huang
+ */
+class ObjectCache {
+
+    /** The default capacity, in bytes. */
+    static final long DEFAULT_CAPACITY = 32L << 20;
+    /** The rough cost of a commit or tree, and of each file it lists, in
+     *  bytes. */
+    private static final long COMMIT_WEIGHT = 256;
+    private static final long FILE_WEIGHT = 160;
+
+    private final long capacity;
+    /** The cached objects, least recently used first. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+    private long hits;
+    private long misses;
+
+    /** A cached object and what it is charged. */
+    private static class Entry {
+        private final Object value;
+        private final long weight;
+
+        Entry(Object value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /** Constructor for an empty cache holding about CAPACITY bytes.
+     *
+     * @param capacity the most the cached objects may weigh
+     */
+    ObjectCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /** get
+     * Returns the object with the given id, calling LOADER to read it if it
+     * is not cached. The loader runs outside the cache's lock.
+     *
+     * @param id the id of the object
+     * @param type the class of the object
+     * @param loader reads the object on a miss
+     * @return the object
+     */
+    <T> T get(String id, Class<T> type, Supplier<T> loader) {
+        synchronized (this) {
+            Entry entry = entries.get(id);
+            if (entry != null && type.isInstance(entry.value)) {
+                hits += 1;
+                return type.cast(entry.value);
+            }
+            misses += 1;
+        }
+        T value = loader.get();
+        put(id, value);
+        return value;
+    }
+
+    /** put
+     * Caches an object, unless it alone would fill more than a quarter of
+     * the cache.
+     *
+     * @param id the id of the object
+     * @param value the object
+     */
+    synchronized void put(String id, Object value) {
+        long cost = weightOf(value);
+        if (cost > capacity / 4) {
+            return;
+        }
+        Entry old = entries.put(id, new Entry(value, cost));
+        weight += cost - (old == null ? 0 : old.weight);
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (weight > capacity && eldest.hasNext()) {
+            weight -= eldest.next().weight;
+            eldest.remove();
+        }
+    }
+
+    /** hits
+     * Returns the number of lookups that found their object cached.
+     *
+     * @return the number of hits
+     */
+    synchronized long hits() {
+        return hits;
+    }
+
+    /** misses
+     * Returns the number of lookups that had to read their object.
+     *
+     * @return the number of misses
+     */
+    synchronized long misses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("object cache: %d hits, %d misses, %d objects, %d bytes",
+                hits, misses, entries.size(), weight);
+    }
+
+    /** weightOf
+     * Returns roughly how many bytes of memory an object takes.
+     */
+    private static long weightOf(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length + 16;
+        } else if (value instanceof Commit) {
+            Commit commit = (Commit) value;
+            return commit.isLoaded()
+                    ? COMMIT_WEIGHT + FILE_WEIGHT * commit.getBlobs().size() : COMMIT_WEIGHT;
+        } else if (value instanceof Tree) {
+            return COMMIT_WEIGHT + FILE_WEIGHT * ((Tree) value).getEntries().size();
+        }
+        return COMMIT_WEIGHT;
+    }
+}
@@ -0,0 +1,164 @@
+package gitlet;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/** The SHA-1 id of an object, held as its 20 raw bytes.
+ *
+ *  An id kept as a 40-digit String takes more than twice the memory and is
+ *  compared digit by digit, so the indexes that hold many ids at once use
+ *  this class instead, converting to and from hexadecimal only at their
+ *  edges. Since SHA-1 values are already uniformly distributed, the hash
+ *  code is simply the first four bytes.
+ *
+ *  @author Kunhua Huang
+ */
+final class ObjectId implements Comparable<ObjectId> {
+
+    /** The length of an id in bytes. */
+    static final int LENGTH = Utils.UID_LENGTH / 2;
+
+    private final byte[] bytes;
+
+    /** Constructor for the id with the given raw bytes, which it keeps. */
+    private ObjectId(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /** fromHex
+     * Returns the id written as the given hexadecimal numeral.
+     *
+     * @param hex the full id, as 40 hexadecimal digits
+     * @return the id
+     */
+    static ObjectId fromHex(String hex) {
+        if (!isId(hex)) {
+            throw new IllegalArgumentException("not an object id: " + hex);
+        }
+        return new ObjectId(Utils.fromHex(hex));
+    }
+
+    /** fromRaw
+     * Returns the id held in LENGTH bytes of RAW starting at OFFSET.
+     *
+     * @param raw the bytes holding the id
+     * @param offset the position of the id in RAW
+     * @return the id
+     */
+    static ObjectId fromRaw(byte[] raw, int offset) {
+        return new ObjectId(Arrays.copyOfRange(raw, offset, offset + LENGTH));
+    }
+
+    /** isId
+     * Checks if a string is a full id: 40 hexadecimal digits.
+     *
+     * @param hex the string to check
+     * @return true if HEX is a full id
+     */
+    static boolean isId(String hex) {
+        if (hex.length() != Utils.UID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < hex.length(); i += 1) {
+            if (Character.digit(hex.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** copyTo
+     * Writes the raw bytes of this id into DEST at OFFSET.
+     *
+     * @param dest the array to write to
+     * @param offset the position to write at
+     */
+    void copyTo(byte[] dest, int offset) {
+        System.arraycopy(bytes, 0, dest, offset, LENGTH);
+    }
+
+    /** compareTo
+     * Compares this id with the raw id held in RAW at OFFSET, as unsigned
+     * bytes, which is the order of their hexadecimal numerals.
+     *
+     * @param raw the bytes holding the other id
+     * @param offset the position of the other id in RAW
+     * @return negative, zero or positive as this id is less than, equal to
+     *         or greater than the other
+     */
+    int compareTo(byte[] raw, int offset) {
+        for (int i = 0; i < LENGTH; i += 1) {
+            int diff = (bytes[i] & 0xff) - (raw[offset + i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return 0;
+    }
+
+    /** compareTo
+     * Compares this id with the raw id held in BUF at OFFSET, as unsigned
+     * bytes.
+     *
+     * @param buf the buffer holding the other id
+     * @param offset the position of the other id in BUF
+     * @return negative, zero or positive as this id is less than, equal to
+     *         or greater than the other
+     */
+    int compareTo(ByteBuffer buf, int offset) {
+        for (int i = 0; i < LENGTH; i += 1) {
+            int diff = (bytes[i] & 0xff) - (buf.get(offset + i) & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return 0;
+    }
+
+    /** compareHex
+     * Compares the hexadecimal numeral of the raw id held in BUF at OFFSET
+     * with HEX, a full id or a prefix of one, the way their Strings would
+     * compare, without decoding the id. Only as many digits as HEX has are
+     * looked at, so the result is 0 exactly when the id starts with HEX.
+     *
+     * @param buf the buffer holding the id
+     * @param offset the position of the id in BUF
+     * @param hex the numeral to compare with
+     * @return negative, zero or positive as the id, cut to the length of
+     *         HEX, is less than, equal to or greater than HEX
+     */
+    static int compareHex(ByteBuffer buf, int offset, String hex) {
+        int digits = Math.min(hex.length(), Utils.UID_LENGTH);
+        for (int i = 0; i < digits; i += 1) {
+            int b = buf.get(offset + i / 2) & 0xff;
+            int value = i % 2 == 0 ? b >>> 4 : b & 0xf;
+            int diff = (value < 10 ? '0' + value : 'a' + value - 10) - hex.charAt(i);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return hex.length() > Utils.UID_LENGTH ? -1 : 0;
+    }
+
+    @Override
+    public int compareTo(ObjectId other) {
+        return compareTo(other.bytes, 0);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof ObjectId && Arrays.equals(bytes, ((ObjectId) other).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return (bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16
+                | (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff);
+    }
+
+    /** Returns the id as 40 lower-case hexadecimal digits. */
+    @Override
+    public String toString() {
+        return Utils.toHex(bytes, 0, LENGTH);
+    }
+}
@@ -0,0 +1,129 @@
+package gitlet;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.List;
+
+import static gitlet.Utils.join;
+
+/** A store of gitlet objects, addressed by id.
+ *
+ *  Every object has a type ("blob", "chunked", "tree" or "commit") and a
+ *  payload: the raw contents for a blob, the encoded object for the others.
+ *  The store is content-addressed, so writing an id that is already present
+ *  is a no-op. A large blob may be stored as a ChunkedBlob instead; opening
+ *  or reading it as a blob gives its whole contents all the same.
+ *  Repository reads and writes all objects through this interface, for the
+ *  local repository and for remotes alike.
+ *
+ *  @author Kunhua Huang
+ */
+public interface ObjectStore {
+
+    /** The type of objects holding file contents. */
+    String BLOB = "blob";
+    /** The type of objects holding commits. */
+    String COMMIT = "commit";
+    /** The type of objects holding directories. */
+    String TREE = "tree";
+    /** The type of objects listing the chunks of a large blob. */
+    String CHUNKED = "chunked";
+
+    /** open
+     *  Returns the object store of the repository in the given .gitlet
+     *  directory.
+     *
+     *  @param gitletDir the .gitlet directory of the repository
+     *  @return the object store of that repository
+     */
+    static ObjectStore open(File gitletDir) {
+        return new PackedObjectStore(join(gitletDir, "objects"));
+    }
+
+    /** contains
+     *  Checks if the object with the given id is in the store.
+     *
+     *  @param id the full id of the object
+     *  @return true if the object is in the store, false otherwise
+     */
+    boolean contains(String id);
+
+    /** typeOf
+     *  Returns the type of the object with the given id, without reading
+     *  its payload.
+     *
+     *  @param id the full id of the object
+     *  @return the type of the object
+     */
+    String typeOf(String id);
+
+    /** read
+     *  Returns the payload of the object with the given id. Throws
+     *  IllegalArgumentException if there is no such object or it is not of
+     *  the expected type.
+     *
+     *  @param id the full id of the object
+     *  @param type the expected type of the object
+     *  @return the payload of the object
+     */
+    byte[] read(String id, String type);
+
+    /** open
+     *  Opens the payload of the object with the given id as a stream, so
+     *  that objects too large to hold in memory can be copied. Throws
+     *  IllegalArgumentException if there is no such object or it is not of
+     *  the expected type.
+     *
+     *  @param id the full id of the object
+     *  @param type the expected type of the object
+     *  @return a stream over the payload of the object
+     */
+    InputStream open(String id, String type);
+
+    /** sizeOf
+     *  Returns the length of the payload of the object with the given id,
+     *  as stored: for a chunked blob, that of the list of chunks.
+     *
+     *  @param id the full id of the object
+     *  @return the length of the payload
+     */
+    long sizeOf(String id);
+
+    /** write
+     *  Stores an object, unless an object with the same id is already there.
+     *
+     *  @param type the type of the object
+     *  @param id the full id of the object
+     *  @param payload the payload of the object
+     */
+    void write(String type, String id, byte[] payload);
+
+    /** write
+     *  Stores an object whose payload is read from a stream, unless an
+     *  object with the same id is already there. The payload is streamed,
+     *  so it can be of any size. Closes the stream.
+     *
+     *  @param type the type of the object
+     *  @param id the full id of the object
+     *  @param payload a stream over the payload of the object
+     *  @param length the length of the payload
+     */
+    void write(String type, String id, InputStream payload, long length);
+
+    /** refresh
+     *  Drops whatever the store keeps in memory about its files if another
+     *  process may have changed them since, as the daemon does before each
+     *  command.
+     */
+    default void refresh() {
+    }
+
+    /** list
+     *  Returns the ids of all objects whose id starts with the given prefix,
+     *  in lexicographic order. An empty prefix lists every object.
+     *
+     *  @param prefix the prefix of the ids to list
+     *  @return the ids with that prefix
+     */
+    List<String> list(String prefix);
+}
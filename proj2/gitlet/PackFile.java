@@ -0,0 +1,411 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/** A pack file: many objects in one file, found through a PackIndex.
+ *
+ *  A pack starts with MAGIC VERSION COUNT and ends with the SHA-1 of the
+ *  bytes before it. Each object is stored as
+ *
+ *      TYPE SIZE [BASE] COMPRESSED_SIZE DATA
+ *
+ *  TYPE is one byte (COMMIT, BLOB, BLOB_DELTA, TREE or CHUNKED), SIZE and
+ *  COMPRESSED_SIZE are unsigned varints giving the inflated and deflated
+ *  lengths of DATA, and DATA is deflate-compressed. For a BLOB_DELTA, BASE
+ *  is the 8-byte offset of the object the delta applies to, which is always
+ *  earlier in the same pack, and DATA is a Delta.
+ *
+ *  The pack is mapped into memory on first use, so entry headers are
+ *  decoded and data inflated straight from the mapping, with no read call
+ *  and no buffer per object. A pack too large for one mapping is read
+ *  through its channel instead.
+ *
+ *  @author Kunhua Huang
+ */
+class PackFile {
+
+    /** "PACK" */
+    static final int MAGIC = 0x5041434b;
+    static final int VERSION = 1;
+    /** The length of the pack header. */
+    static final int HEADER_LENGTH = 12;
+
+    /** Object types in the pack. */
+    static final int COMMIT = 1;
+    static final int BLOB = 2;
+    static final int BLOB_DELTA = 3;
+    static final int TREE = 4;
+    static final int CHUNKED = 5;
+
+    /** The longest object entry header: a type, two varints and a base. */
+    private static final int MAX_ENTRY_HEADER = 1 + 10 + 8 + 10;
+
+    private final File packFile;
+    private final PackIndex index;
+    /** The whole pack, once mapped. */
+    private MappedByteBuffer map;
+    /** The channel a pack too large to map is read through. */
+    private FileChannel channel;
+
+    /** Constructor for the pack in the given file, whose index is next to
+     *  it with the extension .idx.
+     *
+     * @param packFile the pack file
+     */
+    PackFile(File packFile) {
+        this.packFile = packFile;
+        String name = packFile.getName();
+        this.index = new PackIndex(new File(packFile.getParentFile(),
+                name.substring(0, name.length() - ".pack".length()) + ".idx"));
+    }
+
+    /** getFile
+     * Returns the pack file itself.
+     *
+     * @return the pack file
+     */
+    File getFile() {
+        return packFile;
+    }
+
+    /** getIndex
+     * Returns the index of this pack.
+     *
+     * @return the index of this pack
+     */
+    PackIndex getIndex() {
+        return index;
+    }
+
+    /** contains
+     * Checks if the pack contains the object with the given id.
+     *
+     * @param id the full id of the object
+     * @return true if the object is in this pack, false otherwise
+     */
+    boolean contains(String id) {
+        return index.offsetOf(id) >= 0;
+    }
+
+    /** list
+     * Returns the ids in the pack that start with the given prefix.
+     *
+     * @param prefix the prefix of the ids
+     * @return the matching ids
+     */
+    List<String> list(String prefix) {
+        return index.list(prefix);
+    }
+
+    /** typeOf
+     * Returns the gitlet type of the object with the given id.
+     *
+     * @param id the full id of the object
+     * @return the type of the object
+     */
+    String typeOf(String id) {
+        return typeName(readEntryHeader(offsetOrFail(id)).type);
+    }
+
+    /** read
+     * Returns the payload of the object with the given id, applying any
+     * deltas it is stored as.
+     *
+     * @param id the full id of the object
+     * @param type the expected type of the object
+     * @return the payload of the object
+     */
+    byte[] read(String id, String type) {
+        long offset = offsetOrFail(id);
+        EntryHeader header = readEntryHeader(offset);
+        if (!typeName(header.type).equals(type)) {
+            throw new IllegalArgumentException(id + " is not a " + type);
+        }
+        return readAt(offset);
+    }
+
+    /** open
+     * Opens the payload of the object with the given id as a stream. An
+     * object stored whole is inflated straight from the pack; a delta is
+     * resolved in memory, which is bounded since only small blobs are ever
+     * stored as deltas.
+     *
+     * @param id the full id of the object
+     * @param type the expected type of the object
+     * @return a stream over the payload of the object
+     */
+    InputStream open(String id, String type) {
+        long offset = offsetOrFail(id);
+        EntryHeader header = readEntryHeader(offset);
+        if (!typeName(header.type).equals(type)) {
+            throw new IllegalArgumentException(id + " is not a " + type);
+        }
+        if (header.type == BLOB_DELTA) {
+            return new ByteArrayInputStream(readAt(offset));
+        }
+        return new InflaterInputStream(new BufferedInputStream(
+                new RegionInputStream(header.dataOffset, header.compressedSize),
+                Utils.BUFFER_SIZE));
+    }
+
+    /** sizeOf
+     * Returns the length of the payload of the object with the given id.
+     *
+     * @param id the full id of the object
+     * @return the length of the payload
+     */
+    long sizeOf(String id) {
+        EntryHeader header = readEntryHeader(offsetOrFail(id));
+        if (header.type == BLOB_DELTA) {
+            // The length of the result is the second varint of the delta
+            int[] pos = {0};
+            byte[] delta = inflate(header);
+            Delta.readVarint(delta, pos);
+            return Delta.readVarint(delta, pos);
+        }
+        return header.size;
+    }
+
+    /** readAt
+     * Returns the payload of the object at the given offset.
+     *
+     * @param offset the offset of the object
+     * @return the payload of the object
+     */
+    private byte[] readAt(long offset) {
+        EntryHeader header = readEntryHeader(offset);
+        byte[] data = inflate(header);
+        if (header.type == BLOB_DELTA) {
+            return Delta.apply(readAt(header.base), data);
+        }
+        return data;
+    }
+
+    /** offsetOrFail
+     * Returns the offset of the object with the given id, throwing
+     * IllegalArgumentException if the pack does not contain it.
+     */
+    private long offsetOrFail(String id) {
+        long offset = index.offsetOf(id);
+        if (offset < 0) {
+            throw new IllegalArgumentException("no object " + id);
+        }
+        return offset;
+    }
+
+    /** typeName
+     * Returns the gitlet type of a pack object type.
+     */
+    private static String typeName(int type) {
+        if (type == COMMIT) {
+            return ObjectStore.COMMIT;
+        }
+        if (type == TREE) {
+            return ObjectStore.TREE;
+        }
+        return type == CHUNKED ? ObjectStore.CHUNKED : ObjectStore.BLOB;
+    }
+
+    /** The decoded header of one object in the pack. */
+    private static class EntryHeader {
+        private int type;
+        private long size;
+        private long base;
+        private long compressedSize;
+        private long dataOffset;
+    }
+
+    /** readEntryHeader
+     * Reads the header of the object at the given offset.
+     */
+    private EntryHeader readEntryHeader(long offset) {
+        ByteBuffer bytes = region(offset, MAX_ENTRY_HEADER);
+        int start = bytes.position();
+        EntryHeader header = new EntryHeader();
+        header.type = bytes.get();
+        header.size = readVarint(bytes);
+        if (header.type == BLOB_DELTA) {
+            header.base = bytes.getLong();
+        }
+        header.compressedSize = readVarint(bytes);
+        header.dataOffset = offset + bytes.position() - start;
+        return header;
+    }
+
+    /** inflate
+     * Reads and inflates the data of the object with the given header.
+     */
+    private byte[] inflate(EntryHeader header) {
+        if (header.size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("object too large to read into memory");
+        }
+        ByteBuffer compressed = region(header.dataOffset, header.compressedSize);
+        byte[] input = new byte[compressed.remaining()];
+        compressed.get(input);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            byte[] data = new byte[(int) header.size];
+            int done = 0;
+            while (done < data.length) {
+                int n = inflater.inflate(data, done, data.length - done);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalArgumentException("corrupt pack " + packFile);
+                }
+                done += n;
+            }
+            return data;
+        } catch (DataFormatException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** region
+     * Returns the LENGTH bytes of the pack starting at POSITION, or as
+     * many of them as the pack holds, between the position and limit of
+     * the buffer. A mapped pack hands out a view of its mapping, so nothing
+     * is copied; otherwise the bytes are read into a new buffer.
+     */
+    private ByteBuffer region(long position, long length) {
+        ByteBuffer view = mapped();
+        if (view != null) {
+            view.position((int) Math.min(position, view.limit()));
+            view.limit((int) Math.min(position + length, view.limit()));
+            return view;
+        }
+        try {
+            ByteBuffer bytes = ByteBuffer.allocate((int) length);
+            FileChannel ch = channel();
+            while (bytes.hasRemaining()) {
+                int n = ch.read(bytes, position);
+                if (n < 0) {
+                    break;
+                }
+                position += n;
+            }
+            bytes.flip();
+            return bytes;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** A stream over a region of the pack. It reads from a view of the
+     *  mapping, or with positional reads, so that any number of them can be
+     *  open at once. */
+    private class RegionInputStream extends InputStream {
+        private final ByteBuffer view;
+        private long position;
+        private long remaining;
+
+        RegionInputStream(long position, long length) {
+            this.view = mapped() == null ? null : region(position, length);
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (view != null) {
+                if (!view.hasRemaining() && remaining > 0) {
+                    throw new IOException("truncated pack " + packFile);
+                } else if (!view.hasRemaining()) {
+                    return -1;
+                }
+                int n = Math.min(len, view.remaining());
+                view.get(b, off, n);
+                remaining -= n;
+                return n;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            ByteBuffer buf = ByteBuffer.wrap(b, off, (int) Math.min(len, remaining));
+            int n = channel().read(buf, position);
+            if (n < 0) {
+                throw new IOException("truncated pack " + packFile);
+            }
+            position += n;
+            remaining -= n;
+            return n;
+        }
+    }
+
+    /** mapped
+     * Returns a view of the whole pack, mapping it on first use, or null
+     * if it is too large to map.
+     */
+    private synchronized ByteBuffer mapped() {
+        if (map == null && channel == null) {
+            try (RandomAccessFile raf = new RandomAccessFile(packFile, "r")) {
+                FileChannel ch = raf.getChannel();
+                if (ch.size() <= Integer.MAX_VALUE) {
+                    map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        return map == null ? null : map.duplicate();
+    }
+
+    /** channel
+     * Returns the channel the pack is read through, opening it on first use.
+     */
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null) {
+            channel = new RandomAccessFile(packFile, "r").getChannel();
+        }
+        return channel;
+    }
+
+    /** close
+     * Closes the pack, so that its file can be deleted.
+     */
+    void close() {
+        try {
+            map = null;
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** readVarint
+     * Reads an unsigned LEB128 varint from BYTES.
+     */
+    private static long readVarint(ByteBuffer bytes) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes.get();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
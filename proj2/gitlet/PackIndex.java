@@ -0,0 +1,200 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/** The index of a pack file, mapping object ids to offsets in the pack.
+ *
+ *  The file is laid out as
+ *
+ *      MAGIC VERSION FANOUT[256] IDS[COUNT] OFFSETS[COUNT]
+ *
+ *  where FANOUT[b] is the number of ids whose first byte is at most b, IDS
+ *  are the raw 20-byte ids in ascending order and OFFSETS are 8-byte
+ *  offsets into the pack, in the same order. The file is memory-mapped, so
+ *  opening an index costs nothing and a lookup touches only the pages its
+ *  binary search visits.
+ *
+ *  @author Kunhua Huang
+ */
+class PackIndex {
+
+    /** "PIDX" */
+    private static final int MAGIC = 0x50494458;
+    private static final int VERSION = 1;
+    private static final int ID_BYTES = Utils.UID_LENGTH / 2;
+    private static final int FANOUT_START = 8;
+    private static final int IDS_START = FANOUT_START + 256 * 4;
+
+    private final MappedByteBuffer buf;
+    private final int count;
+
+    /** Constructor for the index in the given file.
+     *
+     * @param file the index file
+     */
+    PackIndex(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("not a pack index: " + file);
+        }
+        count = buf.getInt(FANOUT_START + 255 * 4);
+    }
+
+    /** size
+     * Returns the number of objects in the pack.
+     *
+     * @return the number of objects
+     */
+    int size() {
+        return count;
+    }
+
+    /** idAt
+     * Returns the I-th id in ascending order.
+     *
+     * @param i the position of the id
+     * @return the id, as hexadecimal
+     */
+    String idAt(int i) {
+        byte[] id = new byte[ID_BYTES];
+        for (int k = 0; k < ID_BYTES; k += 1) {
+            id[k] = buf.get(IDS_START + i * ID_BYTES + k);
+        }
+        return Utils.toHex(id, 0, ID_BYTES);
+    }
+
+    /** offsetAt
+     * Returns the pack offset of the I-th id.
+     *
+     * @param i the position of the id
+     * @return the offset of that object in the pack
+     */
+    long offsetAt(int i) {
+        return buf.getLong(IDS_START + count * ID_BYTES + i * 8);
+    }
+
+    /** offsetOf
+     * Returns the pack offset of the object with the given id, or -1 if the
+     * pack does not contain it.
+     *
+     * @param id the full id of the object
+     * @return the offset of the object, or -1
+     */
+    long offsetOf(String id) {
+        if (!ObjectId.isId(id)) {
+            return -1;
+        }
+        ObjectId key = ObjectId.fromHex(id);
+        int first = Integer.parseInt(id.substring(0, 2), 16);
+        int lo = fanout(first - 1);
+        int hi = fanout(first);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = key.compareTo(buf, IDS_START + mid * ID_BYTES);
+            if (cmp == 0) {
+                return offsetAt(mid);
+            } else if (cmp > 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return -1;
+    }
+
+    /** list
+     * Returns the ids in the pack that start with the given prefix.
+     *
+     * @param prefix the prefix of the ids
+     * @return the matching ids, in ascending order
+     */
+    List<String> list(String prefix) {
+        List<String> ids = new ArrayList<>();
+        for (int i = lowerBound(prefix); i < count
+                && ObjectId.compareHex(buf, IDS_START + i * ID_BYTES, prefix) == 0; i += 1) {
+            ids.add(idAt(i));
+        }
+        return ids;
+    }
+
+    /** lowerBound
+     * Returns the position of the first id that is not less than KEY,
+     * narrowing the search with the fan-out table when KEY has a full
+     * first byte. The ids are compared in place, without decoding them.
+     *
+     * @param key a full id or a prefix of one
+     * @return the position of the first id at or after KEY
+     */
+    private int lowerBound(String key) {
+        int lo = 0;
+        int hi = count;
+        if (key.length() >= 2) {
+            int first = Integer.parseInt(key.substring(0, 2), 16);
+            lo = fanout(first - 1);
+            hi = fanout(first);
+        }
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ObjectId.compareHex(buf, IDS_START + mid * ID_BYTES, key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** fanout
+     * Returns the number of ids whose first byte is at most B, which is 0
+     * for B = -1.
+     */
+    private int fanout(int b) {
+        return b < 0 ? 0 : buf.getInt(FANOUT_START + b * 4);
+    }
+
+    /** write
+     * Writes an index for the given ids and offsets.
+     *
+     * @param file the index file to write
+     * @param ids the ids, in ascending order
+     * @param offsets the offset of each id in the pack
+     */
+    static void write(File file, List<String> ids, long[] offsets) {
+        int[] fanout = new int[256];
+        for (String id : ids) {
+            fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            int total = 0;
+            for (int b = 0; b < 256; b += 1) {
+                total += fanout[b];
+                out.writeInt(total);
+            }
+            for (String id : ids) {
+                out.write(Utils.fromHex(id));
+            }
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
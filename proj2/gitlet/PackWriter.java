@@ -0,0 +1,262 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.DeflaterOutputStream;
+
+import static gitlet.Utils.*;
+
+/** Writes a set of objects from an ObjectStore into a new pack file and
+ *  its index.
+ *
+ *  A blob may be given a delta base, usually the next newer version of the
+ *  same file; it is then stored as a Delta against the base when that is
+ *  smaller than the blob itself. Bases are written before the objects that
+ *  depend on them, and chains are cut after MAX_DEPTH deltas so that no
+ *  read has to apply too many of them. Objects larger than MAX_DELTA_SIZE
+ *  are streamed into the pack through a scratch file instead of being read
+ *  into memory.
+ *
+ *  @author Kunhua Huang
+ */
+class PackWriter {
+
+    /** The longest chain of deltas an object may be stored behind. */
+    private static final int MAX_DEPTH = 50;
+    /** Blobs larger than this are always stored whole. */
+    private static final int MAX_DELTA_SIZE = 16 << 20;
+
+    private final ObjectStore source;
+    /** The objects to write, each mapped to its delta base or null. */
+    private final Map<String, String> objects = new LinkedHashMap<>();
+    /** The offsets and delta depths of the objects written so far. */
+    private final Map<String, Long> offsets = new HashMap<>();
+    private final Map<String, Integer> depths = new HashMap<>();
+    /** The last object written, kept since it is usually the next base. */
+    private String lastId;
+    private byte[] lastPayload;
+    private long position;
+    /** Where large objects are compressed before going into the pack. */
+    private File scratch;
+
+    /** Constructor for a writer that reads objects from SOURCE.
+     *
+     * @param source the object store to read objects from
+     */
+    PackWriter(ObjectStore source) {
+        this.source = source;
+    }
+
+    /** add
+     * Adds an object to the pack.
+     *
+     * @param id the full id of the object
+     * @param base the id of the object to store it as a delta of, or null
+     */
+    void add(String id, String base) {
+        objects.put(id, base);
+    }
+
+    /** write
+     * Writes the pack and its index into PACKDIR, naming them after the
+     * checksum of the pack.
+     *
+     * @param packDir the directory to write the pack into
+     * @return the new pack file
+     */
+    File write(File packDir) {
+        packDir.mkdirs();
+        // Unique names, so that packs written at once never share a file
+        File tmp = createTempFile(packDir, "tmp_pack");
+        scratch = createTempFile(packDir, "tmp_entry");
+        String checksum;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            try (DataOutputStream out = new DataOutputStream(new DigestOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)), md))) {
+                out.writeInt(PackFile.MAGIC);
+                out.writeInt(PackFile.VERSION);
+                out.writeInt(objects.size());
+                position = PackFile.HEADER_LENGTH;
+                for (String id : objects.keySet()) {
+                    writeWithBases(out, id);
+                }
+                out.flush();
+                byte[] digest = md.digest();
+                out.write(digest);
+                checksum = sha1((Object) digest);
+            }
+        } catch (IOException | NoSuchAlgorithmException excp) {
+            tmp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            scratch.delete();
+        }
+
+        File pack = join(packDir, "pack-" + checksum + ".pack");
+        File idx = join(packDir, "pack-" + checksum + ".idx");
+        File tmpIdx = createTempFile(packDir, "tmp_idx");
+        List<String> ids = new ArrayList<>(offsets.keySet());
+        Collections.sort(ids);
+        long[] sortedOffsets = new long[ids.size()];
+        for (int i = 0; i < ids.size(); i += 1) {
+            sortedOffsets[i] = offsets.get(ids.get(i));
+        }
+        PackIndex.write(tmpIdx, ids, sortedOffsets);
+        // The index goes in last: a pack is only used once its index exists
+        if (!tmp.renameTo(pack)) {
+            tmp.delete();
+            tmpIdx.delete();
+            throw new IllegalArgumentException("cannot write pack " + pack);
+        }
+        if (!tmpIdx.renameTo(idx)) {
+            tmpIdx.delete();
+            // Leave no pack without an index, unless it is an identical
+            // pack that was already complete
+            if (!idx.exists()) {
+                pack.delete();
+            }
+            throw new IllegalArgumentException("cannot write pack " + pack);
+        }
+        Journal.written(pack);
+        Journal.written(idx);
+        return pack;
+    }
+
+    /** createTempFile
+     * Creates an empty file with a unique name starting with PREFIX in DIR.
+     */
+    private static File createTempFile(File dir, String prefix) {
+        try {
+            return File.createTempFile(prefix, null, dir);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** writeWithBases
+     * Writes the object with the given id, after any of its delta bases
+     * that have not been written yet.
+     */
+    private void writeWithBases(DataOutputStream out, String id) throws IOException {
+        Deque<String> chain = new ArrayDeque<>();
+        for (String cur = id; cur != null && objects.containsKey(cur)
+                && !offsets.containsKey(cur) && !chain.contains(cur);
+                cur = objects.get(cur)) {
+            chain.push(cur);
+        }
+        while (!chain.isEmpty()) {
+            writeObject(out, chain.pop());
+        }
+    }
+
+    /** writeObject
+     * Writes one object, as a delta if it has a usable base.
+     */
+    private void writeObject(DataOutputStream out, String id) throws IOException {
+        String type = source.typeOf(id);
+        int packType = type.equals(ObjectStore.COMMIT) ? PackFile.COMMIT
+                : type.equals(ObjectStore.TREE) ? PackFile.TREE
+                : type.equals(ObjectStore.CHUNKED) ? PackFile.CHUNKED : PackFile.BLOB;
+        String base = objects.get(id);
+        offsets.put(id, position);
+        depths.put(id, 0);
+
+        long size = source.sizeOf(id);
+        if (size > MAX_DELTA_SIZE) {
+            writeLargeEntry(out, packType, source.open(id, type), size);
+            remember(null, null);
+            return;
+        }
+        byte[] payload = source.read(id, type);
+        if (type.equals(ObjectStore.BLOB) && base != null && offsets.containsKey(base)
+                && depths.get(base) < MAX_DEPTH && source.typeOf(base).equals(ObjectStore.BLOB)
+                && source.sizeOf(base) <= MAX_DELTA_SIZE) {
+            byte[] basePayload = base.equals(lastId) ? lastPayload
+                    : source.read(base, ObjectStore.BLOB);
+            byte[] delta = Delta.create(basePayload, payload);
+            if (delta.length < payload.length) {
+                writeEntry(out, PackFile.BLOB_DELTA, delta, offsets.get(base));
+                depths.put(id, depths.get(base) + 1);
+                remember(id, payload);
+                return;
+            }
+        }
+        writeEntry(out, packType, payload, -1);
+        remember(id, payload);
+    }
+
+    /** remember
+     * Keeps the payload of the object just written, for use as a base.
+     */
+    private void remember(String id, byte[] payload) {
+        lastId = id;
+        lastPayload = payload;
+    }
+
+    /** writeEntry
+     * Writes an entry of the given pack type holding DATA.
+     */
+    private void writeEntry(DataOutputStream out, int type, byte[] data, long base)
+            throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(compressed)) {
+            deflater.write(data);
+        }
+        writeEntryHeader(out, type, data.length, base, compressed.size());
+        compressed.writeTo(out);
+        position += compressed.size();
+    }
+
+    /** writeLargeEntry
+     * Writes an entry of the given pack type holding the SIZE bytes read
+     * from IN. The data is compressed into the scratch file first, since
+     * its compressed size goes before it.
+     */
+    private void writeLargeEntry(DataOutputStream out, int type, InputStream in, long size)
+            throws IOException {
+        byte[] buf = new byte[BUFFER_SIZE];
+        try (InputStream data = in;
+             DeflaterOutputStream deflater = new DeflaterOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(scratch), BUFFER_SIZE))) {
+            for (int n = data.read(buf); n >= 0; n = data.read(buf)) {
+                deflater.write(buf, 0, n);
+            }
+        }
+        long compressedSize = scratch.length();
+        writeEntryHeader(out, type, size, -1, compressedSize);
+        try (InputStream compressed = openContents(scratch)) {
+            for (int n = compressed.read(buf); n >= 0; n = compressed.read(buf)) {
+                out.write(buf, 0, n);
+            }
+        }
+        position += compressedSize;
+    }
+
+    /** writeEntryHeader
+     * Writes the header of an entry whose data follows.
+     */
+    private void writeEntryHeader(DataOutputStream out, int type, long size, long base,
+                                  long compressedSize) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        header.write(type);
+        Delta.writeVarint(header, size);
+        if (type == PackFile.BLOB_DELTA) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                header.write((int) (base >>> shift));
+            }
+        }
+        Delta.writeVarint(header, compressedSize);
+        header.writeTo(out);
+        position += header.size();
+    }
+}
@@ -0,0 +1,288 @@
+package gitlet;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.function.Supplier;
+
+import static gitlet.Utils.*;
+
+/** The object store of a repository: loose objects plus pack files.
+ *
+ *  New objects are always written loose. Reads look at the loose objects
+ *  first and then at every pack in objects/pack, so callers never need to
+ *  know where an object lives. repack moves everything into one pack.
+ *  Likewise a blob stored as a ChunkedBlob is put together from its
+ *  chunks, wherever they are, when it is opened or read as a blob.
+ *
+ *  @author Kunhua Huang
+ */
+public class PackedObjectStore implements ObjectStore {
+
+    private final LooseObjectStore loose;
+    private final File packDir;
+    private List<PackFile> packs;
+    /** The stamp of the pack directory when the packs were found. */
+    private FileStamp stamp;
+
+    /** Constructor for the object store in the given objects directory.
+     *
+     * @param objectsDir the objects directory of the repository
+     */
+    public PackedObjectStore(File objectsDir) {
+        this.loose = new LooseObjectStore(objectsDir);
+        this.packDir = join(objectsDir, "pack");
+    }
+
+    /** packs
+     * Returns the packs of this store, finding them on first use. A pack
+     * counts only once its index has been written.
+     *
+     * @return the packs of this store
+     */
+    synchronized List<PackFile> packs() {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            List<String> names = plainFilenamesIn(packDir);
+            if (names != null) {
+                for (String name : names) {
+                    if (name.endsWith(".idx")) {
+                        String base = name.substring(0, name.length() - ".idx".length());
+                        packs.add(new PackFile(join(packDir, base + ".pack")));
+                    }
+                }
+            }
+            stamp = new FileStamp(packDir);
+        }
+        return packs;
+    }
+
+    @Override
+    public synchronized void refresh() {
+        if (packs != null && !FileStamp.matches(stamp, packDir)) {
+            for (PackFile pack : packs) {
+                pack.close();
+            }
+            packs = null;
+        }
+    }
+
+    /** packOf
+     * Returns the pack holding the object with the given id, or null.
+     */
+    private PackFile packOf(String id) {
+        for (PackFile pack : packs()) {
+            if (pack.contains(id)) {
+                return pack;
+            }
+        }
+        return null;
+    }
+
+    /** packOrFail
+     * Returns the pack holding the object with the given id, throwing
+     * IllegalArgumentException if there is none.
+     */
+    private PackFile packOrFail(String id) {
+        PackFile pack = packOf(id);
+        if (pack == null) {
+            throw new IllegalArgumentException("no object " + id);
+        }
+        return pack;
+    }
+
+    @Override
+    public boolean contains(String id) {
+        return loose.contains(id) || packOf(id) != null;
+    }
+
+    @Override
+    public String typeOf(String id) {
+        if (loose.contains(id)) {
+            return loose.typeOf(id);
+        }
+        PackFile pack = packOf(id);
+        if (pack == null) {
+            throw new IllegalArgumentException("no object " + id);
+        }
+        return pack.typeOf(id);
+    }
+
+    @Override
+    public byte[] read(String id, String type) {
+        if (type.equals(BLOB) && typeOf(id).equals(CHUNKED)) {
+            ChunkedBlob chunks = ChunkedBlob.fromBytes(read(id, CHUNKED));
+            if (chunks.size() > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException(id + " is too large to read into memory");
+            }
+            byte[] contents = new byte[(int) chunks.size()];
+            try (DataInputStream in = new DataInputStream(chunks.open(this))) {
+                in.readFully(contents);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            return contents;
+        }
+        if (loose.contains(id)) {
+            return loose.read(id, type);
+        }
+        PackFile pack = packOf(id);
+        if (pack == null) {
+            throw new IllegalArgumentException("no object " + id);
+        }
+        return pack.read(id, type);
+    }
+
+    @Override
+    public InputStream open(String id, String type) {
+        if (loose.contains(id)) {
+            return type.equals(BLOB) ? loose.openBlob(id, this) : loose.open(id, type);
+        }
+        PackFile pack = packOrFail(id);
+        if (type.equals(BLOB) && pack.typeOf(id).equals(CHUNKED)) {
+            return ChunkedBlob.fromBytes(pack.read(id, CHUNKED)).open(this);
+        }
+        return pack.open(id, type);
+    }
+
+    @Override
+    public long sizeOf(String id) {
+        if (loose.contains(id)) {
+            return loose.sizeOf(id);
+        }
+        return packOrFail(id).sizeOf(id);
+    }
+
+    @Override
+    public void write(String type, String id, byte[] payload) {
+        if (packOf(id) == null) {
+            loose.write(type, id, payload);
+        }
+    }
+
+    @Override
+    public void write(String type, String id, InputStream payload, long length) {
+        if (packOf(id) == null) {
+            loose.write(type, id, payload, length);
+            return;
+        }
+        try {
+            payload.close();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    @Override
+    public List<String> list(String prefix) {
+        SortedSet<String> ids = new TreeSet<>(loose.list(prefix));
+        for (PackFile pack : packs()) {
+            ids.addAll(pack.list(prefix));
+        }
+        return new ArrayList<>(ids);
+    }
+
+    /** receive
+     * Writes the objects added to WRITER into a new pack of this store, so
+     * that objects copied from another repository arrive as a single file
+     * rather than one file per object.
+     *
+     * @param writer the writer holding the objects to store
+     */
+    synchronized void receive(PackWriter writer) {
+        writer.write(packDir);
+        if (packs != null) {
+            for (PackFile pack : packs) {
+                pack.close();
+            }
+            packs = null;
+        }
+    }
+
+    /** repack
+     * Writes every object into a single new pack, then removes the loose
+     * objects and the old packs. Blobs are stored as deltas against the
+     * bases given, where that saves space.
+     *
+     * @param deltaBases maps blob ids to the id of the blob to delta against
+     */
+    void repack(Map<String, String> deltaBases) {
+        List<String> ids = list("");
+        PackWriter writer = new PackWriter(this);
+        for (String id : ids) {
+            writer.add(id, deltaBases.get(id));
+        }
+        File newPack = writer.write(packDir);
+        // The new pack must be on disk before the copies it replaces go
+        Journal.sync();
+
+        for (PackFile pack : packs()) {
+            pack.close();
+            if (!pack.getFile().equals(newPack)) {
+                String name = pack.getFile().getName();
+                pack.getFile().delete();
+                join(packDir, name.substring(0, name.length() - ".pack".length()) + ".idx")
+                        .delete();
+            }
+        }
+        for (String id : loose.list("")) {
+            loose.delete(id);
+        }
+        packs = null;
+    }
+
+    /** prune
+     * Removes every object not in KEEP. Loose objects are simply deleted.
+     * The packs holding any object to remove are written again as one new
+     * pack of the objects they hold that are kept, and then deleted; the
+     * other packs are left alone.
+     *
+     * @param keep the ids of the objects to keep
+     * @param deltaBases gives the delta bases for repack, and is only
+     *                   called if a pack is written again
+     */
+    synchronized void prune(Set<String> keep, Supplier<Map<String, String>> deltaBases) {
+        for (String id : loose.list("")) {
+            if (!keep.contains(id)) {
+                loose.delete(id);
+            }
+        }
+        List<PackFile> stale = new ArrayList<>();
+        for (PackFile pack : packs()) {
+            if (!keep.containsAll(pack.list(""))) {
+                stale.add(pack);
+            }
+        }
+        if (stale.isEmpty()) {
+            return;
+        }
+        Map<String, String> bases = deltaBases.get();
+        PackWriter writer = new PackWriter(this);
+        boolean empty = true;
+        for (PackFile pack : stale) {
+            for (String id : pack.list("")) {
+                if (keep.contains(id) && !loose.contains(id)) {
+                    writer.add(id, bases.get(id));
+                    empty = false;
+                }
+            }
+        }
+        File newPack = empty ? null : writer.write(packDir);
+        Journal.sync();
+        for (PackFile pack : stale) {
+            pack.close();
+            if (!pack.getFile().equals(newPack)) {
+                String name = pack.getFile().getName();
+                pack.getFile().delete();
+                join(packDir, name.substring(0, name.length() - ".pack".length()) + ".idx")
+                        .delete();
+            }
+        }
+        for (PackFile pack : packs()) {
+            pack.close();
+        }
+        packs = null;
+    }
+}
@@ -0,0 +1,269 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+import static gitlet.Utils.*;
+
+/** The reverse index of a repository: for every file name ever committed,
+ *  the ids of all blobs committed under that name.
+ *
+ *  Whether a working file is tracked by some commit is a single lookup
+ *  here instead of reading every commit in the repository. The file is
+ *  laid out as
+ *
+ *      MAGIC VERSION COUNT { NAME BLOBS ID[BLOBS] }[COUNT] { NAME ID }*
+ *
+ *  with each NAME in modified UTF-8 prefixed by its length, 4-byte counts
+ *  and raw 20-byte ids. New commits only append the (NAME, ID) pairs they
+ *  add, so a commit costs as much as the files it changes rather than the
+ *  whole index; once the appended pairs outnumber a quarter of all pairs,
+ *  the file is compacted into the grouped form again. A pair cut short by
+ *  an interrupted append is ignored and written over. Like the commit
+ *  graph, the index only repeats what the commits already say, so it is
+ *  rebuilt from the object store whenever its file is missing or damaged.
+ *
+ *  @author Kunhua Huang
+ */
+class PathIndex {
+
+    /** "PATH" */
+    private static final int MAGIC = 0x50415448;
+    private static final int VERSION = 2;
+    private static final int ID_BYTES = ObjectId.LENGTH;
+    /** The file is never compacted for fewer appended pairs. */
+    private static final int MIN_COMPACT = 256;
+
+    private final File file;
+    private final ObjectStore store;
+    /** The blob ids of each file name, or null until first loaded. */
+    private Map<String, Set<ObjectId>> paths;
+    /** The number of (name, blob id) pairs in the index. */
+    private int pairs;
+    /** The number of pairs appended since the file was last compacted. */
+    private int appended;
+    /** The length of the file up to the end of its last whole pair. */
+    private long validLength;
+    /** The stamp of the file when it was last read or written. */
+    private FileStamp stamp;
+
+    /** Constructor for the path index in FILE, covering the commits in
+     *  STORE.
+     *
+     * @param file the path index file
+     * @param store the object store the commits live in
+     */
+    PathIndex(File file, ObjectStore store) {
+        this.file = file;
+        this.store = store;
+    }
+
+    /** contains
+     * Checks if any commit tracks a file with the given name.
+     *
+     * @param fileName the name of the file
+     * @return true if some commit tracks the file
+     */
+    boolean contains(String fileName) {
+        load();
+        return paths.containsKey(fileName);
+    }
+
+    /** contains
+     * Checks if any commit tracks the given blob under the given name.
+     *
+     * @param fileName the name of the file
+     * @param blobId the id of the blob
+     * @return true if some commit tracks the blob under that name
+     */
+    boolean contains(String fileName, String blobId) {
+        load();
+        Set<ObjectId> blobs = paths.get(fileName);
+        return blobs != null && blobs.contains(ObjectId.fromHex(blobId));
+    }
+
+    /** add
+     * Adds the files of the given commits to the index, appending the
+     * pairs that are new to its file, or compacting the file if enough
+     * pairs have been appended.
+     *
+     * @param commits the commits to add
+     */
+    void add(Collection<Commit> commits) {
+        load();
+        List<Map.Entry<String, ObjectId>> added = index(commits);
+        if (added.isEmpty()) {
+            return;
+        }
+        appended += added.size();
+        if (appended > Math.max(MIN_COMPACT, pairs / 4)) {
+            save();
+        } else {
+            append(added);
+        }
+    }
+
+    /** rebuild
+     * Recreates the index by reading every commit in the store.
+     */
+    void rebuild() {
+        List<Commit> commits = new ArrayList<>();
+        for (String id : store.list("")) {
+            if (store.typeOf(id).equals(ObjectStore.COMMIT)) {
+                Commit commit = Commit.fromBytes(store.read(id, ObjectStore.COMMIT));
+                commit.setTreeReader(Tree.reader(store));
+                commits.add(commit);
+            }
+        }
+        paths = new HashMap<>();
+        pairs = 0;
+        index(commits);
+        save();
+    }
+
+    /** index
+     * Adds the files of the given commits to the in-memory index.
+     *
+     * @return the pairs that were new
+     */
+    private List<Map.Entry<String, ObjectId>> index(Collection<Commit> commits) {
+        List<Map.Entry<String, ObjectId>> added = new ArrayList<>();
+        for (Commit commit : commits) {
+            for (Map.Entry<String, String> entry : commit.getBlobs().entrySet()) {
+                ObjectId id = ObjectId.fromHex(entry.getValue());
+                if (paths.computeIfAbsent(entry.getKey(), k -> new HashSet<>()).add(id)) {
+                    added.add(new AbstractMap.SimpleEntry<>(entry.getKey(), id));
+                }
+            }
+        }
+        pairs += added.size();
+        return added;
+    }
+
+    /** append
+     * Appends pairs to the file, first dropping a pair left partly
+     * written by an interrupted append.
+     */
+    private void append(List<Map.Entry<String, ObjectId>> added) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            byte[] raw = new byte[ID_BYTES];
+            for (Map.Entry<String, ObjectId> pair : added) {
+                out.writeUTF(pair.getKey());
+                pair.getValue().copyTo(raw, 0);
+                out.write(raw);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.getChannel().truncate(validLength);
+            out.write(bytes.toByteArray());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        validLength += bytes.size();
+        stamp = new FileStamp(file);
+    }
+
+    /** save
+     * Writes the whole index to its file, with no appended pairs.
+     */
+    private void save() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(paths.size());
+            byte[] raw = new byte[ID_BYTES];
+            for (Map.Entry<String, Set<ObjectId>> entry : paths.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (ObjectId id : entry.getValue()) {
+                    id.copyTo(raw, 0);
+                    out.write(raw);
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        Journal.replace(file, bytes.toByteArray());
+        appended = 0;
+        validLength = bytes.size();
+        stamp = new FileStamp(file);
+    }
+
+    /** refresh
+     * Forgets the in-memory index if another process has changed the file
+     * since it was read, so that it is read again on next use.
+     */
+    void refresh() {
+        if (!FileStamp.matches(stamp, file)) {
+            paths = null;
+        }
+    }
+
+    /** load
+     * Reads the index on first use, rebuilding it if the file is missing
+     * or damaged.
+     */
+    private void load() {
+        if (paths != null) {
+            return;
+        }
+        if (file.isFile()) {
+            byte[] contents = readContents(file);
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents))) {
+                if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+                    int count = in.readInt();
+                    Map<String, Set<ObjectId>> loaded = new HashMap<>();
+                    int loadedPairs = 0;
+                    byte[] raw = new byte[ID_BYTES];
+                    for (int i = 0; i < count; i += 1) {
+                        String fileName = in.readUTF();
+                        int blobs = in.readInt();
+                        Set<ObjectId> ids = new HashSet<>();
+                        for (int k = 0; k < blobs; k += 1) {
+                            in.readFully(raw);
+                            ids.add(ObjectId.fromRaw(raw, 0));
+                        }
+                        loaded.put(fileName, ids);
+                        loadedPairs += blobs;
+                    }
+                    int loadedAppended = 0;
+                    long end = contents.length - in.available();
+                    try {
+                        while (in.available() > 0) {
+                            String fileName = in.readUTF();
+                            in.readFully(raw);
+                            if (loaded.computeIfAbsent(fileName, k -> new HashSet<>())
+                                    .add(ObjectId.fromRaw(raw, 0))) {
+                                loadedPairs += 1;
+                            }
+                            loadedAppended += 1;
+                            end = contents.length - in.available();
+                        }
+                    } catch (EOFException excp) {
+                        // An interrupted append; every whole pair stands
+                    }
+                    paths = loaded;
+                    pairs = loadedPairs;
+                    appended = loadedAppended;
+                    validLength = end;
+                    stamp = new FileStamp(file);
+                    return;
+                }
+            } catch (IOException | RuntimeException excp) {
+                // Damaged; fall through and rebuild
+            }
+        }
+        rebuild();
+    }
+}
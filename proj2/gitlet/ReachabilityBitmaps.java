@@ -0,0 +1,503 @@
+package gitlet;
+
+import java.io.File;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.Function;
+
+import static gitlet.Utils.*;
+
+/** Reachability bitmaps: for some commits, the set of every object
+ *  reachable from them, so that the objects one commit reaches and another
+ *  does not are a bitmap AND-NOT instead of a walk over history and trees.
+ *
+ *  Repack and gc build the bitmaps over the objects reachable at the time,
+ *  numbered in the order a walk of history meets them, oldest commit
+ *  first. The objects of old commits then have the low numbers, and the
+ *  bitmap of a commit is mostly one long run of ones, which EwahBitmap
+ *  stores in a few words. A bitmap is kept for each branch tip and for each
+ *  commit whose generation is a multiple of INTERVAL, so a walk back from
+ *  any other commit soon meets one. Objects stored since the bitmaps were
+ *  built have no number; a query walks the commits and trees holding them
+ *  and returns them by id.
+ *
+ *  The file is laid out as
+ *
+ *      MAGIC VERSION COUNT IDS[COUNT] TYPES[COUNT] SORTED[COUNT]
+ *      BITMAPS { NUMBER LENGTH WORDS[LENGTH] }[BITMAPS]
+ *
+ *  with the raw 20-byte ids and 1-byte types of the objects by number,
+ *  their 4-byte numbers in order of id, and each bitmap as the number of
+ *  its commit, a word count and its EWAH words. The bitmaps only repeat
+ *  what the objects say, so a missing or damaged file just means there
+ *  are none.
+ *
+ *  @author Kunhua Huang
+ */
+class ReachabilityBitmaps {
+
+    /** "BITM" */
+    private static final int MAGIC = 0x4249544d;
+    private static final int VERSION = 1;
+    private static final int ID_BYTES = UID_LENGTH / 2;
+    /** A bitmap is kept for every commit whose generation is a multiple of this. */
+    static final int INTERVAL = 16;
+    /** The object types, by their stored number. */
+    private static final String[] TYPES = {ObjectStore.COMMIT, ObjectStore.TREE, ObjectStore.BLOB};
+    private static final int COMMIT = 0;
+    private static final int TREE = 1;
+    private static final int BLOB = 2;
+
+    /** A set of objects: those with a number as a bitmap, and the others
+     *  by id, with their types. */
+    final class ObjectSet {
+        private final BitSet bits = new BitSet();
+        private final Map<String, String> others = new LinkedHashMap<>();
+
+        /** add
+         * Adds an object to the set.
+         *
+         * @return false if it was already there
+         */
+        private boolean add(String id, String type) {
+            int number = numberOf(id);
+            if (number < 0) {
+                return others.putIfAbsent(id, type) == null;
+            } else if (bits.get(number)) {
+                return false;
+            }
+            bits.set(number);
+            return true;
+        }
+
+        /** andNot
+         * Removes every object of another set from this one.
+         *
+         * @param other the objects to remove
+         */
+        void andNot(ObjectSet other) {
+            bits.andNot(other.bits);
+            others.keySet().removeAll(other.others.keySet());
+        }
+
+        /** size
+         * Returns the number of objects in the set.
+         *
+         * @return the number of objects
+         */
+        int size() {
+            return bits.cardinality() + others.size();
+        }
+
+        /** ofType
+         * Returns the ids of the objects of one type in the set.
+         *
+         * @param type the type of the objects
+         * @return their ids
+         */
+        List<String> ofType(String type) {
+            List<String> result = new ArrayList<>();
+            for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+                if (TYPES[types[i]].equals(type)) {
+                    result.add(toHex(ids, i * ID_BYTES, ID_BYTES));
+                }
+            }
+            for (Map.Entry<String, String> other : others.entrySet()) {
+                if (other.getValue().equals(type)) {
+                    result.add(other.getKey());
+                }
+            }
+            return result;
+        }
+    }
+
+    private final File file;
+    /** The raw ids and types of the objects by number, or null until first
+     *  loaded. */
+    private byte[] ids;
+    private byte[] types;
+    /** The numbers of the objects in order of id. */
+    private int[] sorted;
+    /** The bitmaps, by the number of their commit. */
+    private Map<Integer, EwahBitmap> bitmaps;
+    /** The stamp of the file when it was last read or written. */
+    private FileStamp stamp;
+
+    /** Constructor for the bitmaps in FILE.
+     *
+     * @param file the bitmap file
+     */
+    ReachabilityBitmaps(File file) {
+        this.file = file;
+    }
+
+    /** isEmpty
+     * Checks if there are no bitmaps, so that queries would walk all of
+     * history.
+     *
+     * @return true if there are no bitmaps
+     */
+    boolean isEmpty() {
+        load();
+        return bitmaps.isEmpty();
+    }
+
+    /** reach
+     * Returns every object reachable from the given commits. The commit
+     * graph is walked back from them, without reading commits, until each
+     * path meets a commit with a bitmap, and those bitmaps are OR-ed. Only
+     * the commits walked over are read, oldest first, and of their trees
+     * only those not already in the set, so for each commit just the
+     * directories that changed since its parents are opened.
+     *
+     * @param tips the ids of the commits to start from
+     * @param graph the commit graph holding them
+     * @param commits reads commits
+     * @param trees reads trees
+     * @return the reachable objects
+     */
+    ObjectSet reach(Collection<String> tips, CommitGraph graph,
+                    Function<String, Commit> commits, Function<String, Tree> trees) {
+        load();
+        ObjectSet result = new ObjectSet();
+        BitSet visited = new BitSet(graph.size());
+        Deque<Integer> stack = new ArrayDeque<>();
+        for (String tip : tips) {
+            int start = graph.positionOf(tip);
+            if (start >= 0 && !visited.get(start)) {
+                visited.set(start);
+                stack.push(start);
+            }
+        }
+        List<Integer> walked = new ArrayList<>();
+        while (!stack.isEmpty()) {
+            int current = stack.pop();
+            int number = numberOf(graph.idAt(current));
+            if (number >= 0 && result.bits.get(number)) {
+                continue;
+            }
+            EwahBitmap bitmap = bitmaps.get(number);
+            if (bitmap != null) {
+                result.bits.or(bitmap.toBitSet());
+                continue;
+            }
+            walked.add(current);
+            for (int parent : graph.parentsOf(current)) {
+                if (!visited.get(parent)) {
+                    visited.set(parent);
+                    stack.push(parent);
+                }
+            }
+        }
+
+        walked.sort(Comparator.comparingInt(graph::generationAt));
+        for (int position : walked) {
+            String id = graph.idAt(position);
+            if (!result.add(id, ObjectStore.COMMIT)) {
+                continue;
+            }
+            Commit commit = commits.apply(id);
+            if (commit.getTree() != null) {
+                addTree(result, commit.getTree(), trees);
+            } else {
+                for (String blobId : commit.getBlobs().values()) {
+                    result.add(blobId, ObjectStore.BLOB);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** addTree
+     * Adds a tree and everything under it to a set of objects, unless the
+     * tree is already there, since then so is everything under it.
+     */
+    private void addTree(ObjectSet set, String treeId, Function<String, Tree> trees) {
+        if (!set.add(treeId, ObjectStore.TREE)) {
+            return;
+        }
+        for (Tree.Entry entry : trees.apply(treeId).getEntries().values()) {
+            if (entry.isTree) {
+                addTree(set, entry.id, trees);
+            } else {
+                set.add(entry.id, ObjectStore.BLOB);
+            }
+        }
+    }
+
+    /** isAncestor
+     * Checks if the commit ANCESTOR is DESCENDANT or one of its ancestors.
+     * Walks back from DESCENDANT, never going below the generation of
+     * ANCESTOR, and stops on each path at the first commit with a bitmap,
+     * which answers for everything below it by one bit.
+     *
+     * @param graph the commit graph holding both commits
+     * @param ancestor the id of the possible ancestor
+     * @param descendant the id of the possible descendant
+     * @return true if ANCESTOR is an ancestor of DESCENDANT
+     */
+    boolean isAncestor(CommitGraph graph, String ancestor, String descendant) {
+        int target = graph.positionOf(ancestor);
+        int start = graph.positionOf(descendant);
+        if (target < 0 || start < 0) {
+            return false;
+        }
+        load();
+        // A commit without a number is newer than every bitmap
+        int targetNumber = numberOf(ancestor);
+        int minGeneration = graph.generationAt(target);
+        BitSet visited = new BitSet(graph.size());
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(start);
+        visited.set(start);
+        while (!queue.isEmpty()) {
+            int current = queue.poll();
+            if (current == target) {
+                return true;
+            }
+            EwahBitmap bitmap = bitmaps.isEmpty() ? null
+                    : bitmaps.get(numberOf(graph.idAt(current)));
+            if (bitmap != null) {
+                if (targetNumber >= 0 && bitmap.get(targetNumber)) {
+                    return true;
+                }
+                continue;
+            }
+            for (int parent : graph.parentsOf(current)) {
+                if (!visited.get(parent) && graph.generationAt(parent) >= minGeneration) {
+                    visited.set(parent);
+                    queue.add(parent);
+                }
+            }
+        }
+        return false;
+    }
+
+    /** build
+     * Numbers every object reachable from the given commits and writes a
+     * bitmap for each of them and for every commit whose generation is a
+     * multiple of INTERVAL. Each bitmap is built from the ones below it,
+     * so every commit and tree is read about once.
+     *
+     * @param graph the commit graph holding the commits
+     * @param tips the full ids of the commits to start from
+     * @param commits reads commits
+     * @param trees reads trees
+     */
+    void build(CommitGraph graph, Collection<String> tips,
+               Function<String, Commit> commits, Function<String, Tree> trees) {
+        BitSet reachable = graph.reachable(tips);
+        List<Integer> oldestFirst = new ArrayList<>();
+        for (int i = reachable.nextSetBit(0); i >= 0; i = reachable.nextSetBit(i + 1)) {
+            oldestFirst.add(i);
+        }
+        oldestFirst.sort(Comparator.comparingInt(graph::generationAt));
+
+        Map<String, Integer> numbers = new HashMap<>();
+        List<String> numbered = new ArrayList<>();
+        List<Byte> numberedTypes = new ArrayList<>();
+        for (int position : oldestFirst) {
+            String id = graph.idAt(position);
+            number(id, COMMIT, numbers, numbered, numberedTypes);
+            Commit commit = commits.apply(id);
+            if (commit.getTree() != null) {
+                numberTree(commit.getTree(), trees, numbers, numbered, numberedTypes);
+            } else {
+                for (String blobId : commit.getBlobs().values()) {
+                    number(blobId, BLOB, numbers, numbered, numberedTypes);
+                }
+            }
+        }
+        int count = numbered.size();
+        ids = new byte[count * ID_BYTES];
+        types = new byte[count];
+        for (int i = 0; i < count; i += 1) {
+            System.arraycopy(fromHex(numbered.get(i)), 0, ids, i * ID_BYTES, ID_BYTES);
+            types[i] = numberedTypes.get(i);
+        }
+        Integer[] byId = new Integer[count];
+        for (int i = 0; i < count; i += 1) {
+            byId[i] = i;
+        }
+        Arrays.sort(byId, Comparator.comparing(numbered::get));
+        sorted = new int[count];
+        for (int i = 0; i < count; i += 1) {
+            sorted[i] = byId[i];
+        }
+
+        bitmaps = new HashMap<>();
+        Set<String> tipSet = new HashSet<>(tips);
+        for (int position : oldestFirst) {
+            String id = graph.idAt(position);
+            if (graph.generationAt(position) % INTERVAL == 0 || tipSet.contains(id)) {
+                ObjectSet objects = reach(Collections.singleton(id), graph, commits, trees);
+                bitmaps.put(numbers.get(id), EwahBitmap.of(objects.bits));
+            }
+        }
+        save();
+    }
+
+    /** number
+     * Gives an object the next number, unless it has one.
+     *
+     * @return false if the object already had a number
+     */
+    private static boolean number(String id, int type, Map<String, Integer> numbers,
+                                  List<String> numbered, List<Byte> numberedTypes) {
+        if (numbers.putIfAbsent(id, numbered.size()) != null) {
+            return false;
+        }
+        numbered.add(id);
+        numberedTypes.add((byte) type);
+        return true;
+    }
+
+    /** numberTree
+     * Numbers a tree and everything under it, each tree before its entries,
+     * unless the tree already has a number.
+     */
+    private static void numberTree(String treeId, Function<String, Tree> trees,
+                                   Map<String, Integer> numbers, List<String> numbered,
+                                   List<Byte> numberedTypes) {
+        if (!number(treeId, TREE, numbers, numbered, numberedTypes)) {
+            return;
+        }
+        for (Tree.Entry entry : trees.apply(treeId).getEntries().values()) {
+            if (entry.isTree) {
+                numberTree(entry.id, trees, numbers, numbered, numberedTypes);
+            } else {
+                number(entry.id, BLOB, numbers, numbered, numberedTypes);
+            }
+        }
+    }
+
+    /** numberOf
+     * Returns the number of the object with the given full id, or -1 if it
+     * has none.
+     */
+    private int numberOf(String id) {
+        if (sorted.length == 0 || !ObjectId.isId(id)) {
+            return -1;
+        }
+        ObjectId key = ObjectId.fromHex(id);
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = key.compareTo(ids, sorted[mid] * ID_BYTES);
+            if (cmp == 0) {
+                return sorted[mid];
+            } else if (cmp > 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return -1;
+    }
+
+    /** clear
+     * Deletes the bitmaps, before objects they count are removed.
+     */
+    void clear() {
+        file.delete();
+        setEmpty();
+        stamp = null;
+    }
+
+    /** save
+     * Writes the bitmaps to their file.
+     */
+    private void save() {
+        int count = types.length;
+        long length = 16 + (long) count * (ID_BYTES + 1 + 4);
+        for (EwahBitmap bitmap : bitmaps.values()) {
+            length += 8 + 8L * bitmap.getWords().length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) length);
+        buf.putInt(MAGIC).putInt(VERSION).putInt(count);
+        buf.put(ids).put(types);
+        for (int number : sorted) {
+            buf.putInt(number);
+        }
+        buf.putInt(bitmaps.size());
+        for (Map.Entry<Integer, EwahBitmap> entry : new TreeMap<>(bitmaps).entrySet()) {
+            long[] words = entry.getValue().getWords();
+            buf.putInt(entry.getKey()).putInt(words.length);
+            for (long word : words) {
+                buf.putLong(word);
+            }
+        }
+        Journal.replace(file, buf.array());
+        stamp = new FileStamp(file);
+    }
+
+    /** refresh
+     * Forgets the bitmaps if another process has changed the file since
+     * they were read, so that they are read again on next use.
+     */
+    void refresh() {
+        if (!FileStamp.matches(stamp, file)) {
+            bitmaps = null;
+        }
+    }
+
+    /** load
+     * Reads the bitmaps on first use. A missing or damaged file leaves
+     * none.
+     */
+    private void load() {
+        if (bitmaps != null) {
+            return;
+        }
+        if (file.isFile()) {
+            try {
+                ByteBuffer buf = mapContents(file);
+                if (buf.getInt() == MAGIC && buf.getInt() == VERSION) {
+                    int count = buf.getInt();
+                    byte[] newIds = new byte[count * ID_BYTES];
+                    byte[] newTypes = new byte[count];
+                    int[] newSorted = new int[count];
+                    buf.get(newIds).get(newTypes);
+                    boolean valid = true;
+                    for (int i = 0; i < count; i += 1) {
+                        newSorted[i] = buf.getInt();
+                        valid &= newSorted[i] >= 0 && newSorted[i] < count
+                                && newTypes[i] >= 0 && newTypes[i] < TYPES.length;
+                    }
+                    Map<Integer, EwahBitmap> newBitmaps = new HashMap<>();
+                    for (int n = buf.getInt(); n > 0; n -= 1) {
+                        int number = buf.getInt();
+                        long[] words = new long[buf.getInt()];
+                        buf.asLongBuffer().get(words);
+                        buf.position(buf.position() + 8 * words.length);
+                        newBitmaps.put(number, EwahBitmap.fromWords(words));
+                    }
+                    if (!valid || buf.hasRemaining()) {
+                        throw new BufferUnderflowException();
+                    }
+                    ids = newIds;
+                    types = newTypes;
+                    sorted = newSorted;
+                    bitmaps = newBitmaps;
+                    stamp = new FileStamp(file);
+                    return;
+                }
+            } catch (BufferUnderflowException | NegativeArraySizeException excp) {
+                // Damaged: there are no bitmaps
+            }
+        }
+        setEmpty();
+    }
+
+    /** setEmpty
+     * Leaves no objects and no bitmaps.
+     */
+    private void setEmpty() {
+        ids = new byte[0];
+        types = new byte[0];
+        sorted = new int[0];
+        bitmaps = new HashMap<>();
+    }
+}
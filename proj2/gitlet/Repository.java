@@ -1,8 +1,15 @@
 package gitlet;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static gitlet.Utils.*;
 
@@ -19,17 +26,36 @@ public class Repository {
     public static final File CWD = new File(System.getProperty("user.dir"));
     public static final File GITLET_DIR = join(CWD, ".gitlet");
     public static final File STAGE = join(GITLET_DIR, "stage");
-    public static final File BLOBS_DIR = join(GITLET_DIR, "blobs");
-    public static final File COMMITS_DIR = join(GITLET_DIR, "commits");
+    public static final File OBJECTS_DIR = join(GITLET_DIR, "objects");
     public static final File HEAD = join(GITLET_DIR, "HEAD");
     public static final File REFS = join(GITLET_DIR, "REFS");
     public static final File REFS_HEADS = join(REFS, "heads");
     public static final File REMOTE = join(GITLET_DIR, "remotes");
     public static final File REMOTE_HEADS = join(REFS, "remotes");
+    public static final File VERSION = join(GITLET_DIR, "version");
 
-    private static Commit currentCommit;
     private static String currentBranch;
     private static StageArea stageArea;
+    private static StatCache statCache;
+    private static final ObjectStore OBJECTS = ObjectStore.open(GITLET_DIR);
+    private static final CommitGraph COMMIT_GRAPH =
+            new CommitGraph(join(GITLET_DIR, "commit-graph"), OBJECTS);
+    private static final PathIndex PATH_INDEX =
+            new PathIndex(join(GITLET_DIR, "path-index"), OBJECTS);
+    private static final CommitCatalog CATALOG = new CommitCatalog(join(GITLET_DIR, "catalog"),
+            join(GITLET_DIR, "catalog-messages"), join(GITLET_DIR, "catalog-hashes"), OBJECTS);
+    private static final ChangedPathFilters PATH_FILTERS =
+            new ChangedPathFilters(join(GITLET_DIR, "commit-graph-paths"), OBJECTS);
+    private static final ReachabilityBitmaps BITMAPS =
+            new ReachabilityBitmaps(join(GITLET_DIR, "bitmaps"));
+    /** Decoded commits and blobs, kept for the life of the process. */
+    private static final ObjectCache OBJECT_CACHE = new ObjectCache(ObjectCache.DEFAULT_CAPACITY);
+    /** Fewer objects than this are sent to another repository loose. */
+    private static final int UNPACK_LIMIT = 64;
+    /** Files at least this large are stored in chunks. The gitlet.chunkThreshold
+     *  system property changes it; 0 stores every file whole. */
+    private static final long CHUNK_THRESHOLD =
+            Long.getLong("gitlet.chunkThreshold", ChunkedBlob.DEFAULT_THRESHOLD);
 
     /** init command
      *  Creates a new Gitlet version-control system in the current directory.
@@ -38,23 +64,22 @@ public class Repository {
      */
     public static void init() throws IOException {
         if (GITLET_DIR.exists()) {
-            System.out.println("A Gitlet version-control system"
+            throw error("A Gitlet version-control system"
                     + " already exists in the current directory.");
-            System.exit(0);
         }
         GITLET_DIR.mkdir();
         STAGE.createNewFile();
-        BLOBS_DIR.mkdir();
-        COMMITS_DIR.mkdir();
+        OBJECTS_DIR.mkdir();
         REFS.mkdir();
         REFS_HEADS.mkdir();
         HEAD.createNewFile();
         REMOTE.mkdir();
         REMOTE_HEADS.mkdir();
+        writeContents(VERSION, String.valueOf(Migration.CURRENT_VERSION));
 
-        initCommit();
+        Commit initCommit = initCommit();
         initHEAD();
-        initRefsHeads();
+        initRefsHeads(initCommit);
 
         stageArea = new StageArea();
     }
@@ -67,9 +92,39 @@ public class Repository {
      */
     public static void isInitialized() {
         if (!GITLET_DIR.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw error("Not in an initialized Gitlet directory.");
         }
+        Migration.upgrade(GITLET_DIR);
+    }
+
+    /** refresh
+     *  Forgets the state kept from the previous command, so that the next
+     *  command sees the repository as it is now. The daemon calls this
+     *  before each command it runs; the commit graph, path index, catalog,
+     *  path filters, bitmaps, stage and stat cache are only read again if another process changed
+     *  their files in the meantime.
+     */
+    static void refresh() {
+        currentBranch = null;
+        stageArea = null;
+        statCache = null;
+        StageArea.refresh();
+        StatCache.refresh();
+        OBJECTS.refresh();
+        COMMIT_GRAPH.refresh();
+        PATH_INDEX.refresh();
+        CATALOG.refresh();
+        PATH_FILTERS.refresh();
+        BITMAPS.refresh();
+    }
+
+    /** cacheStats
+     *  Returns the hit and miss counts of the object cache.
+     *
+     *  @return a description of how the object cache has done
+     */
+    static String cacheStats() {
+        return OBJECT_CACHE.toString();
     }
 
     /** initCommit
@@ -79,18 +134,20 @@ public class Repository {
      *  The HEAD file is updated to point to the initial commit.
      *  The master branch is created and points to the initial commit.
      *  The initial commit is saved to the .gitlet/commits directory.
+     *
+     *  @return the initial commit
      */
-    public static void initCommit() {
+    public static Commit initCommit() {
         // Use an empty list to signify no parents for the initial commit
         List<String> noParents = new ArrayList<>();
-        Map<String, Blob> noBlobs = new HashMap<>(); // No files are tracked in the initial commit
+        Map<String, String> noBlobs = new HashMap<>(); // No files are tracked in the initial commit
 
         // Creating the initial commit with no parents and no blobs
         Commit initCommit = new Commit("initial commit", noParents, noBlobs);
-        currentCommit = initCommit;
 
         // Save the newly created commit to storage
         saveCommit(initCommit);
+        return initCommit;
     }
 
     /** initHEAD
@@ -109,37 +166,151 @@ public class Repository {
      *  This method is called after the initial commit is created.
      *  The master branch is the default branch in Gitlet.
      *  The master branch is created and points to the initial commit.
+     *
+     *  @param initCommit the initial commit
      */
-    public static void initRefsHeads() {
+    public static void initRefsHeads(Commit initCommit) {
         File master = join(REFS_HEADS, "master");
-        writeContents(master, currentCommit.getId());
+        writeContents(master, initCommit.getId());
     }
 
     /** add command
-     *  Adds a copy of the file as it currently exists to the staging area.
-     *  The file is added to the staging area with the same name it has in the
-     *  working directory.
+     *  Adds a copy of each file as it currently exists to the staging area.
+     *  The files are added to the staging area with the same names they
+     *  have in the working directory, and a directory stands for every
+     *  plain file under it, in subdirectories too. Nothing is staged unless every file
+     *  exists. The files are hashed and stored in parallel, and the staging
+     *  area is written once for all of them.
      *
-     *  @param fileName the name of the file to add
+     *  @param operands the names of the files and directories to add
      */
-    public static void add(String fileName) {
+    public static void add(String... operands) {
         isInitialized();
 
-        File file = join(CWD, fileName);
-        if (!file.exists()) {
-            System.out.println("File does not exist.");
-            System.exit(0);
+        Set<String> fileNames = new LinkedHashSet<>();
+        for (String operand : operands) {
+            File file = join(CWD, operand);
+            if (!file.exists()) {
+                throw error("File does not exist.");
+            }
+            if (file.isDirectory()) {
+                fileNames.addAll(filesInDirectory(file, operand));
+            } else {
+                fileNames.add(operand);
+            }
         }
 
-        Blob blob = new Blob(file);
-        currentCommit = getCurrentCommit();
+        Commit currentCommit = getCurrentCommit();
         stageArea = StageArea.getInstance();
-        String lastCommittedId = null;
-        if (currentCommit.getBlobs().containsKey(fileName)) {
-            lastCommittedId = currentCommit.getBlobs().get(fileName).getId();
+        statCache = StatCache.getInstance();
+        stageFiles(fileNames, Collections.emptySet(), currentCommit.getBlobs());
+    }
+
+    /** add -A command
+     *  Stages every change in the working directory: new and modified
+     *  files are added, and tracked or staged files that were deleted are
+     *  removed, all in one batch.
+     */
+    public static void addAll() {
+        isInitialized();
+
+        Commit currentCommit = getCurrentCommit();
+        stageArea = StageArea.getInstance();
+        statCache = StatCache.getInstance();
+
+        List<String> fileNames = Objects.requireNonNull(plainFilenamesUnder(CWD));
+        Set<String> deleted = new TreeSet<>(currentCommit.getBlobs().keySet());
+        deleted.addAll(stageArea.getStagedFiles().keySet());
+        deleted.removeAll(fileNames);
+        deleted.removeAll(stageArea.getRemovedFiles());
+        stageFiles(fileNames, deleted, currentCommit.getBlobs());
+    }
+
+    /** filesInDirectory
+     *  Returns the paths of the plain files under a directory of the
+     *  working directory, as the add command names them.
+     *
+     *  @param dir the directory
+     *  @param operand the name the directory was given by
+     *  @return the names of the files in it
+     */
+    private static List<String> filesInDirectory(File dir, String operand) {
+        List<String> names = new ArrayList<>();
+        boolean isWorkingDir;
+        try {
+            isWorkingDir = dir.getCanonicalFile().equals(CWD.getCanonicalFile());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        for (String name : Objects.requireNonNull(plainFilenamesUnder(dir))) {
+            names.add(isWorkingDir ? name : operand + "/" + name);
+        }
+        return names;
+    }
+
+    /** stageFiles
+     *  Stages the given existing files and removes the given deleted ones,
+     *  writing the staging area once. The existing files are hashed, and
+     *  the blobs that need storing are stored, on the common fork/join pool
+     *  before anything is staged.
+     *
+     *  @param fileNames the names of the files to add
+     *  @param deleted the names of the deleted files to remove
+     *  @param tracked the files of the current commit
+     */
+    private static void stageFiles(Collection<String> fileNames, Collection<String> deleted,
+                                   Map<String, String> tracked) {
+        // The stat cache avoids reading the files that are unchanged
+        Map<String, String> blobIds = fileNames.parallelStream()
+                .collect(Collectors.toConcurrentMap(name -> name,
+                        name -> hashAndStore(name, tracked)));
+        stageArea.batch(() -> {
+            for (String fileName : fileNames) {
+                addFile(fileName, blobIds.get(fileName), tracked);
+            }
+            for (String fileName : deleted) {
+                if (stageArea.isFileStaged(fileName)) {
+                    stageArea.unstageFile(fileName);
+                }
+                if (tracked.containsKey(fileName)) {
+                    stageArea.markRemoved(fileName);
+                }
+            }
+        });
+        statCache.save();
+    }
+
+    /** hashAndStore
+     *  Returns the blob id of an existing file, storing the blob if addFile
+     *  is going to stage it. Only reads the staging area, so it can run on
+     *  many files at once.
+     *
+     *  @param fileName the name of the file
+     *  @param tracked the files of the current commit
+     *  @return the blob id of the file
+     */
+    private static String hashAndStore(String fileName, Map<String, String> tracked) {
+        File file = join(CWD, fileName);
+        String blobId = statCache.idOf(fileName, file);
+        if (!blobId.equals(tracked.get(fileName))
+                && !stageArea.isRemoved(fileName)) {
+            storeBlob(new Blob(file, blobId));
         }
+        return blobId;
+    }
+
+    /** addFile
+     *  Stages one existing file for the add command. Its blob has already
+     *  been stored by hashAndStore.
+     *
+     *  @param fileName the name of the file to add
+     *  @param blobId the blob id of the file
+     *  @param tracked the files of the current commit
+     */
+    private static void addFile(String fileName, String blobId, Map<String, String> tracked) {
+        String lastCommittedId = tracked.get(fileName);
 
-        if (lastCommittedId != null && lastCommittedId.equals(blob.getId())
+        if (lastCommittedId != null && lastCommittedId.equals(blobId)
                 && !stageArea.isRemoved(fileName)) {
             return;
         }
@@ -147,21 +318,104 @@ public class Repository {
         if (stageArea.isRemoved(fileName)) {
             stageArea.unmarkRemoved(fileName);
         } else {
-            stageArea.stageFile(fileName, file);
-            storeBlob(blob);
+            stageArea.stageFile(fileName, blobId);
         }
-
     }
 
     /** storeBlob
-     *  Stores the blob object in the .gitlet/blobs directory.
-     *  The blob object is stored as a file with the name of its unique id.
+     *  Stores the contents of the blob in the object store, under the
+     *  blob's unique id. The contents are streamed from the blob's file. A
+     *  file of at least CHUNK_THRESHOLD bytes is stored as a ChunkedBlob,
+     *  so that only the chunks a new version changed take up space.
      *
      *  @param blob the blob object to store
      */
     private static void storeBlob(Blob blob) {
-        File blobFile = join(BLOBS_DIR, blob.getId());
-        writeObject(blobFile, blob);
+        File file = blob.getSource();
+        if (CHUNK_THRESHOLD > 0 && file.length() >= CHUNK_THRESHOLD) {
+            if (!OBJECTS.contains(blob.getId())) {
+                ChunkedBlob.write(file, blob.getId(), OBJECTS);
+            }
+            return;
+        }
+        OBJECTS.write(ObjectStore.BLOB, blob.getId(), openContents(file), file.length());
+    }
+
+    /** copyBlob
+     *  Copies the blob with the given id from one object store to another,
+     *  streaming its contents. A chunked blob is copied as its list of
+     *  chunks and the chunks the other store lacks.
+     *
+     *  @param blobId the id of the blob to copy
+     *  @param from the object store to copy from
+     *  @param to the object store to copy to
+     */
+    private static void copyBlob(String blobId, ObjectStore from, ObjectStore to) {
+        if (from.typeOf(blobId).equals(ObjectStore.CHUNKED)) {
+            byte[] list = from.read(blobId, ObjectStore.CHUNKED);
+            for (String chunkId : ChunkedBlob.fromBytes(list).getChunks()) {
+                if (!to.contains(chunkId)) {
+                    to.write(ObjectStore.BLOB, chunkId, from.read(chunkId, ObjectStore.BLOB));
+                }
+            }
+            to.write(ObjectStore.CHUNKED, blobId, list);
+            return;
+        }
+        to.write(ObjectStore.BLOB, blobId, from.open(blobId, ObjectStore.BLOB),
+                from.sizeOf(blobId));
+    }
+
+    /** readBlob
+     *  Reads the whole contents of the blob with the given id from the given
+     *  store into memory. Only merges and diffs need this; everything else
+     *  streams blobs.
+     *
+     *  @param store the object store to read from
+     *  @param blobId the id of the blob to read
+     *  @return the contents of the blob
+     */
+    private static byte[] readBlob(ObjectStore store, String blobId) {
+        return OBJECT_CACHE.get(blobId, byte[].class,
+                () -> store.read(blobId, ObjectStore.BLOB));
+    }
+
+    /** checkoutBlob
+     *  Writes the contents of a blob to a file in the working directory and
+     *  records its stat data, so that the file is not hashed again until it
+     *  changes.
+     *
+     *  @param source the object store to read the blob from
+     *  @param fileName the name of the file to write
+     *  @param blobId the id of the blob to write
+     */
+    private static void checkoutBlob(ObjectStore source, String fileName, String blobId) {
+        File file = join(CWD, fileName);
+        file.getParentFile().mkdirs();
+        copyToFile(source.open(blobId, ObjectStore.BLOB), file);
+        StatCache.getInstance().record(fileName, file, blobId);
+    }
+
+    /** remoteObjects
+     *  Returns the object store of the remote repository with the given name.
+     *
+     *  @param remoteName the name of the remote repository
+     *  @return the object store of that remote
+     */
+    private static ObjectStore remoteObjects(String remoteName) {
+        return ObjectStore.open(join(readContentsAsString(join(REMOTE, remoteName))));
+    }
+
+    /** remoteCommitGraph
+     *  Returns the commit graph of the remote repository with the given
+     *  name, covering the commits in the given store of that remote.
+     *
+     *  @param remoteName the name of the remote repository
+     *  @param remoteStore the object store of that remote
+     *  @return the commit graph of that remote
+     */
+    private static CommitGraph remoteCommitGraph(String remoteName, ObjectStore remoteStore) {
+        return new CommitGraph(join(readContentsAsString(join(REMOTE, remoteName)),
+                "commit-graph"), remoteStore);
     }
 
     /** getCurrentCommit
@@ -178,18 +432,14 @@ public class Repository {
 
         String currentHead = readContentsAsString(HEAD);
 
-        if (currentCommit == null) {
-            if (currentHead.contains("/")) {
-                String remoteName = currentHead.split("/")[0];
-                String branchName = currentHead.split("/")[1];
-                File remoteBranch = join(REMOTE_HEADS, remoteName, branchName);
-                currentCommit = getCommit(readContentsAsString(remoteBranch), remoteName);
-            } else {
-                File currentCommitPath = join(REFS_HEADS, currentHead);
-                currentCommit = getCommit(readContentsAsString(currentCommitPath), null);
-            }
+        if (currentHead.contains("/")) {
+            String remoteName = currentHead.split("/")[0];
+            String branchName = currentHead.split("/")[1];
+            File remoteBranch = join(REMOTE_HEADS, remoteName, branchName);
+            return getCommit(readContentsAsString(remoteBranch), remoteName);
         }
-        return currentCommit;
+        File currentCommitPath = join(REFS_HEADS, currentHead);
+        return getCommit(readContentsAsString(currentCommitPath), null);
     }
 
     /** getCurrentBranch
@@ -217,11 +467,10 @@ public class Repository {
         isInitialized();
 
         if (message.isEmpty()) {
-            System.out.println("Please enter a commit message.");
-            System.exit(0);
+            throw error("Please enter a commit message.");
         }
 
-        currentCommit = getCurrentCommit();
+        Commit currentCommit = getCurrentCommit();
         stageArea = StageArea.getInstance();
         boolean isChanged = !stageArea.getStagedFiles().isEmpty()
                 || !stageArea.getRemovedFiles().isEmpty();
@@ -232,18 +481,9 @@ public class Repository {
         }
 
         // Merge current commit's blobs with staged blobs to form the new commit's blobs
-        Map<String, Blob> newCommitBlobs = new HashMap<>(currentCommit.getBlobs());
-        for (Map.Entry<String, Blob> entry : stageArea.getStagedFiles().entrySet()) {
-            Blob blob = entry.getValue();
-            String blobId = blob.getId();
-
-            // Only store the blob if it does not already exist to avoid redundancy
-            File blobFile = join(BLOBS_DIR, blobId);
-            if (!blobFile.exists()) {
-                storeBlob(blob);
-            }
-            newCommitBlobs.put(entry.getKey(), blob);
-        }
+        Map<String, String> newCommitBlobs = new HashMap<>(currentCommit.getBlobs());
+        // Staged blobs were stored when they were staged
+        newCommitBlobs.putAll(stageArea.getStagedFiles());
 
         // Remove blobs marked for removal in the staging area
         for (String removedFileName : stageArea.getRemovedFiles()) {
@@ -257,11 +497,14 @@ public class Repository {
 
         String parentCommitId = currentCommit.getId();
         Commit newCommit = createCommit(message, parentCommitId, newCommitBlobs);
-        stageArea.clear();
 
-        // Update HEAD and current branch to point to the new commit
-        writeContents(join(REFS_HEADS, getCurrentBranch()), newCommit.getId());
-        writeContents(HEAD, getCurrentBranch());
+        // Clear the stage and move the branch to the new commit together
+        String branch = getCurrentBranch();
+        Journal.begin();
+        stageArea.clear();
+        Journal.write(join(REFS_HEADS, branch), newCommit.getId());
+        Journal.write(HEAD, branch);
+        Journal.commit();
     }
 
     /** createCommit
@@ -275,7 +518,7 @@ public class Repository {
      *  @return the new commit object
      */
     public static Commit createCommit(String message, String parentId,
-                                      Map<String, Blob> blobs) {
+                                      Map<String, String> blobs) {
         Commit newCommit = new Commit(message, parentId, blobs);
         newCommit.setParent(Collections.singletonList(parentId));
         saveCommit(newCommit);
@@ -283,16 +526,91 @@ public class Repository {
     }
 
     /** saveCommit
-     *  Saves the commit object to the .gitlet/commits directory.
+     *  Saves a new commit object to the object store, together with the
+     *  trees of the directories that changed since its first parent. The
+     *  trees of every other directory are shared with the parent.
      *
      *  @param commit the commit object to save
      */
     public static void saveCommit(Commit commit) {
-        String commitId = commit.getId();
-        File commitDir = join(COMMITS_DIR, commitId.substring(0, 2));
-        commitDir.mkdir();
-        File commitFile = join(commitDir, commitId.substring(2));
-        writeObject(commitFile, commit);
+        if (commit.getTree() == null) {
+            Map<String, String> oldFiles = Collections.emptyMap();
+            String oldRoot = null;
+            if (!commit.getParent().isEmpty()) {
+                Commit parent = readCommit(OBJECTS, commit.getParent().get(0));
+                oldFiles = parent.getBlobs();
+                oldRoot = parent.getTree();
+            }
+            commit.setTree(Tree.write(commit.getBlobs(), oldFiles, oldRoot,
+                    treeId -> readTree(OBJECTS, treeId),
+                    tree -> OBJECTS.write(ObjectStore.TREE, tree.getId(), tree.toBytes())));
+        }
+        saveCommit(OBJECTS, commit);
+        indexCommits(COMMIT_GRAPH, PATH_INDEX, CATALOG, PATH_FILTERS,
+                Collections.singletonList(commit));
+    }
+
+    /** indexCommits
+     *  Adds commits that were just saved to the commit graph, path index,
+     *  commit catalog and changed-path filters of a repository. Commits the
+     *  graph already knows are skipped.
+     *
+     *  @param graph the commit graph of the repository
+     *  @param paths the path index of the repository
+     *  @param catalog the commit catalog of the repository
+     *  @param filters the changed-path filters of the repository
+     *  @param commits the commits to add
+     */
+    private static void indexCommits(CommitGraph graph, PathIndex paths,
+                                     CommitCatalog catalog, ChangedPathFilters filters,
+                                     List<Commit> commits) {
+        Map<String, Commit> added = new LinkedHashMap<>();
+        for (Commit commit : commits) {
+            if (graph.positionOf(commit.getId()) < 0) {
+                added.putIfAbsent(commit.getId(), commit);
+            }
+        }
+        graph.add(added.values());
+        paths.add(commits);
+        catalog.append(added.values(), graph.size());
+        filters.add(added.values());
+    }
+
+    /** saveCommit
+     *  Saves the commit object to the given object store. The caller must
+     *  index the commit in that repository.
+     *
+     *  @param store the object store to save to
+     *  @param commit the commit object to save
+     */
+    private static void saveCommit(ObjectStore store, Commit commit) {
+        store.write(ObjectStore.COMMIT, commit.getId(), commit.toBytes());
+    }
+
+    /** readCommit
+     *  Reads the commit with the given full id from the given object store.
+     *
+     *  @param store the object store to read from
+     *  @param id the full id of the commit
+     *  @return the commit object
+     */
+    private static Commit readCommit(ObjectStore store, String id) {
+        Commit commit = OBJECT_CACHE.get(id, Commit.class,
+                () -> Commit.fromBytes(store.read(id, ObjectStore.COMMIT)));
+        commit.setTreeReader(treeId -> readTree(store, treeId));
+        return commit;
+    }
+
+    /** readTree
+     *  Reads the tree with the given id from the given object store.
+     *
+     *  @param store the object store to read from
+     *  @param id the id of the tree
+     *  @return the tree
+     */
+    private static Tree readTree(ObjectStore store, String id) {
+        return OBJECT_CACHE.get(id, Tree.class,
+                () -> Tree.fromBytes(store.read(id, ObjectStore.TREE)));
     }
 
     /** rm command
@@ -305,16 +623,15 @@ public class Repository {
     public static void rm(String fileName) {
         isInitialized();
 
-        currentCommit = getCurrentCommit();
+        Commit currentCommit = getCurrentCommit();
         stageArea = StageArea.getInstance();
 
         if (!stageArea.isFileStaged(fileName)) {
             if (!isFileTracked(fileName)) {
-                System.out.println("No reason to remove the file.");
-                System.exit(0);
+                throw error("No reason to remove the file.");
             } else {
                 stageArea.markRemoved(fileName);
-                Utils.restrictedDelete(fileName);
+                Utils.restrictedDelete(CWD, fileName);
             }
         } else {
             stageArea.unstageFile(fileName);
@@ -323,7 +640,7 @@ public class Repository {
         if (currentCommit.getBlobs().containsKey(fileName)) {
             stageArea.markRemoved(fileName);
             if (join(CWD, fileName).exists()) {
-                Utils.restrictedDelete(fileName);
+                Utils.restrictedDelete(CWD, fileName);
             }
         }
 
@@ -334,24 +651,89 @@ public class Repository {
      */
     public static void log() {
         isInitialized();
-        currentCommit = getCurrentCommit();
+        Commit currentCommit = getCurrentCommit();
         while (currentCommit != null) {
-            System.out.println("===");
-            System.out.println("commit " + currentCommit.getId());
+            printLogEntry(currentCommit);
+            currentCommit = getNextCommit(currentCommit);
+        }
+    }
 
-            // Check and print parents for merge commits
-            List<String> parents = currentCommit.getParent();
-            if (parents.size() > 1) {
-                System.out.println("Merge: "
-                        + currentCommit.getParent().get(0).substring(0, 7)
-                        + " " + currentCommit.getParent().get(1).substring(0, 7));
+    /** log command, for one path
+     *  Prints the log entries of the commits, from the current one back
+     *  along first parents, that changed the file or directory at the
+     *  given path from their first parent. The history is followed in the
+     *  commit graph, and a commit whose changed-path filter rules the path
+     *  out is passed over without being read; the others are read and
+     *  checked, since a filter may say a path changed when it did not.
+     *
+     *  @param path the path of a file or directory in the repository
+     */
+    public static void log(String path) {
+        isInitialized();
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        int position = COMMIT_GRAPH.positionOf(getCurrentCommit().getId());
+        while (position >= 0) {
+            String commitId = COMMIT_GRAPH.idAt(position);
+            int[] parents = COMMIT_GRAPH.parentsOf(position);
+            if (PATH_FILTERS.mayHaveChanged(commitId, path)) {
+                Commit commit = readCommit(OBJECTS, commitId);
+                String parentEntry = parents.length == 0 ? null
+                        : pathEntry(readCommit(OBJECTS, COMMIT_GRAPH.idAt(parents[0])), path);
+                if (!Objects.equals(pathEntry(commit, path), parentEntry)) {
+                    printLogEntry(commit);
+                }
             }
+            position = parents.length == 0 ? -1 : parents[0];
+        }
+    }
 
-            System.out.println("Date: " + currentCommit.getFormattedTimestamp());
-            System.out.println(currentCommit.getMessage() + "\n");
+    /** printLogEntry
+     *  Prints the log entry of a commit.
+     *
+     *  @param commit the commit
+     */
+    private static void printLogEntry(Commit commit) {
+        System.out.println("===");
+        System.out.println("commit " + commit.getId());
 
-            currentCommit = getNextCommit(currentCommit);
+        // Check and print parents for merge commits
+        List<String> parents = commit.getParent();
+        if (parents.size() > 1) {
+            System.out.println("Merge: "
+                    + commit.getParent().get(0).substring(0, 7)
+                    + " " + commit.getParent().get(1).substring(0, 7));
+        }
+
+        System.out.println("Date: " + commit.getFormattedTimestamp());
+        System.out.println(commit.getMessage() + "\n");
+    }
+
+    /** pathEntry
+     *  Returns what a commit holds at a path: the blob id of a file, or
+     *  something equal exactly when everything under a directory is.
+     *
+     *  @param commit the commit
+     *  @param path the path of a file or directory
+     *  @return the id of the blob or tree, or null if there is nothing
+     */
+    private static String pathEntry(Commit commit, String path) {
+        if (commit.getTree() != null) {
+            return Tree.find(commit.getTree(), path, id -> readTree(OBJECTS, id));
+        }
+        Map<String, String> blobs = commit.getBlobs();
+        if (blobs.containsKey(path)) {
+            return blobs.get(path);
+        }
+        // A commit from before trees: the files under the directory
+        SortedMap<String, String> under = new TreeMap<>();
+        for (Map.Entry<String, String> entry : blobs.entrySet()) {
+            if (entry.getKey().startsWith(path + "/")) {
+                under.put(entry.getKey(), entry.getValue());
+            }
         }
+        return under.isEmpty() ? null : under.toString();
     }
 
     /** getNextCommit
@@ -371,78 +753,59 @@ public class Repository {
 
     /** getCommit
      *  Returns the commit object with the given id.
-     *  The commit object is retrieved from the .gitlet/commits directory.
+     *  The commit object is retrieved from the object store. A full id is
+     *  read directly; an abbreviated one is resolved through the commit graph.
      *
      *  @param id the id of the commit to retrieve
      *  @param remoteName the name of the remote repository
      *  @return the commit object with the given id
      */
     private static Commit getCommit(String id, String remoteName) {
-
-        File commitDir = remoteName == null ? join(COMMITS_DIR, id.substring(0, 2))
-                : join(readContentsAsString(join(REMOTE, remoteName)),
-                "commits", id.substring(0, 2));
+        ObjectStore store = remoteName == null ? OBJECTS : remoteObjects(remoteName);
 
         if (id.length() < 6) {
-            System.out.println("Commit id is too short.");
-            System.exit(0);
-        }
-        if (!commitDir.exists()) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
+            throw error("Commit id is too short.");
         }
-        for (File commitFile : Objects.requireNonNull(commitDir.listFiles())) {
-            Commit commit = readObject(commitFile, Commit.class);
-            if (commit.getId().substring(2).startsWith(id.substring(2))) {
-                return commit;
+        if (id.length() == UID_LENGTH) {
+            if (store.contains(id) && store.typeOf(id).equals(ObjectStore.COMMIT)) {
+                return readCommit(store, id);
+            }
+        } else {
+            CommitGraph graph = remoteName == null ? COMMIT_GRAPH
+                    : remoteCommitGraph(remoteName, store);
+            List<String> matches = graph.list(id);
+            if (!matches.isEmpty()) {
+                return readCommit(store, matches.get(0));
             }
         }
-        System.out.println("No commit with that id exists.");
-        System.exit(0);
-        return null;
+        throw error("No commit with that id exists.");
     }
 
     /** global-log command
-     *  Prints information about all commits in the repository.
+     *  Prints information about all commits in the repository, newest
+     *  first. Everything shown comes from the commit catalog, so no commit
+     *  is read.
      */
     public static void globalLog() {
         isInitialized();
 
-        List<Commit> commits = new ArrayList<>();
-
-        for (File commitFolder : Objects.requireNonNull(COMMITS_DIR.listFiles())) {
-            if (commitFolder == null) {
-                return;
-            }
-            File[] commitFiles = commitFolder.listFiles();
-            if (commitFiles == null) {
-                continue;
-            }
-            for (File commitFile : commitFiles) {
-                try {
-                    Commit commit = readObject(commitFile, Commit.class);
-                    commits.add(commit);
-                } catch (IllegalArgumentException e) {
-                    System.out.println("Error reading commit file.");
-                    System.exit(0);
-                }
+        StringBuilder out = new StringBuilder();
+        for (int i : CATALOG.newestFirst()) {
+            out.append("===\n");
+            out.append("commit ").append(CATALOG.idAt(i)).append("\n");
+            List<String> parents = CATALOG.parentsAt(i);
+            if (parents.size() > 1) {
+                out.append("Merge: ").append(parents.get(0), 0, 7)
+                        .append(" ").append(parents.get(1), 0, 7).append("\n");
             }
-        }
-
-        commits.sort((c1, c2) -> c2.getTimestamp().compareTo(c1.getTimestamp()));
-
-        for (Commit commit : commits) {
-            System.out.println("===");
-            System.out.println("commit " + commit.getId());
-            if (commit.getParent().size() > 1) {
-                System.out.println("Merge: "
-                        + commit.getParent().get(0).substring(0, 7)
-                        + " " + commit.getParent().get(1).substring(0, 7));
+            out.append("Date: ").append(Commit.formatTimestamp(new Date(CATALOG.timeAt(i))));
+            out.append("\n").append(CATALOG.messageAt(i)).append("\n\n");
+            if (out.length() > 1 << 16) {
+                System.out.print(out);
+                out.setLength(0);
             }
-            System.out.println("Date: " + commit.getFormattedTimestamp());
-            System.out.println(commit.getMessage() + "\n");
         }
-
+        System.out.print(out);
     }
 
     /** find command
@@ -452,24 +815,14 @@ public class Repository {
      */
     public static void find(String commitMessage) {
         isInitialized();
-        boolean found = false;
+        List<String> found = CATALOG.find(commitMessage);
 
-        for (File commitFolder : Objects.requireNonNull(COMMITS_DIR.listFiles())) {
-            if (commitFolder == null) {
-                return;
-            }
-            for (File commitFile : Objects.requireNonNull(commitFolder.listFiles())) {
-                Commit commit = readObject(commitFile, Commit.class);
-                if (commit.getMessage().equals(commitMessage)) {
-                    System.out.println(commit.getId());
-                    found = true;
-                }
-            }
+        for (String commitId : found) {
+            System.out.println(commitId);
         }
 
-        if (!found) {
-            System.out.println("Found no commit with that message.");
-            System.exit(0);
+        if (found.isEmpty()) {
+            throw error("Found no commit with that message.");
         }
     }
 
@@ -479,7 +832,7 @@ public class Repository {
     public static void status() {
         isInitialized();
 
-        currentCommit = getCurrentCommit();
+        Commit currentCommit = getCurrentCommit();
         currentBranch = getCurrentBranch();
         stageArea = StageArea.getInstance();
 
@@ -502,7 +855,9 @@ public class Repository {
         }
 
         System.out.println("\n=== Modifications Not Staged For Commit ===");
-        printModifiedFiles();
+        statCache = StatCache.getInstance();
+        printModifiedFiles(currentCommit);
+        statCache.save();
         System.out.println("\n=== Untracked Files ===");
         Set<String> untrackedFiles = getUntrackedFiles(currentCommit);
         for (String file : untrackedFiles) {
@@ -514,13 +869,15 @@ public class Repository {
 
     /** printModifiedFiles
      *  Prints the files that have been modified or deleted since the last commit.
+     *
+     *  @param currentCommit the current commit
      */
-    private static void printModifiedFiles() {
+    private static void printModifiedFiles(Commit currentCommit) {
         for (String fileName : currentCommit.getBlobs().keySet()) {
             File file = join(CWD, fileName);
             if (file.exists() && !stageArea.isFileStaged(fileName)) {
-                if (!sha1((Object) readContents(file)).equals(
-                        currentCommit.getBlobs().get(fileName).getId())
+                if (!statCache.idOf(fileName, file).equals(
+                        currentCommit.getBlobs().get(fileName))
                         && !isConflict(fileName)) {
                     System.out.println(fileName + " (modified)");
                 }
@@ -540,9 +897,112 @@ public class Repository {
      */
     private static boolean isConflict(String fileName) {
         File file = join(CWD, fileName);
-        // read the first line of that file
-        String firstLine = readContentsAsString(file).split("\n")[0];
-        return firstLine.equals("<<<<<<< HEAD");
+        // a line merge may put the markers anywhere in the file, so read up
+        // to the first of them; the markers are ASCII, so any file decodes
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.ISO_8859_1))) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                if (line.equals("<<<<<<< HEAD")) {
+                    return true;
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return false;
+    }
+
+    /** diff command
+     *  Prints the differences between two versions of the tracked files, in
+     *  unified format. With no commit ids, compares the version of each file
+     *  that would be committed now (the staged version, or else the one in
+     *  the current commit) with the file in the working directory. With two
+     *  commit ids, compares the files of the first commit with those of the
+     *  second.
+     *
+     *  @param commitIds nothing, or the ids of the two commits to compare
+     */
+    public static void diff(String... commitIds) {
+        isInitialized();
+        StringBuilder out = new StringBuilder();
+
+        if (commitIds.length == 2) {
+            Map<String, String> from = getCommit(commitIds[0], null).getBlobs();
+            Map<String, String> to = getCommit(commitIds[1], null).getBlobs();
+            Set<String> fileNames = new TreeSet<>(from.keySet());
+            fileNames.addAll(to.keySet());
+            for (String fileName : fileNames) {
+                String fromId = from.get(fileName);
+                String toId = to.get(fileName);
+                if (!Objects.equals(fromId, toId)) {
+                    appendDiff(out, fileName,
+                            fromId == null ? null : readBlob(OBJECTS, fromId),
+                            toId == null ? null : readBlob(OBJECTS, toId));
+                }
+            }
+        } else {
+            stageArea = StageArea.getInstance();
+            statCache = StatCache.getInstance();
+            Map<String, String> index = new TreeMap<>(getCurrentCommit().getBlobs());
+            index.putAll(stageArea.getStagedFiles());
+            index.keySet().removeAll(stageArea.getRemovedFiles());
+            for (Map.Entry<String, String> entry : index.entrySet()) {
+                String fileName = entry.getKey();
+                File file = join(CWD, fileName);
+                if (!file.isFile()) {
+                    appendDiff(out, fileName, readBlob(OBJECTS, entry.getValue()), null);
+                } else if (!statCache.idOf(fileName, file).equals(entry.getValue())) {
+                    appendDiff(out, fileName, readBlob(OBJECTS, entry.getValue()),
+                            readContents(file));
+                }
+            }
+            statCache.save();
+        }
+        System.out.print(out);
+    }
+
+    /** appendDiff
+     *  Appends the differences between two versions of a file to OUT. A
+     *  missing version is shown as /dev/null, and files holding a NUL byte
+     *  are only reported as differing.
+     *
+     *  @param out the output to append to
+     *  @param fileName the name of the file
+     *  @param oldContents the old contents, or null if the file is added
+     *  @param newContents the new contents, or null if the file is removed
+     */
+    private static void appendDiff(StringBuilder out, String fileName,
+                                   byte[] oldContents, byte[] newContents) {
+        String oldName = oldContents == null ? "/dev/null" : "a/" + fileName;
+        String newName = newContents == null ? "/dev/null" : "b/" + fileName;
+        out.append("diff --git a/").append(fileName).append(" b/").append(fileName).append('\n');
+        if (isBinary(oldContents) || isBinary(newContents)) {
+            out.append("Binary files ").append(oldName).append(" and ").append(newName)
+                    .append(" differ\n");
+            return;
+        }
+        List<String> empty = Collections.emptyList();
+        out.append(LineDiff.unified(oldName, newName,
+                oldContents == null ? empty : LineDiff.splitLines(oldContents),
+                newContents == null ? empty : LineDiff.splitLines(newContents)));
+    }
+
+    /** isBinary
+     *  Checks if contents look binary: a NUL byte among the first 8000.
+     *
+     *  @param contents the contents to check, or null
+     *  @return true if the contents are binary
+     */
+    private static boolean isBinary(byte[] contents) {
+        if (contents == null) {
+            return false;
+        }
+        for (int i = 0; i < Math.min(contents.length, 8000); i += 1) {
+            if (contents[i] == 0) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /** checkoutFile command
@@ -553,8 +1013,9 @@ public class Repository {
     public static void checkoutFile(String fileName) {
         isInitialized();
         File file = join(CWD, fileName);
-        currentCommit = getCurrentCommit();
+        Commit currentCommit = getCurrentCommit();
         isFileExistInCommit(fileName, file, currentCommit);
+        StatCache.getInstance().save();
     }
 
     /** isFileExistInCommit
@@ -566,14 +1027,10 @@ public class Repository {
      *  @param currCommit the commit to check
      */
     private static void isFileExistInCommit(String fileName, File file, Commit currCommit) {
-        File blobFile = join(BLOBS_DIR, currCommit.getBlobs().get(fileName).getId());
-
         if (!currCommit.getBlobs().containsKey(fileName)) {
-            System.out.println("File does not exist in that commit.");
-            System.exit(0);
+            throw error("File does not exist in that commit.");
         }
-        Blob blob = readObject(blobFile, Blob.class);
-        writeContents(file, (Object) blob.getContentBytes());
+        checkoutBlob(OBJECTS, fileName, currCommit.getBlobs().get(fileName));
     }
 
     /** checkoutCommit command
@@ -588,11 +1045,11 @@ public class Repository {
         Commit commit = getCommit(commitId, null);
 
         if (commit.getBlobs().get(fileName) == null) {
-            System.out.println("File does not exist in that commit.");
-            System.exit(0);
+            throw error("File does not exist in that commit.");
         }
 
         isFileExistInCommit(fileName, file, commit);
+        StatCache.getInstance().save();
     }
 
     /** checkoutBranch command
@@ -610,115 +1067,98 @@ public class Repository {
             remoteName = branchName.split("/")[0];
             branch = branchName.split("/")[1];
             if (!plainFilenamesIn(join(REMOTE_HEADS, remoteName)).contains(branch)) {
-                System.out.println("A branch with that name does not exist on the remote.");
-                System.exit(0);
+                throw error("A branch with that name does not exist on the remote.");
             }
         } else {
             if (!Objects.requireNonNull(plainFilenamesIn(REFS_HEADS)).contains(branchName)) {
-                System.out.println("No such branch exists.");
-                System.exit(0);
+                throw error("No such branch exists.");
             }
         }
 
         if (branchName.equals(readContentsAsString(HEAD))) {
-            System.out.println("No need to checkout the current branch.");
-            System.exit(0);
+            throw error("No need to checkout the current branch.");
         }
 
-        currentCommit = getCurrentCommit();
+        Commit currentCommit = getCurrentCommit();
         stageArea = StageArea.getInstance();
 
         String targetCommitId;
         Commit targetCommit;
-        File blobsDir;
+        ObjectStore source;
 
         if (branchName.contains("/")) {
             targetCommitId = readContentsAsString(join(REMOTE_HEADS, remoteName, branch));
             targetCommit = getCommit(targetCommitId, remoteName);
-            blobsDir = join(readContentsAsString(join(REMOTE, remoteName)), "blobs");
+            source = remoteObjects(remoteName);
         } else {
             targetCommitId = readContentsAsString(join(REFS_HEADS, branchName));
             targetCommit = getCommit(targetCommitId, null);
-            blobsDir = BLOBS_DIR;
+            source = OBJECTS;
         }
 
-        isFileUntracked(targetCommit);
-
-        Map<String, Blob> finalBlobs = targetCommit.getBlobs();
+        isFileUntracked(currentCommit, targetCommit);
 
-        for (Map.Entry<String, Blob> entry : finalBlobs.entrySet()) {
-            String fileName = entry.getKey();
-            String blobId = entry.getValue().getId();
-
-            Blob blob = readObject(join(blobsDir, blobId), Blob.class);
-            if (blobsDir != BLOBS_DIR) {
-                storeBlob(blob);
-            }
-            File file = join(CWD, fileName);
-            writeContents(file, (Object) blob.getContentBytes());
-            // Only write the final state of each file
-        }
+        Map<String, String> finalBlobs = targetCommit.getBlobs();
 
-        // Delete files that are present in the current
-        // working directory but not in the target commit
-        Set<String> currentFiles = new HashSet<>(Objects.requireNonNull(plainFilenamesIn(CWD)));
-        // Assuming this method gives us current files
-        for (String currentFile : currentFiles) {
-            if (!finalBlobs.containsKey(currentFile)) {
-                Utils.restrictedDelete(currentFile);
+        if (source != OBJECTS) {
+            for (String blobId : finalBlobs.values()) {
+                if (!OBJECTS.contains(blobId)) {
+                    copyBlob(blobId, source, OBJECTS);
+                }
             }
         }
+        statCache = StatCache.getInstance();
+        // Files the current commit tracks and the target does not are
+        // deleted; untracked files are left alone
+        new CheckoutEngine(CWD, OBJECTS, statCache).checkout(currentCommit.getBlobs(), finalBlobs);
 
+        statCache.save();
+        Journal.begin();
         stageArea.clear();
-        writeContents(HEAD, branchName);
+        Journal.write(HEAD, branchName);
+        Journal.commit();
     }
 
     /** isFileUntracked
-     *  Checks if there are untracked files in the way of the checkout.
+     *  Checks if there are untracked files in the way of the checkout,
+     *  either where the target has a file or where it has a directory.
      *
+     *  @param currentCommit the current commit
      *  @param targetCommit the commit to check
      */
-    private static void isFileUntracked(Commit targetCommit) {
+    private static void isFileUntracked(Commit currentCommit, Commit targetCommit) {
+        Set<String> dirs = new HashSet<>();
         for (String fileName : targetCommit.getBlobs().keySet()) {
             File file = join(CWD, fileName);
-            if (file.exists() && !currentCommit.getBlobs().containsKey(fileName)
-                    && !isFileTracked(fileName)) {
-                System.out.println("There is an untracked file in the way;"
+            boolean inTheWay = file.exists() && !currentCommit.getBlobs().containsKey(fileName)
+                    && !isFileTracked(fileName);
+            for (int slash = fileName.lastIndexOf('/'); !inTheWay && slash > 0
+                    && dirs.add(fileName.substring(0, slash));
+                 slash = fileName.lastIndexOf('/', slash - 1)) {
+                String dir = fileName.substring(0, slash);
+                inTheWay = join(CWD, dir).isFile() && !currentCommit.getBlobs().containsKey(dir);
+            }
+            if (inTheWay) {
+                throw error("There is an untracked file in the way;"
                         + " delete it, or add and commit it first.");
-                System.exit(0);
             }
         }
     }
 
     /** isFileTracked
-     *  Checks if the file is tracked in the current commit.
+     *  Checks if the file is tracked in any commit of the repository. An
+     *  existing file only counts as tracked if some commit holds its
+     *  current contents under its name.
      *
      *  @param fileName the name of the file to check
      *  @return true if the file is tracked, false otherwise
      */
     private static boolean isFileTracked(String fileName) {
-        Set<String> allCommits = getAllCommitIds();
         File file = join(CWD, fileName);
         if (file.exists()) {
-            String currentFileSha1 = sha1((Object) readContents(file));
-            for (String commitId : allCommits) {
-                Commit commit = getCommit(commitId, null);
-                if (commit != null && commit.getBlobs().containsKey(fileName)) {
-                    String fileSha1 = commit.getBlobs().get(fileName).getId();
-                    if (fileSha1.equals(currentFileSha1)) {
-                        return true;
-                    }
-                }
-            }
-        } else {
-            for (String commitId : allCommits) {
-                Commit commit = getCommit(commitId, null);
-                if (commit != null && commit.getBlobs().containsKey(fileName)) {
-                    return true;
-                }
-            }
+            return PATH_INDEX.contains(fileName, StatCache.getInstance().idOf(fileName, file));
         }
-        return false;
+        return PATH_INDEX.contains(fileName);
     }
 
     /** getAllCommitIds
@@ -727,20 +1167,7 @@ public class Repository {
      *  @return a set of all commit ids in the repository
      */
     private static Set<String> getAllCommitIds() {
-        Set<String> commitIds = new HashSet<>();
-        // Example: Traverse all commit objects stored in the commits directory
-        File[] commitFolders = COMMITS_DIR.listFiles();
-        if (commitFolders != null) {
-            for (File folder : commitFolders) {
-                File[] commits = folder.listFiles();
-                if (commits != null) {
-                    for (File commitFile : commits) {
-                        commitIds.add(folder.getName() + commitFile.getName());
-                    }
-                }
-            }
-        }
-        return commitIds;
+        return new HashSet<>(COMMIT_GRAPH.list(""));
     }
 
     /** branch command
@@ -751,12 +1178,11 @@ public class Repository {
     public static void branch(String branchName) {
         isInitialized();
         if (Objects.requireNonNull(plainFilenamesIn(REFS_HEADS)).contains(branchName)) {
-            System.out.println("A branch with that name already exists.");
-            System.exit(0);
+            throw error("A branch with that name already exists.");
         }
         currentBranch = getCurrentBranch();
-        currentCommit = getCurrentCommit();
-        writeContents(join(REFS_HEADS, branchName), currentCommit.getId());
+        Commit currentCommit = getCurrentCommit();
+        Journal.write(join(REFS_HEADS, branchName), currentCommit.getId());
     }
 
     /** rm-branch command
@@ -767,15 +1193,12 @@ public class Repository {
     public static void rmBranch(String branchName) {
         isInitialized();
         if (!Objects.requireNonNull(plainFilenamesIn(REFS_HEADS)).contains(branchName)) {
-            System.out.println("A branch with that name does not exist.");
-            System.exit(0);
+            throw error("A branch with that name does not exist.");
         }
         if (branchName.equals(readContentsAsString(HEAD))) {
-            System.out.println("Cannot remove the current branch.");
-            System.exit(0);
+            throw error("Cannot remove the current branch.");
         }
-        File branch = join(REFS_HEADS, branchName);
-        branch.delete();
+        Journal.delete(join(REFS_HEADS, branchName));
     }
 
     /** reset command
@@ -787,28 +1210,20 @@ public class Repository {
         isInitialized();
 
         Commit commit = getCommit(commitId, null);
-        currentCommit = getCurrentCommit();
+        Commit currentCommit = getCurrentCommit();
 
-        isFileUntracked(commit);
+        isFileUntracked(currentCommit, commit);
 
-        for (String fileName : currentCommit.getBlobs().keySet()) {
-            if (!commit.getBlobs().containsKey(fileName)) {
-                Utils.restrictedDelete(fileName);
-            }
-        }
-
-        for (String fileName : commit.getBlobs().keySet()) {
-            Blob blob = readObject(join(BLOBS_DIR,
-                    commit.getBlobs().get(fileName).getId()), Blob.class);
-            storeBlob(blob);
-            File file = join(CWD, fileName);
-            writeContents(file, (Object) blob.getContentBytes());
-        }
+        statCache = StatCache.getInstance();
+        new CheckoutEngine(CWD, OBJECTS, statCache).checkout(currentCommit.getBlobs(),
+                commit.getBlobs());
 
         stageArea = StageArea.getInstance();
+        statCache.save();
+        Journal.begin();
         stageArea.clear();
-        writeContents(join(REFS_HEADS, readContentsAsString(HEAD)), commitId);
-        currentCommit = commit;
+        Journal.write(join(REFS_HEADS, readContentsAsString(HEAD)), commit.getId());
+        Journal.commit();
     }
 
     /** merge command
@@ -823,36 +1238,31 @@ public class Repository {
         stageArea = StageArea.getInstance();
 
         if (!stageArea.getStagedFiles().isEmpty() || !stageArea.getRemovedFiles().isEmpty()) {
-            System.out.println("You have uncommitted changes.");
-            System.exit(0);
+            throw error("You have uncommitted changes.");
         }
 
         if (remoteName == null) {
             if (!Objects.requireNonNull(plainFilenamesIn(REFS_HEADS)).contains(branchName)) {
-                System.out.println("A branch with that name does not exist.");
-                System.exit(0);
+                throw error("A branch with that name does not exist.");
             }
         } else {
             if (!Objects.requireNonNull(plainFilenamesIn(join(REMOTE_HEADS, remoteName)))
                     .contains(branchName)) {
-                System.out.println("Remote branch does not exist.");
-                System.exit(0);
+                throw error("Remote branch does not exist.");
             }
 
             if (!Objects.requireNonNull(plainFilenamesIn(join(REMOTE_HEADS, remoteName)))
                     .contains(branchName)) {
-                System.out.println("A branch with that name does not exist on the remote.");
-                System.exit(0);
+                throw error("A branch with that name does not exist on the remote.");
             }
         }
 
         String branch = remoteName == null ? branchName : remoteName + "/" + branchName;
         if (branch.equals(readContentsAsString(HEAD))) {
-            System.out.println("Cannot merge a branch with itself.");
-            System.exit(0);
+            throw error("Cannot merge a branch with itself.");
         }
 
-        currentCommit = getCurrentCommit();
+        Commit currentCommit = getCurrentCommit();
         Commit givenCommit = null;
 
         if (remoteName == null) {
@@ -865,55 +1275,62 @@ public class Repository {
         Commit splitPoint = findSplitPoint(branchName, remoteName);
 
         if (splitPoint == null) {
-            System.out.println("Given branch is an ancestor of the current branch.");
-            System.exit(0);
+            throw error("Given branch is an ancestor of the current branch.");
         }
 
-        List<String> ancestors = getAncestors(givenCommit);
-
-        if (ancestors.contains(currentCommit.getId())) {
+        if (BITMAPS.isAncestor(COMMIT_GRAPH, currentCommit.getId(), givenCommit.getId())) {
             checkoutBranch(branchName);
             System.out.println("Current branch fast-forwarded.");
-            System.exit(0);
+            return;
         }
 
         Set<String> untrackedFiles = getUntrackedFiles(currentCommit);
         checkForUntrackedFiles(untrackedFiles, givenCommit);
 
-        mergeHelper(givenCommit, splitPoint, branchName, remoteName);
+        mergeHelper(currentCommit, givenCommit, splitPoint, branchName, remoteName);
     }
 
     /** mergeHelper
      *  Helper method for the merge command.
      *  Merges the given branch into the current branch.
      *
+     *  @param currentCommit the current commit
      *  @param givenCommit the commit to merge
      *  @param splitPoint the split point commit
      *  @param branchName the name of the branch to merge
      *  @param remoteName the name of the remote repository if applicable
      */
-    private static void mergeHelper(Commit givenCommit, Commit splitPoint,
+    private static void mergeHelper(Commit currentCommit, Commit givenCommit, Commit splitPoint,
                                     String branchName, String remoteName) {
-        Map<String, Blob> currentFiles = currentCommit.getBlobs();
-        Map<String, Blob> givenFiles = givenCommit.getBlobs();
-        Map<String, Blob> splitFiles = splitPoint.getBlobs();
+        Map<String, String> currentFiles = currentCommit.getBlobs();
+        Map<String, String> givenFiles = givenCommit.getBlobs();
+        Map<String, String> splitFiles = splitPoint.getBlobs();
         boolean conflict = false;
 
-        // Determine actions for each file in the three commits
-        Set<String> allFiles = new HashSet<>(currentFiles.keySet());
-        allFiles.addAll(givenFiles.keySet());
-        allFiles.addAll(splitFiles.keySet());
+        // Only files the given branch changed since the split point need
+        // anything done; with trees, unchanged directories are skipped whole
+        Set<String> allFiles = new HashSet<>();
+        if (splitPoint.getTree() != null && givenCommit.getTree() != null) {
+            Tree.diff(splitPoint.getTree(), givenCommit.getTree(), "",
+                    treeId -> readTree(OBJECTS, treeId), allFiles);
+        } else {
+            allFiles.addAll(givenFiles.keySet());
+            allFiles.addAll(splitFiles.keySet());
+        }
 
-        Map<String, Blob> newBlobs = new HashMap<>(currentCommit.getBlobs());
+        Map<String, String> newBlobs = new HashMap<>(currentCommit.getBlobs());
 
-        for (String file : allFiles) {
+        // Deletions first, so that a file can take the place of a directory
+        List<String> files = new ArrayList<>(allFiles);
+        files.sort(Comparator.comparing(givenFiles::containsKey));
+        for (String file : files) {
             boolean inCurrent = currentFiles.containsKey(file);
             boolean inGiven = givenFiles.containsKey(file);
             boolean inSplit = splitFiles.containsKey(file);
 
-            String currentVersion = inCurrent ? currentFiles.get(file).getId() : null;
-            String givenVersion = inGiven ? givenFiles.get(file).getId() : null;
-            String splitVersion = inSplit ? splitFiles.get(file).getId() : null;
+            String currentVersion = currentFiles.get(file);
+            String givenVersion = givenFiles.get(file);
+            String splitVersion = splitFiles.get(file);
 
             if (inCurrent && inGiven && !givenVersion.equals(currentVersion)
                     && !givenVersion.equals(splitVersion)) {
@@ -921,23 +1338,27 @@ public class Repository {
                     checkoutAndStageFile(file, givenCommit);
                     newBlobs.put(file, givenFiles.get(file));
                 } else {
-                    handleMergeConflict(file, givenCommit);
-                    conflict = true;
+                    String mergedId = mergeFile(file, currentCommit, givenCommit, splitPoint);
+                    if (mergedId == null) {
+                        conflict = true;
+                    } else {
+                        newBlobs.put(file, mergedId);
+                    }
                 }
             } else if (inGiven && !inCurrent && !inSplit) {
                 checkoutAndStageFile(file, givenCommit);
                 newBlobs.put(file, givenFiles.get(file));
             } else if (!inGiven && inSplit && inCurrent) {
                 if (currentVersion.equals(splitVersion)) {
-                    Utils.restrictedDelete(join(CWD, file));
+                    Utils.restrictedDelete(CWD, file);
                     newBlobs.remove(file);
                     stageArea.unstageFile(file);
                 } else {
-                    handleMergeConflict(file, givenCommit);
+                    handleMergeConflict(file, currentCommit, givenCommit);
                     conflict = true;
                 }
             } else if (!inGiven && inSplit) {
-                Utils.restrictedDelete(join(CWD, file));
+                Utils.restrictedDelete(CWD, file);
                 newBlobs.remove(file);
             }
         }
@@ -945,9 +1366,12 @@ public class Repository {
         String branch = remoteName == null ? branchName : remoteName + "/" + branchName;
         List<String> parents = Arrays.asList(currentCommit.getId(), givenCommit.getId());
         String message = "Merged " + branch + " into " + readContentsAsString(HEAD) + ".";
+        Journal.begin();
         createMergeCommit(message, parents, newBlobs);
         stageArea.clear();
+        Journal.commit();
 
+        StatCache.getInstance().save();
         if (conflict) {
             System.out.println("Encountered a merge conflict.");
         }
@@ -961,10 +1385,10 @@ public class Repository {
      *  @param blobs the blobs to store in the commit
      */
     private static void createMergeCommit(String message,
-                                          List<String> parents, Map<String, Blob> blobs) {
+                                          List<String> parents, Map<String, String> blobs) {
         Commit mergeCommit = new Commit(message, parents, blobs);
         saveCommit(mergeCommit);
-        writeContents(join(REFS_HEADS, readContentsAsString(HEAD)), mergeCommit.getId());
+        Journal.write(join(REFS_HEADS, readContentsAsString(HEAD)), mergeCommit.getId());
     }
 
     /** findSplitPoint
@@ -982,75 +1406,77 @@ public class Repository {
         } else {
             targetCommitId = readContentsAsString(join(REMOTE_HEADS, remoteName, branchName));
         }
-        Commit targetCommit = getCommit(targetCommitId, null);
-        currentCommit = getCurrentCommit();
+        Commit currentCommit = getCurrentCommit();
         currentBranch = getCurrentBranch();
 
-        List<String> currentAncestors = getAncestors(currentCommit);
-        List<String> targetAncestors = getAncestors(targetCommit);
-
-        for (String ancestor : currentAncestors) {
-            if (targetAncestors.contains(ancestor)) {
-                if (ancestor.equals(targetCommitId)) {
-                    return null;
-                }
-                return getCommit(ancestor, null);
-            }
+        String splitPointId = COMMIT_GRAPH.mergeBase(currentCommit.getId(), targetCommitId);
+        if (splitPointId == null || splitPointId.equals(targetCommitId)) {
+            return null;
         }
-        return null;
+        return getCommit(splitPointId, null);
     }
 
-    /** getAncestors
-     *  Returns a list of all ancestor commit ids of the given commit.
+    /** mergeFile
+     *  Merges a file that both the current and the given branch changed,
+     *  line by line against its version at the split point. A clean merge
+     *  is written to the working directory and stored. If the changes
+     *  overlap, the file is written with conflict markers around the
+     *  overlapping lines only, and staged.
      *
-     *  @param commit the commit to get ancestors of
-     *  @return a list of all ancestor commit ids
+     *  @param fileName the name of the file to merge
+     *  @param currentCommit the current commit
+     *  @param givenCommit the commit to merge
+     *  @param splitPoint the split point commit
+     *  @return the blob id of the clean merge, or null if it conflicted
      */
-    private static List<String> getAncestors(Commit commit) {
-        List<String> ancestors = new ArrayList<>();
-        Stack<Commit> stack = new Stack<>();
-        stack.push(commit);
-
-        while (!stack.isEmpty()) {
-            Commit current = stack.pop();
-            ancestors.add(current.getId());
+    private static String mergeFile(String fileName, Commit currentCommit,
+                                    Commit givenCommit, Commit splitPoint) {
+        String splitId = splitPoint.getBlobs().get(fileName);
+        List<String> base = splitId == null ? Collections.emptyList()
+                : LineDiff.splitLines(readBlob(OBJECTS, splitId));
+        LineMerge merge = LineMerge.merge(base,
+                LineDiff.splitLines(readBlob(OBJECTS, currentCommit.getBlobs().get(fileName))),
+                LineDiff.splitLines(readBlob(OBJECTS, givenCommit.getBlobs().get(fileName))));
 
-            for (String parentId : current.getParent()) {
-                Commit parentCommit = getCommit(parentId, null);
-                if (parentCommit != null) {
-                    stack.push(parentCommit);
-                }
-            }
+        File file = join(CWD, fileName);
+        file.getParentFile().mkdirs();
+        writeContents(file, (Object) LineDiff.joinLines(merge.getLines()));
+        if (merge.hasConflict()) {
+            add(fileName);
+            return null;
         }
-
-        return ancestors;
+        Blob blob = new Blob(file);
+        storeBlob(blob);
+        return blob.getId();
     }
 
     /** handleMergeConflict
      *  Handles a merge conflict by writing the conflict content to the file.
+     *  Used when one side deleted the file, so the whole of the other side
+     *  goes between the markers.
      *
      *  @param fileName the name of the file to handle
+     *  @param currentCommit the current commit
      *  @param givenCommit the commit to merge
      */
-    private static void handleMergeConflict(String fileName, Commit givenCommit) {
+    private static void handleMergeConflict(String fileName, Commit currentCommit,
+                                            Commit givenCommit) {
         File file = join(CWD, fileName);
-        Blob currentBlob = null;
-        Blob givenBlob = null;
+        byte[] currentBlob = null;
+        byte[] givenBlob = null;
 
         if (currentCommit.getBlobs().containsKey(fileName)) {
-            currentBlob = readObject(join(BLOBS_DIR,
-                    currentCommit.getBlobs().get(fileName).getId()), Blob.class);
+            currentBlob = readBlob(OBJECTS, currentCommit.getBlobs().get(fileName));
         }
         if (givenCommit.getBlobs().containsKey(fileName)) {
-            givenBlob = readObject(join(BLOBS_DIR,
-                    givenCommit.getBlobs().get(fileName).getId()), Blob.class);
+            givenBlob = readBlob(OBJECTS, givenCommit.getBlobs().get(fileName));
         }
 
         String currentContents = (currentBlob != null)
-                ? new String(currentBlob.getContentBytes())
+                ? new String(currentBlob)
                 : "";
         String givenContents = (givenBlob != null)
-                ? new String(givenBlob.getContentBytes())
+                ? new String(givenBlob)
                 : "";
 
         String conflictContent = "<<<<<<< HEAD\n"
@@ -1059,6 +1485,7 @@ public class Repository {
                 + givenContents
                 + ">>>>>>>\n";
 
+        file.getParentFile().mkdirs();
         writeContents(file, conflictContent);
         add(fileName);
     }
@@ -1071,7 +1498,7 @@ public class Repository {
      */
     private static void checkoutAndStageFile(String fileName, Commit commit) {
         checkoutCommit(commit.getId(), fileName);
-        stageArea.stageFile(fileName, join(CWD, fileName));
+        stageArea.stageFile(fileName, commit.getBlobs().get(fileName));
     }
 
     /** getUntrackedFiles
@@ -1082,7 +1509,7 @@ public class Repository {
      */
     private static Set<String> getUntrackedFiles(Commit currCommit) {
         Set<String> trackedFiles = new HashSet<>(currCommit.getBlobs().keySet());
-        Set<String> allFiles = new HashSet<>(Objects.requireNonNull(plainFilenamesIn(CWD)));
+        Set<String> allFiles = new HashSet<>(Objects.requireNonNull(plainFilenamesUnder(CWD)));
         allFiles.removeAll(trackedFiles);
         return allFiles;
     }
@@ -1096,13 +1523,178 @@ public class Repository {
     private static void checkForUntrackedFiles(Set<String> untrackedFiles, Commit givenCommit) {
         for (String file : givenCommit.getBlobs().keySet()) {
             if (untrackedFiles.contains(file) && !isFileTracked(file)) {
-                System.out.println("There is an untracked file in the way;"
+                throw error("There is an untracked file in the way;"
                         + " delete it, or add and commit it first.");
-                System.exit(0);
             }
         }
     }
 
+    /** repack command
+     *  Packs every object in the repository into a single pack file.
+     *  The newest version of each file is stored whole and each older
+     *  version as a delta against the next newer one, so a file edited many
+     *  times costs little more than its newest version. The reachability
+     *  bitmaps are built again over the packed history.
+     */
+    public static void repack() {
+        isInitialized();
+
+        List<Commit> commits = new ArrayList<>();
+        for (String commitId : getAllCommitIds()) {
+            commits.add(readCommit(OBJECTS, commitId));
+        }
+        ((PackedObjectStore) OBJECTS).repack(deltaBases(commits));
+        BITMAPS.build(COMMIT_GRAPH, refTips(), id -> readCommit(OBJECTS, id),
+                id -> readTree(OBJECTS, id));
+    }
+
+    /** deltaBases
+     *  Picks a delta base for each version of each file in the given
+     *  commits: the next newer version of the same file.
+     *
+     *  @param commits the commits whose blobs are to be packed
+     *  @return maps blob ids to the id of the blob to delta against
+     */
+    private static Map<String, String> deltaBases(List<Commit> commits) {
+        List<Commit> newestFirst = new ArrayList<>(commits);
+        newestFirst.sort((c1, c2) -> c2.getTimestamp().compareTo(c1.getTimestamp()));
+
+        // Only blobs not seen yet get a base, and bases are always blobs seen
+        // earlier, so a file that goes back to an old version cannot form a cycle
+        Map<String, String> deltaBases = new HashMap<>();
+        Map<String, String> newerVersions = new HashMap<>();
+        Set<String> seen = new HashSet<>();
+        for (Commit commit : newestFirst) {
+            for (Map.Entry<String, String> entry : commit.getBlobs().entrySet()) {
+                String blobId = entry.getValue();
+                String newer = newerVersions.put(entry.getKey(), blobId);
+                if (seen.add(blobId) && newer != null) {
+                    deltaBases.put(blobId, newer);
+                }
+            }
+        }
+        return deltaBases;
+    }
+
+    /** gc command
+     *  Removes every object nothing refers to any more: blobs that were
+     *  added and never committed, commits left behind by a removed branch
+     *  or a reset, and whatever only they named. The commits reachable from
+     *  the branches and the remote-tracking branches are marked in one walk
+     *  over the commit graph, as a bitmap of positions, without reading any
+     *  commit. The marked commits are then read for the trees and blobs
+     *  they name, each tree only once, and the staged blobs are added.
+     *  Unmarked loose objects are deleted, and each pack holding unmarked
+     *  objects is packed again without them, and the reachability bitmaps
+     *  are built again over what is left. Prints what was reclaimed and how
+     *  long it took.
+     */
+    public static void gc() {
+        isInitialized();
+        long start = System.nanoTime();
+        stageArea = StageArea.getInstance();
+
+        List<String> tips = refTips();
+        BitSet reachable = COMMIT_GRAPH.reachable(tips);
+
+        List<Commit> commits = new ArrayList<>();
+        Set<String> keep = new HashSet<>();
+        Set<String> blobs = new HashSet<>(stageArea.getStagedFiles().values());
+        for (int i = reachable.nextSetBit(0); i >= 0; i = reachable.nextSetBit(i + 1)) {
+            Commit commit = readCommit(OBJECTS, COMMIT_GRAPH.idAt(i));
+            commits.add(commit);
+            keep.add(commit.getId());
+            if (commit.getTree() != null) {
+                markTree(commit.getTree(), keep, blobs);
+            } else {
+                blobs.addAll(commit.getBlobs().values());
+            }
+        }
+        for (String blobId : blobs) {
+            keep.add(blobId);
+            if (OBJECTS.typeOf(blobId).equals(ObjectStore.CHUNKED)) {
+                keep.addAll(ChunkedBlob.fromBytes(OBJECTS.read(blobId, ObjectStore.CHUNKED))
+                        .getChunks());
+            }
+        }
+
+        int objectsBefore = OBJECTS.list("").size();
+        long bytesBefore = diskUsage(OBJECTS_DIR);
+        BITMAPS.clear();
+        ((PackedObjectStore) OBJECTS).prune(keep, () -> deltaBases(commits));
+        COMMIT_GRAPH.retain(reachable);
+        CATALOG.rebuild();
+        PATH_INDEX.rebuild();
+        PATH_FILTERS.rebuild();
+        BITMAPS.build(COMMIT_GRAPH, tips, id -> readCommit(OBJECTS, id),
+                id -> readTree(OBJECTS, id));
+
+        long millis = (System.nanoTime() - start) / 1000000;
+        int removed = objectsBefore - OBJECTS.list("").size();
+        System.out.println("Removed " + removed + " objects and reclaimed "
+                + (bytesBefore - diskUsage(OBJECTS_DIR)) + " bytes in " + millis + " ms.");
+    }
+
+    /** refTips
+     *  Returns the full ids of the commits the branches and the
+     *  remote-tracking branches point at.
+     *
+     *  @return the ids of the branch tips
+     */
+    private static List<String> refTips() {
+        List<String> tips = new ArrayList<>();
+        List<File> refs = new ArrayList<>();
+        for (String branch : Objects.requireNonNull(plainFilenamesIn(REFS_HEADS))) {
+            refs.add(join(REFS_HEADS, branch));
+        }
+        File[] remotes = REMOTE_HEADS.listFiles(File::isDirectory);
+        for (File remote : remotes == null ? new File[0] : remotes) {
+            for (String branch : Objects.requireNonNull(plainFilenamesIn(remote))) {
+                refs.add(join(remote, branch));
+            }
+        }
+        for (File ref : refs) {
+            tips.add(readContentsAsString(ref));
+        }
+        return tips;
+    }
+
+    /** markTree
+     *  Adds a tree and everything under it to the objects to keep, unless
+     *  the tree is already there, since then so is everything under it.
+     *
+     *  @param treeId the id of the tree
+     *  @param keep the ids of the objects to keep
+     *  @param blobs the ids of the blobs to keep
+     */
+    private static void markTree(String treeId, Set<String> keep, Set<String> blobs) {
+        if (!keep.add(treeId)) {
+            return;
+        }
+        for (Tree.Entry entry : readTree(OBJECTS, treeId).getEntries().values()) {
+            if (entry.isTree) {
+                markTree(entry.id, keep, blobs);
+            } else {
+                blobs.add(entry.id);
+            }
+        }
+    }
+
+    /** diskUsage
+     *  Returns the total length of the files under a directory.
+     *
+     *  @param dir the directory
+     *  @return the length in bytes
+     */
+    private static long diskUsage(File dir) {
+        long total = 0;
+        File[] files = dir.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            total += file.isDirectory() ? diskUsage(file) : file.length();
+        }
+        return total;
+    }
+
     /** add-remote command
      * Adds a remote repository with the given name and directory.
      *
@@ -1113,11 +1705,10 @@ public class Repository {
         isInitialized();
 
         if (join(REMOTE, remoteName).exists()) {
-            System.out.println("A remote with that name already exists.");
-            System.exit(0);
+            throw error("A remote with that name already exists.");
         }
 
-        writeContents(join(REMOTE, remoteName), remoteDir);
+        Journal.write(join(REMOTE, remoteName), remoteDir);
         join(REMOTE_HEADS, remoteName).mkdir();
     }
 
@@ -1130,11 +1721,10 @@ public class Repository {
         isInitialized();
 
         if (!join(REMOTE, remoteName).exists()) {
-            System.out.println("A remote with that name does not exist.");
-            System.exit(0);
+            throw error("A remote with that name does not exist.");
         }
 
-        join(REMOTE, remoteName).delete();
+        Journal.delete(join(REMOTE, remoteName));
     }
 
     /** push command
@@ -1144,24 +1734,41 @@ public class Repository {
      * @param remoteBranchName the name of the remote branch
      */
     public static void push(String remoteName, String remoteBranchName) {
-        File remoteBranch = checkFetchPush(remoteName, remoteBranchName);
-        File remoteFile = join(REMOTE, remoteName);
-        String remoteDir = readContentsAsString(remoteFile);
+        FileLock remoteLock = lockRemote(remoteName);
+        try {
+            push(remoteName, remoteBranchName, checkFetchPush(remoteName, remoteBranchName));
+        } finally {
+            Journal.unlock(remoteLock);
+        }
+    }
+
+    /** push
+     * Pushes the current branch to the given remote branch, whose lock is
+     * held.
+     */
+    private static void push(String remoteName, String remoteBranchName, File remoteBranch) {
+        String remoteDir = readContentsAsString(join(REMOTE, remoteName));
         String remoteCommitId = readContentsAsString(remoteBranch);
         Commit remoteCommit = getCommit(remoteCommitId, remoteName);
         Commit localCommit = getCurrentCommit();
 
         if (!isAncestorOf(localCommit, remoteCommit)) {
-            System.out.println("Please pull down remote changes before pushing.");
-            System.exit(0);
-        }
-
-        List<Commit> commitsToPush = getCommitsToPush(localCommit, remoteCommit);
-        for (Commit commit : commitsToPush) {
-            saveCommitToRemote(commit, remoteDir);
-        }
-
-        writeContents(remoteBranch, localCommit.getId());
+            throw error("Please pull down remote changes before pushing.");
+        }
+
+        ObjectStore remoteStore = ObjectStore.open(join(remoteDir));
+        CommitGraph remoteGraph = remoteCommitGraph(remoteName, remoteStore);
+        List<Commit> commitsToPush = sendObjects(localCommit.getId(), OBJECTS, COMMIT_GRAPH,
+                BITMAPS, remoteStore, remoteGraph);
+        indexCommits(remoteGraph,
+                new PathIndex(join(remoteDir, "path-index"), remoteStore),
+                new CommitCatalog(join(remoteDir, "catalog"),
+                        join(remoteDir, "catalog-messages"), join(remoteDir, "catalog-hashes"),
+                        remoteStore),
+                new ChangedPathFilters(join(remoteDir, "commit-graph-paths"), remoteStore),
+                commitsToPush);
+
+        Journal.write(remoteBranch, localCommit.getId());
     }
 
     /** fetch command
@@ -1171,20 +1778,194 @@ public class Repository {
      * @param remoteBranchName the name of the remote branch
      */
     public static void fetch(String remoteName, String remoteBranchName) {
-        File remoteBranch = checkFetchPush(remoteName, remoteBranchName);
+        FileLock remoteLock = lockRemote(remoteName);
+        try {
+            fetch(remoteName, remoteBranchName, checkFetchPush(remoteName, remoteBranchName));
+        } finally {
+            Journal.unlock(remoteLock);
+        }
+    }
+
+    /** fetch
+     * Fetches the given remote branch to the local repository, holding the
+     * lock of the remote.
+     */
+    private static void fetch(String remoteName, String remoteBranchName, File remoteBranch) {
         createBranchIfNotExist(remoteName, remoteBranchName);
         Commit remoteHead = getCommit(readContentsAsString(remoteBranch), remoteName);
 
-        List<Commit> newCommits = fetchNewCommits(remoteHead, remoteName);
-        for (Commit commit : newCommits) {
-            saveCommitLocally(commit);
-            for (Blob blob : commit.getBlobs().values()) {
-                storeBlob(blob);
+        ObjectStore remoteStore = remoteObjects(remoteName);
+        List<Commit> newCommits = sendObjects(remoteHead.getId(), remoteStore,
+                remoteCommitGraph(remoteName, remoteStore),
+                new ReachabilityBitmaps(join(readContentsAsString(join(REMOTE, remoteName)),
+                        "bitmaps")),
+                OBJECTS, COMMIT_GRAPH);
+        indexCommits(COMMIT_GRAPH, PATH_INDEX, CATALOG, PATH_FILTERS, newCommits);
+
+        Journal.write(join(REMOTE_HEADS, remoteName, remoteBranchName), remoteHead.getId());
+    }
+
+    /** sendObjects
+     * Copies to another repository what it lacks of the history of a
+     * commit. The commit graphs of the two repositories settle which
+     * commits are missing without reading any commit; only those are read.
+     * If the sender has reachability bitmaps, the trees and blobs to send
+     * are counted as what the tip reaches AND-NOT what the commits just
+     * below the missing ones reach, which the receiver has. Otherwise, or
+     * if that comes to fewer than UNPACK_LIMIT objects, the trees and blobs
+     * the missing commits name that the receiver lacks are found from them.
+     * A tree the receiver has is not opened, since it has everything under
+     * it too, and of a chunked blob only the chunks the receiver lacks are
+     * sent. Everything goes over as a single pack, with each blob stored
+     * as a delta of its newer version where that is smaller, unless there
+     * are fewer than UNPACK_LIMIT objects, which are copied loose.
+     *
+     * @param tip the id of the commit whose history is sent
+     * @param from the object store of the sending repository
+     * @param fromGraph the commit graph of the sending repository
+     * @param fromBitmaps the reachability bitmaps of the sending repository
+     * @param to the object store of the receiving repository
+     * @param toGraph the commit graph of the receiving repository
+     * @return the commits sent, parents first
+     */
+    private static List<Commit> sendObjects(String tip, ObjectStore from, CommitGraph fromGraph,
+                                            ReachabilityBitmaps fromBitmaps,
+                                            ObjectStore to, CommitGraph toGraph) {
+        List<Commit> commits = new ArrayList<>();
+        Map<String, Commit> byId = new HashMap<>();
+        for (String commitId : fromGraph.missingFrom(tip, toGraph)) {
+            Commit commit = readCommit(from, commitId);
+            commits.add(commit);
+            byId.put(commitId, commit);
+        }
+
+        Set<String> checked = new HashSet<>();
+        List<String> trees = new ArrayList<>();
+        Set<String> blobs = new LinkedHashSet<>();
+        boolean counted = false;
+        if (!commits.isEmpty() && !fromBitmaps.isEmpty()) {
+            Set<String> haves = new HashSet<>();
+            for (Commit commit : commits) {
+                for (String parentId : commit.getParent()) {
+                    if (!byId.containsKey(parentId)) {
+                        haves.add(parentId);
+                    }
+                }
+            }
+            Function<String, Commit> commitReader = id -> readCommit(from, id);
+            Function<String, Tree> treeReader = id -> readTree(from, id);
+            ReachabilityBitmaps.ObjectSet missing = fromBitmaps.reach(
+                    Collections.singleton(tip), fromGraph, commitReader, treeReader);
+            missing.andNot(fromBitmaps.reach(haves, fromGraph, commitReader, treeReader));
+            // A pack goes in whole; loose objects need subtrees first
+            if (missing.size() >= UNPACK_LIMIT) {
+                trees.addAll(missing.ofType(ObjectStore.TREE));
+                blobs.addAll(missing.ofType(ObjectStore.BLOB));
+                checked.addAll(blobs);
+                counted = true;
+            }
+        }
+        if (!counted) {
+            for (Commit commit : commits) {
+                if (commit.getTree() != null) {
+                    findMissing(commit.getTree(), from, to, checked, trees, blobs);
+                    continue;
+                }
+                for (String blobId : commit.getBlobs().values()) {
+                    if (checked.add(blobId) && !to.contains(blobId)) {
+                        blobs.add(blobId);
+                    }
+                }
             }
         }
 
+        List<String> chunks = new ArrayList<>();
+        for (String blobId : blobs) {
+            if (from.typeOf(blobId).equals(ObjectStore.CHUNKED)) {
+                byte[] list = from.read(blobId, ObjectStore.CHUNKED);
+                for (String chunkId : ChunkedBlob.fromBytes(list).getChunks()) {
+                    if (checked.add(chunkId) && !to.contains(chunkId)) {
+                        chunks.add(chunkId);
+                    }
+                }
+            }
+        }
+
+        // Everything an object names goes in before it
+        if (commits.size() + trees.size() + blobs.size() + chunks.size() < UNPACK_LIMIT) {
+            for (String chunkId : chunks) {
+                copyBlob(chunkId, from, to);
+            }
+            for (String blobId : blobs) {
+                copyBlob(blobId, from, to);
+            }
+            for (String treeId : trees) {
+                to.write(ObjectStore.TREE, treeId, from.read(treeId, ObjectStore.TREE));
+            }
+            for (Commit commit : commits) {
+                saveCommit(to, commit);
+            }
+            return commits;
+        }
+        PackWriter writer = new PackWriter(from);
+        Map<String, String> deltaBases = new HashMap<>();
+        for (Commit commit : commits) {
+            for (String parentId : commit.getParent()) {
+                Commit parent = byId.get(parentId);
+                if (parent == null) {
+                    continue;
+                }
+                for (Map.Entry<String, String> file : parent.getBlobs().entrySet()) {
+                    String newer = commit.getBlobs().get(file.getKey());
+                    if (newer != null && blobs.contains(file.getValue())
+                            && blobs.contains(newer) && !newer.equals(file.getValue())) {
+                        deltaBases.putIfAbsent(file.getValue(), newer);
+                    }
+                }
+            }
+        }
+        for (String chunkId : chunks) {
+            writer.add(chunkId, null);
+        }
+        for (String blobId : blobs) {
+            writer.add(blobId, deltaBases.get(blobId));
+        }
+        for (String treeId : trees) {
+            writer.add(treeId, null);
+        }
+        for (Commit commit : commits) {
+            writer.add(commit.getId(), null);
+        }
+        ((PackedObjectStore) to).receive(writer);
+        return commits;
+    }
 
-        writeContents(join(REMOTE_HEADS, remoteName, remoteBranchName), remoteHead.getId());
+    /** findMissing
+     * Adds the tree with the given id, and the trees and blobs under it,
+     * to those the receiving repository lacks, unless it has the tree or
+     * the tree was already looked at. Subtrees come before the trees
+     * holding them.
+     *
+     * @param treeId the id of the tree
+     * @param from the object store of the sending repository
+     * @param to the object store of the receiving repository
+     * @param checked the ids of the trees and blobs already looked at
+     * @param trees the trees the receiver lacks, found so far
+     * @param blobs the blobs the receiver lacks, found so far
+     */
+    private static void findMissing(String treeId, ObjectStore from, ObjectStore to,
+                                    Set<String> checked, List<String> trees, Set<String> blobs) {
+        if (!checked.add(treeId) || to.contains(treeId)) {
+            return;
+        }
+        for (Tree.Entry entry : readTree(from, treeId).getEntries().values()) {
+            if (entry.isTree) {
+                findMissing(entry.id, from, to, checked, trees, blobs);
+            } else if (checked.add(entry.id) && !to.contains(entry.id)) {
+                blobs.add(entry.id);
+            }
+        }
+        trees.add(treeId);
     }
 
     /** pull command
@@ -1207,51 +1988,7 @@ public class Repository {
      * @return true if the local commit is an ancestor of the remote commit, false otherwise
      */
     private static boolean isAncestorOf(Commit localCommit, Commit remoteCommit) {
-        List<String> remoteAncestors = getAncestors(localCommit);
-        return remoteAncestors.contains(remoteCommit.getId());
-    }
-
-    /** getCommitsToPush
-     * Returns a list of all commits to push to the remote repository.
-     *
-     * @param localCommit the local commit
-     * @param ancestorCommit the ancestor commit
-     * @return a list of all commits to push to the remote repository
-     */
-    private static List<Commit> getCommitsToPush(Commit localCommit, Commit ancestorCommit) {
-        // Collects all commits from localCommit up to, but not including, ancestorCommit
-        List<Commit> commitsToPush = new ArrayList<>();
-        Stack<Commit> stack = new Stack<>();
-        stack.push(localCommit);
-
-        while (!stack.isEmpty()) {
-            Commit current = stack.pop();
-            if (current.getId().equals(ancestorCommit.getId())) {
-                break;
-            }
-            commitsToPush.add(current);
-            for (String parentId : current.getParent()) {
-                Commit parentCommit = getCommit(parentId, null);
-                if (parentCommit != null) {
-                    stack.push(parentCommit);
-                }
-            }
-        }
-        return commitsToPush;
-    }
-
-    /** saveCommitToRemote
-     * Saves the given commit to the remote repository.
-     *
-     * @param commit the commit to save
-     * @param remoteDir the directory of the remote repository
-     */
-    private static void saveCommitToRemote(Commit commit, String remoteDir) {
-        File remoteCommitsDir = join(remoteDir, "commits");
-        File commitDir = join(remoteCommitsDir, commit.getId().substring(0, 2));
-        commitDir.mkdir();
-        File commitFile = join(commitDir, commit.getId().substring(2));
-        writeObject(commitFile, commit);
+        return BITMAPS.isAncestor(COMMIT_GRAPH, remoteCommit.getId(), localCommit.getId());
     }
 
     /** createBranchIfNotExist
@@ -1262,91 +1999,44 @@ public class Repository {
      */
     private static void createBranchIfNotExist(String remoteName, String branchName) {
         if (!plainFilenamesIn(join(REMOTE_HEADS, remoteName)).contains(branchName)) {
-            writeContents(join(REMOTE_HEADS, remoteName, branchName), "");
+            Journal.write(join(REMOTE_HEADS, remoteName, branchName), "");
         }
     }
 
-    /** fetchNewCommits
-     * Returns a list of all new commits to fetch from the remote repository.
+    /** lockRemote
+     * Checks that the remote repository exists, and takes its lock, so
+     * that no command on it and no other push or fetch runs until the
+     * transfer is done.
      *
-     * @param remoteHead the head commit of the remote repository
      * @param remoteName the name of the remote repository
-     * @return a list of all new commits to fetch from the remote repository
+     * @return the lock of the remote, for Journal.unlock
      */
-    private static List<Commit> fetchNewCommits(Commit remoteHead, String remoteName) {
-        List<Commit> newCommits = new ArrayList<>();
-        Stack<Commit> stack = new Stack<>();
-        stack.push(remoteHead);
-
-        while (!stack.isEmpty()) {
-            Commit current = stack.pop();
-            if (!currentCommitExistsLocally(current)) {
-                newCommits.add(current);
-            }
-            for (String parentId : current.getParent()) {
-                Commit parentCommit = getCommit(parentId, remoteName);
-                if (parentCommit != null) {
-                    stack.push(parentCommit);
-                }
-            }
-        }
-        return newCommits;
-    }
-
-    /** currentCommitExistsLocally
-     * Checks if the current commit exists locally.
-     *
-     * @param commit the commit to check
-     * @return true if the current commit exists locally, false otherwise
-     */
-    private static boolean currentCommitExistsLocally(Commit commit) {
-        File commitDir = join(COMMITS_DIR, commit.getId().substring(0, 2));
-        if (!commitDir.exists()) {
-            return false;
+    private static FileLock lockRemote(String remoteName) {
+        isInitialized();
+        if (!join(REMOTE, remoteName).exists()) {
+            throw error("Remote directory not found.");
         }
-        for (File commitFile : Objects.requireNonNull(commitDir.listFiles())) {
-            if (commitFile.getName().equals(commit.getId().substring(2))) {
-                return true;
-            }
+        File remoteDir = join(readContentsAsString(join(REMOTE, remoteName)));
+        if (!remoteDir.exists()) {
+            throw error("Remote directory not found.");
         }
-        return false;
-    }
-
-    /** saveCommitLocally
-     * Saves the given commit locally.
-     *
-     * @param commit the commit to save
-     */
-    private static void saveCommitLocally(Commit commit) {
-        File commitDir = join(COMMITS_DIR, commit.getId().substring(0, 2));
-        commitDir.mkdir();
-        File commitFile = join(commitDir, commit.getId().substring(2));
-        writeObject(commitFile, commit);
+        return Journal.lock(remoteDir);
     }
 
     /** checkFetchPush
-     * Checks if the remote repository and branch exist.
+     * Brings the format of the remote repository up to date, and checks
+     * that the branch exists there.
      *
      * @param remoteName the name of the remote repository
      * @param remoteBranchName the name of the remote branch
      * @return the remote branch file
      */
     private static File checkFetchPush(String remoteName, String remoteBranchName) {
-        if (!join(REMOTE, remoteName).exists()) {
-            System.out.println("Remote directory not found.");
-            System.exit(0);
-        }
-
-        File remoteFile = join(REMOTE, remoteName);
-        String remoteDir = readContentsAsString(remoteFile);
-        if (!join(remoteDir).exists()) {
-            System.out.println("Remote directory not found.");
-            System.exit(0);
-        }
+        String remoteDir = readContentsAsString(join(REMOTE, remoteName));
+        Migration.upgrade(join(remoteDir));
         File remoteBranch = join(remoteDir, "REFS", "heads", remoteBranchName);
         if (!remoteBranch.exists()) {
-            System.out.println("That remote does not have that branch.");
-            System.exit(0);
+            throw error("That remote does not have that branch.");
         }
 
         return remoteBranch;
@@ -1,30 +1,77 @@
 package gitlet;
 
-import java.io.Serializable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import static gitlet.Utils.*;
 
 /** Represents the stage area in gitlet.
  *
  * The stage area is where files are staged before they are committed. It
- * contains a map of file names to blobs that represent the files that are
+ * contains a map of file names to the ids of the blobs that are staged; the
+ * blobs themselves are written to the object store once, when they are
  * staged. It also contains a set of file names that have been marked for
- * removal. The stage area is serialized and stored in the .gitlet directory.
+ * removal.
+ *
+ * The stage file in the .gitlet directory is a journal: MAGIC VERSION
+ * followed by one record per change, each an operation byte, the file name
+ * and, when staging, the raw 20-byte blob id. A change appends its record
+ * instead of rewriting the file, and changes made inside batch are
+ * appended together in a single write. Once the journal holds many more
+ * records than there are entries, it is compacted to one record per entry.
+ * A record cut short by an interrupted write is ignored.
  *
  * @author Kunhua Huang
  */
-public class StageArea implements Serializable, Dumpable {
+public class StageArea implements Dumpable {
     private static final File STAGE = Repository.STAGE;
+    /** "STGE" */
+    private static final int MAGIC = 0x53544745;
+    private static final int VERSION = 1;
+    private static final int ID_BYTES = UID_LENGTH / 2;
+
+    /** Journal operations. */
+    private static final int STAGE_FILE = 1;
+    private static final int UNSTAGE_FILE = 2;
+    private static final int MARK_REMOVED = 3;
+    private static final int UNMARK_REMOVED = 4;
+
+    /** The journal is never compacted below this many records. */
+    private static final int MIN_COMPACT = 64;
+
     private static StageArea instance;
-    private final Map<String, Blob> stagedFiles;
+    private final File file;
+    private final Map<String, String> stagedFiles;
     private final Set<String> removedFiles;
+    /** The number of records in the journal, including pending ones. */
+    private int records;
+    /** Records not yet written to the journal. */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private boolean batching;
+    /** The stamp of the journal when it was last read or written. */
+    private FileStamp stamp;
 
     /** Constructor for the stage area. */
     public StageArea() {
+        file = STAGE;
         stagedFiles = new HashMap<>();
         removedFiles = new HashSet<>();
-        writeObject(STAGE, this);
+        compact();
+    }
+
+    /** Constructor for a stage area with the given contents, as read back
+     *  from the journal. */
+    private StageArea(File file, Map<String, String> stagedFiles, Set<String> removedFiles,
+                      int records) {
+        this.file = file;
+        this.stagedFiles = stagedFiles;
+        this.removedFiles = removedFiles;
+        this.records = records;
     }
 
     /** getInstance
@@ -36,8 +83,9 @@ public class StageArea implements Serializable, Dumpable {
      */
     public static StageArea getInstance() {
         if (instance == null) {
-            if (STAGE.exists()) {
-                instance = readObject(STAGE, StageArea.class);
+            if (STAGE.exists() && STAGE.length() > 0) {
+                instance = read(readContents(STAGE));
+                instance.stamp = new FileStamp(STAGE);
             } else {
                 instance = new StageArea();
             }
@@ -45,16 +93,25 @@ public class StageArea implements Serializable, Dumpable {
         return instance;
     }
 
+    /** refresh
+     * Forgets the stage area if another process has changed the journal
+     * since it was read, so that it is read again on next use.
+     */
+    static void refresh() {
+        if (instance != null && !FileStamp.matches(instance.stamp, STAGE)) {
+            instance = null;
+        }
+    }
+
     /** stageFile
      * Stages a file in the stage area.
      *
      * @param fileName the name of the file
-     * @param file the file to be staged
+     * @param blobId the id of the blob holding the contents to be staged
      */
-    public void stageFile(String fileName, File file) {
-        Blob blob = new Blob(file);
-        stagedFiles.put(fileName, blob);
-        writeObject(STAGE, this);
+    public void stageFile(String fileName, String blobId) {
+        stagedFiles.put(fileName, blobId);
+        log(STAGE_FILE, fileName, blobId);
     }
 
     /** unstageFile
@@ -64,7 +121,7 @@ public class StageArea implements Serializable, Dumpable {
      */
     public void unstageFile(String fileName) {
         stagedFiles.remove(fileName);
-        writeObject(STAGE, this);
+        log(UNSTAGE_FILE, fileName, null);
     }
 
     /** markRemoved
@@ -74,7 +131,7 @@ public class StageArea implements Serializable, Dumpable {
      */
     public void markRemoved(String fileName) {
         removedFiles.add(fileName);
-        writeObject(STAGE, this);
+        log(MARK_REMOVED, fileName, null);
     }
 
     /** unmarkRemoved
@@ -84,7 +141,23 @@ public class StageArea implements Serializable, Dumpable {
      */
     public void unmarkRemoved(String fileName) {
         removedFiles.remove(fileName);
-        writeObject(STAGE, this);
+        log(UNMARK_REMOVED, fileName, null);
+    }
+
+    /** batch
+     * Runs ACTION, writing all the changes it makes to the stage area to
+     * the journal at once when it finishes.
+     *
+     * @param action the changes to make
+     */
+    public void batch(Runnable action) {
+        batching = true;
+        try {
+            action.run();
+        } finally {
+            batching = false;
+            flush();
+        }
     }
 
     /** isRemoved
@@ -117,11 +190,11 @@ public class StageArea implements Serializable, Dumpable {
     }
 
     /** getStagedFiles
-     * Returns the map of files that have been staged.
+     * Returns the map of staged file names to the ids of their blobs.
      *
      * @return the map of files that have been staged
      */
-    public Map<String, Blob> getStagedFiles() {
+    public Map<String, String> getStagedFiles() {
         return stagedFiles;
     }
 
@@ -131,15 +204,143 @@ public class StageArea implements Serializable, Dumpable {
     public void clear() {
         stagedFiles.clear();
         removedFiles.clear();
-        writeObject(STAGE, this);
+        compact();
+    }
+
+    /** log
+     * Records a change in the journal, writing it out unless a batch is
+     * running.
+     */
+    private void log(int op, String fileName, String blobId) {
+        DataOutputStream out = new DataOutputStream(pending);
+        try {
+            out.writeByte(op);
+            out.writeUTF(fileName);
+            if (blobId != null) {
+                out.write(fromHex(blobId));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        records += 1;
+        if (!batching) {
+            flush();
+        }
+    }
+
+    /** flush
+     * Appends the pending records to the journal, or compacts the journal
+     * instead once most of its records are obsolete.
+     */
+    private void flush() {
+        if (pending.size() == 0) {
+            return;
+        }
+        if (records > MIN_COMPACT && records > 2 * (stagedFiles.size() + removedFiles.size())) {
+            compact();
+            return;
+        }
+        Journal.append(file, pending.toByteArray());
+        pending.reset();
+        stamp = new FileStamp(file);
+    }
+
+    /** compact
+     * Rewrites the journal with one record per entry.
+     */
+    private void compact() {
+        boolean wasBatching = batching;
+        pending.reset();
+        records = 0;
+        batching = true;
+        for (Map.Entry<String, String> entry : stagedFiles.entrySet()) {
+            log(STAGE_FILE, entry.getKey(), entry.getValue());
+        }
+        for (String fileName : removedFiles) {
+            log(MARK_REMOVED, fileName, null);
+        }
+        batching = wasBatching;
+        ByteArrayOutputStream journal = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(journal)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            pending.writeTo(out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        pending.reset();
+        Journal.write(file, journal.toByteArray());
+        stamp = new FileStamp(file);
+    }
+
+    /** read
+     * Replays a journal. A last record that was cut short is ignored, and
+     * the journal is compacted so that later records do not follow it.
+     *
+     * @param journal the contents of the stage file
+     * @return the stage area the journal describes
+     */
+    private static StageArea read(byte[] journal) {
+        Map<String, String> staged = new HashMap<>();
+        Set<String> removed = new HashSet<>();
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(journal))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IllegalArgumentException("corrupt stage file");
+            }
+            byte[] id = new byte[ID_BYTES];
+            for (int op = in.read(); op >= 0; op = in.read()) {
+                String fileName = in.readUTF();
+                switch (op) {
+                    case STAGE_FILE:
+                        in.readFully(id);
+                        staged.put(fileName, toHex(id, 0, ID_BYTES));
+                        break;
+                    case UNSTAGE_FILE:
+                        staged.remove(fileName);
+                        break;
+                    case MARK_REMOVED:
+                        removed.add(fileName);
+                        break;
+                    case UNMARK_REMOVED:
+                        removed.remove(fileName);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("corrupt stage file");
+                }
+                count += 1;
+            }
+        } catch (EOFException excp) {
+            // An interrupted write; everything before it stands
+            StageArea stage = new StageArea(STAGE, staged, removed, count);
+            stage.compact();
+            return stage;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return new StageArea(STAGE, staged, removed, count);
+    }
+
+    /** write
+     * Writes a journal holding the given entries, for converting stage
+     * files from older versions of Gitlet.
+     *
+     * @param stageFile the stage file to write
+     * @param stagedFiles the staged file names and blob ids
+     * @param removedFiles the file names marked for removal
+     */
+    static void write(File stageFile, Map<String, String> stagedFiles,
+                      Set<String> removedFiles) {
+        new StageArea(stageFile, new HashMap<>(stagedFiles), new HashSet<>(removedFiles), 0)
+                .compact();
     }
 
     @Override
     public boolean dump() {
         System.out.println("Stage Area: ");
-        for (Map.Entry<String, Blob> entry : stagedFiles.entrySet()) {
+        for (Map.Entry<String, String> entry : stagedFiles.entrySet()) {
             System.out.println("File Name: " + entry.getKey());
-            entry.getValue().dump();
+            System.out.println("Blob ID: " + entry.getValue());
         }
         return false;
     }
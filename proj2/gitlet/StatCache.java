@@ -0,0 +1,208 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/** Remembers the blob id of each working file along with the size and
+ *  modification time the file had when it was hashed.
+ *
+ *  As long as a file's size and modification time are unchanged, its id is
+ *  taken from here instead of reading and hashing the whole file, so status
+ *  costs about one stat per tracked file. A file modified shortly before
+ *  it was hashed could have been changed again within the same timestamp
+ *  tick, so each entry keeps the time it was hashed at, and such "racy"
+ *  entries are rehashed until a hash taken well after the modification
+ *  vouches for them. The cache is kept in .gitlet/index, laid out as
+ *
+ *      MAGIC VERSION COUNT { NAME SIZE MODIFIED HASHED ID }[COUNT]
+ *
+ *  with each NAME in modified UTF-8 prefixed by its length, 8-byte sizes
+ *  and times, and raw 20-byte ids. It is only an optimization: losing it,
+ *  or finding it in an older format, just means rehashing everything once.
+ *  Files may be looked up from several threads at once.
+ *
+ *  @author Kunhua Huang
+ */
+public class StatCache {
+    private static final File INDEX = join(Repository.GITLET_DIR, "index");
+    /** "STAT" */
+    private static final int MAGIC = 0x53544154;
+    private static final int VERSION = 2;
+    private static final int ID_BYTES = UID_LENGTH / 2;
+    /** Entries modified less than this many milliseconds before they were
+     *  hashed are not trusted, to allow for coarse file system timestamps. */
+    private static final long RACY_WINDOW = 2000;
+    private static StatCache instance;
+
+    private final Map<String, Entry> entries;
+    private boolean dirty;
+    /** The stamp of the index file when it was last read or written. */
+    private FileStamp stamp;
+
+    /** The stat data and blob id of one file. */
+    private static class Entry {
+        private final long size;
+        private final long lastModified;
+        /** When the id was taken from the contents. */
+        private final long hashedAt;
+        private final String id;
+
+        Entry(long size, long lastModified, long hashedAt, String id) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hashedAt = hashedAt;
+            this.id = id;
+        }
+    }
+
+    /** Constructor for an empty cache. */
+    private StatCache() {
+        entries = new HashMap<>();
+    }
+
+    /** getInstance
+     * Returns the stat cache, reading it from the .gitlet directory on
+     * first use. A missing or unreadable cache starts out empty.
+     *
+     * @return the instance of the stat cache
+     */
+    public static StatCache getInstance() {
+        if (instance == null) {
+            instance = new StatCache();
+            if (INDEX.isFile()) {
+                instance.read(readContents(INDEX));
+            }
+            instance.stamp = new FileStamp(INDEX);
+        }
+        return instance;
+    }
+
+    /** refresh
+     * Forgets the cache if another process has changed the index file
+     * since it was read, so that it is read again on next use.
+     */
+    static void refresh() {
+        if (instance != null && !FileStamp.matches(instance.stamp, INDEX)) {
+            instance = null;
+        }
+    }
+
+    /** idOf
+     * Returns the blob id of a working file, hashing it only if its stat
+     * data changed since it was last hashed.
+     *
+     * @param fileName the name of the file
+     * @param file the file
+     * @return the blob id of the file's current contents
+     */
+    public String idOf(String fileName, File file) {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        synchronized (this) {
+            Entry entry = entries.get(fileName);
+            if (entry != null && entry.size == size && entry.lastModified == lastModified
+                    && lastModified + RACY_WINDOW < entry.hashedAt) {
+                return entry.id;
+            }
+        }
+        // Hash outside the lock, so that several files can be hashed at once
+        long hashedAt = System.currentTimeMillis();
+        String id = sha1(file);
+        synchronized (this) {
+            entries.put(fileName, new Entry(size, lastModified, hashedAt, id));
+            dirty = true;
+        }
+        return id;
+    }
+
+    /** record
+     * Records the blob id of a working file that was just written from
+     * that blob, so that it need not be hashed again.
+     *
+     * @param fileName the name of the file
+     * @param file the file
+     * @param id the blob id of the file's contents
+     */
+    public synchronized void record(String fileName, File file, String id) {
+        entries.put(fileName, new Entry(file.length(), file.lastModified(),
+                System.currentTimeMillis(), id));
+        dirty = true;
+    }
+
+    /** forget
+     * Removes the entry of a file that no longer exists.
+     *
+     * @param fileName the name of the file
+     */
+    public synchronized void forget(String fileName) {
+        dirty |= entries.remove(fileName) != null;
+    }
+
+    /** save
+     * Writes the cache to the .gitlet directory if it changed.
+     */
+    public synchronized void save() {
+        if (dirty) {
+            Journal.replace(INDEX, toBytes());
+            stamp = new FileStamp(INDEX);
+            dirty = false;
+        }
+    }
+
+    /** toBytes
+     * Returns the contents of the index file.
+     */
+    private byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().size);
+                out.writeLong(entry.getValue().lastModified);
+                out.writeLong(entry.getValue().hashedAt);
+                out.write(fromHex(entry.getValue().id));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /** read
+     * Fills the cache from the contents of an index file, leaving it empty
+     * if they are damaged or in an older format.
+     */
+    private void read(byte[] contents) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            Map<String, Entry> loaded = new HashMap<>();
+            byte[] id = new byte[ID_BYTES];
+            for (int i = 0; i < count; i += 1) {
+                String fileName = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                long hashedAt = in.readLong();
+                in.readFully(id);
+                loaded.put(fileName, new Entry(size, lastModified, hashedAt,
+                        toHex(id, 0, ID_BYTES)));
+            }
+            entries.putAll(loaded);
+        } catch (IOException excp) {
+            // Damaged; start out empty
+        }
+    }
+}
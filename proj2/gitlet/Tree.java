@@ -0,0 +1,312 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/** Represents a directory of a commit: the names in it, each with the id
+ *  of a blob or of the tree of a subdirectory.
+ *
+ *  A commit names only its root tree. Every tree is stored as an object
+ *  whose id is the SHA-1 of its stored form, so a directory that did not
+ *  change between two commits is one and the same object in both. Writing
+ *  a commit therefore only writes the trees of the directories that
+ *  changed, and comparing two commits only descends into subdirectories
+ *  whose tree ids differ.
+ *
+ *  Trees are stored as
+ *
+ *      MAGIC COUNT { KIND NAME ID }*
+ *
+ *  in order of name, where KIND is BLOB or TREE, NAME is a varint length
+ *  and UTF-8 bytes and ID is raw 20 bytes.
+ *
+ *  @author Kunhua Huang
+ */
+final class Tree {
+
+    /** "TREE" */
+    private static final int MAGIC = 0x54524545;
+    private static final int ID_BYTES = Utils.UID_LENGTH / 2;
+    /** Entry kinds. */
+    private static final int BLOB = 0;
+    private static final int TREE = 1;
+
+    /** One name in a tree. */
+    static final class Entry {
+        final boolean isTree;
+        final String id;
+
+        Entry(boolean isTree, String id) {
+            this.isTree = isTree;
+            this.id = id;
+        }
+    }
+
+    private final SortedMap<String, Entry> entries;
+    private final String id;
+
+    /** Constructor for the tree with the given entries, which it keeps. */
+    private Tree(SortedMap<String, Entry> entries) {
+        this.entries = entries;
+        this.id = Utils.sha1((Object) toBytes());
+    }
+
+    /** getId
+     * Returns the id of this tree.
+     *
+     * @return the id
+     */
+    String getId() {
+        return id;
+    }
+
+    /** getEntries
+     * Returns the entries of this tree, in order of name.
+     *
+     * @return the entries, which must not be changed
+     */
+    SortedMap<String, Entry> getEntries() {
+        return entries;
+    }
+
+    /** toBytes
+     * Returns the stored form of this tree.
+     *
+     * @return the encoded tree
+     */
+    byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(ByteBuffer.allocate(4).putInt(MAGIC).array(), 0, 4);
+        Delta.writeVarint(out, entries.size());
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            out.write(entry.getValue().isTree ? TREE : BLOB);
+            byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            Delta.writeVarint(out, name.length);
+            out.write(name, 0, name.length);
+            out.write(Utils.fromHex(entry.getValue().id), 0, ID_BYTES);
+        }
+        return out.toByteArray();
+    }
+
+    /** fromBytes
+     * Reads a tree from its stored form.
+     *
+     * @param data the stored tree
+     * @return the tree
+     */
+    static Tree fromBytes(byte[] data) {
+        if (data.length < 4 || ByteBuffer.wrap(data).getInt() != MAGIC) {
+            throw new IllegalArgumentException("not a tree");
+        }
+        try {
+            int[] pos = {4};
+            int count = (int) Delta.readVarint(data, pos);
+            SortedMap<String, Entry> entries = new TreeMap<>();
+            for (int i = 0; i < count; i += 1) {
+                boolean isTree = data[pos[0]] == TREE;
+                pos[0] += 1;
+                int length = (int) Delta.readVarint(data, pos);
+                String name = new String(data, pos[0], length, StandardCharsets.UTF_8);
+                pos[0] += length;
+                if (pos[0] + ID_BYTES > data.length) {
+                    throw new IndexOutOfBoundsException();
+                }
+                entries.put(name, new Entry(isTree, Utils.toHex(data, pos[0], ID_BYTES)));
+                pos[0] += ID_BYTES;
+            }
+            return new Tree(entries);
+        } catch (IndexOutOfBoundsException excp) {
+            throw new IllegalArgumentException("truncated tree");
+        }
+    }
+
+    /** reader
+     * Returns a function reading trees from STORE, for code that has no
+     * cache of its own.
+     *
+     * @param store the object store holding the trees
+     * @return the reader
+     */
+    static Function<String, Tree> reader(ObjectStore store) {
+        return treeId -> fromBytes(store.read(treeId, ObjectStore.TREE));
+    }
+
+    /** write
+     * Builds the trees of a commit tracking FILES, whose first parent
+     * tracked OLDFILES under the root tree OLDROOT, and hands each new
+     * tree to WRITER. Only the directories holding a path whose blob
+     * changed are built again; every other subtree is reused from the
+     * parent by id.
+     *
+     * @param files the paths and blob ids of the new commit
+     * @param oldFiles the paths and blob ids of the parent
+     * @param oldRoot the root tree of the parent, or null for none
+     * @param reader reads the trees of the parent
+     * @param writer stores each new tree
+     * @return the id of the new root tree
+     */
+    static String write(Map<String, String> files, Map<String, String> oldFiles,
+                        String oldRoot, Function<String, Tree> reader, Consumer<Tree> writer) {
+        if (oldRoot == null) {
+            oldFiles = Collections.emptyMap();
+        }
+        // The changed paths by directory, and the changed subdirectories
+        Map<String, List<String>> changedFiles = new HashMap<>();
+        Map<String, Set<String>> changedDirs = new HashMap<>();
+        Set<String> paths = new HashSet<>(files.keySet());
+        paths.addAll(oldFiles.keySet());
+        for (String path : paths) {
+            if (Objects.equals(files.get(path), oldFiles.get(path))) {
+                continue;
+            }
+            int slash = path.lastIndexOf('/');
+            String dir = path.substring(0, slash + 1);
+            changedFiles.computeIfAbsent(dir, k -> new ArrayList<>()).add(path);
+            while (slash >= 0) {
+                int parentSlash = path.lastIndexOf('/', slash - 1);
+                String parent = path.substring(0, parentSlash + 1);
+                if (!changedDirs.computeIfAbsent(parent, k -> new TreeSet<>())
+                        .add(path.substring(parentSlash + 1, slash))) {
+                    break;
+                }
+                slash = parentSlash;
+            }
+        }
+        Tree old = oldRoot == null ? null : reader.apply(oldRoot);
+        String root = build("", old, files, changedFiles, changedDirs, reader, writer);
+        if (root == null) {
+            Tree empty = new Tree(new TreeMap<>());
+            writer.accept(empty);
+            root = empty.getId();
+        }
+        return root;
+    }
+
+    /** build
+     * Builds the tree of directory DIR from its old tree OLD, or returns
+     * OLD's id if nothing in it changed. Returns null if the directory
+     * ends up empty.
+     */
+    private static String build(String dir, Tree old, Map<String, String> files,
+                                Map<String, List<String>> changedFiles,
+                                Map<String, Set<String>> changedDirs,
+                                Function<String, Tree> reader, Consumer<Tree> writer) {
+        if (old != null && !changedFiles.containsKey(dir) && !changedDirs.containsKey(dir)) {
+            return old.getId();
+        }
+        SortedMap<String, Entry> entries = old == null ? new TreeMap<>()
+                : new TreeMap<>(old.entries);
+        // Subdirectories first, so that a file replacing a directory or a
+        // directory replacing a file ends up as what FILES says
+        for (String name : changedDirs.getOrDefault(dir, Collections.emptySet())) {
+            Entry entry = entries.get(name);
+            Tree oldSub = entry != null && entry.isTree ? reader.apply(entry.id) : null;
+            String subId = build(dir + name + "/", oldSub, files, changedFiles, changedDirs,
+                    reader, writer);
+            if (subId != null) {
+                entries.put(name, new Entry(true, subId));
+            } else if (entry != null && entry.isTree) {
+                entries.remove(name);
+            }
+        }
+        for (String path : changedFiles.getOrDefault(dir, Collections.emptyList())) {
+            String name = path.substring(dir.length());
+            String blobId = files.get(path);
+            if (blobId != null) {
+                entries.put(name, new Entry(false, blobId));
+            } else if (entries.containsKey(name) && !entries.get(name).isTree) {
+                entries.remove(name);
+            }
+        }
+        if (entries.isEmpty()) {
+            return null;
+        }
+        Tree tree = new Tree(entries);
+        writer.accept(tree);
+        return tree.getId();
+    }
+
+    /** flatten
+     * Adds every file under the tree TREEID to FILES, by path.
+     *
+     * @param treeId the id of the tree
+     * @param prefix the path of the tree's directory, ending in '/', or ""
+     * @param reader reads trees
+     * @param files the paths and blob ids found so far
+     */
+    static void flatten(String treeId, String prefix, Function<String, Tree> reader,
+                        Map<String, String> files) {
+        for (Map.Entry<String, Entry> entry : reader.apply(treeId).entries.entrySet()) {
+            if (entry.getValue().isTree) {
+                flatten(entry.getValue().id, prefix + entry.getKey() + "/", reader, files);
+            } else {
+                files.put(prefix + entry.getKey(), entry.getValue().id);
+            }
+        }
+    }
+
+    /** find
+     * Returns the id of what the tree TREEID holds at PATH: a blob for a
+     * file, a tree for a directory. Only the trees along the path are read.
+     *
+     * @param treeId the id of the root tree
+     * @param path the path of a file or directory, without a trailing '/'
+     * @param reader reads trees
+     * @return the id of the blob or tree, or null if there is none
+     */
+    static String find(String treeId, String path, Function<String, Tree> reader) {
+        String[] names = path.split("/");
+        String id = treeId;
+        for (int i = 0; i < names.length; i += 1) {
+            Entry entry = reader.apply(id).entries.get(names[i]);
+            if (entry == null || (!entry.isTree && i < names.length - 1)) {
+                return null;
+            }
+            id = entry.id;
+        }
+        return id;
+    }
+
+    /** diff
+     * Adds to PATHS every path whose blob differs between the trees A and
+     * B, skipping every subdirectory whose tree is the same in both.
+     *
+     * @param a the id of one tree, or null for none
+     * @param b the id of the other tree, or null for none
+     * @param prefix the path of the trees' directory, ending in '/', or ""
+     * @param reader reads trees
+     * @param paths the differing paths found so far
+     */
+    static void diff(String a, String b, String prefix, Function<String, Tree> reader,
+                     Set<String> paths) {
+        if (Objects.equals(a, b)) {
+            return;
+        }
+        SortedMap<String, Entry> left = a == null ? Collections.emptySortedMap()
+                : reader.apply(a).entries;
+        SortedMap<String, Entry> right = b == null ? Collections.emptySortedMap()
+                : reader.apply(b).entries;
+        Set<String> names = new TreeSet<>(left.keySet());
+        names.addAll(right.keySet());
+        for (String name : names) {
+            Entry x = left.get(name);
+            Entry y = right.get(name);
+            if (x != null && y != null && x.isTree == y.isTree && x.id.equals(y.id)) {
+                continue;
+            }
+            String path = prefix + name;
+            if ((x != null && !x.isTree) || (y != null && !y.isTree)) {
+                paths.add(path);
+            }
+            String subA = x != null && x.isTree ? x.id : null;
+            String subB = y != null && y.isTree ? y.id : null;
+            if (subA != null || subB != null) {
+                diff(subA, subB, path + "/", reader, paths);
+            }
+        }
+    }
+}
@@ -1,21 +1,30 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Formatter;
+import java.util.Collections;
 import java.util.List;
 
 
@@ -47,11 +56,7 @@ class Utils {
                     throw new IllegalArgumentException("improper type to sha1");
                 }
             }
-            Formatter result = new Formatter();
-            for (byte b : md.digest()) {
-                result.format("%02x", b);
-            }
-            return result.toString();
+            return toHex(md.digest(), 0, UID_LENGTH / 2);
         } catch (NoSuchAlgorithmException excp) {
             throw new IllegalArgumentException("System does not support SHA-1");
         }
@@ -63,6 +68,116 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /** The size of the buffers that file contents are streamed through. */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    /** Returns the SHA-1 hash of the contents of FILE, as sha1 would
+     *  return for readContents(FILE). The file is read through a buffer of
+     *  BUFFER_SIZE bytes, so files of any size can be hashed. */
+    static String sha1(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+            while (channel.read(buf) >= 0) {
+                buf.flip();
+                md.update(buf);
+                buf.clear();
+            }
+            return toHex(md.digest(), 0, UID_LENGTH / 2);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /** Writes everything IN holds to FILE, creating or replacing it,
+     *  BUFFER_SIZE bytes at a time. Closes IN. The bytes go to the file
+     *  by transferFrom, which moves them through the channel's own native
+     *  buffer rather than a new heap buffer per file. */
+    static void copyToFile(InputStream in, File file) {
+        try (ReadableByteChannel source = Channels.newChannel(in);
+             FileChannel target = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            for (long n = target.transferFrom(source, position, BUFFER_SIZE); n > 0;
+                 n = target.transferFrom(source, position, BUFFER_SIZE)) {
+                position += n;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns a stream over the contents of FILE, read through a
+     *  channel. */
+    static InputStream openContents(File file) {
+        try {
+            return Channels.newInputStream(
+                    FileChannel.open(file.toPath(), StandardOpenOption.READ));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the contents of FILE mapped into memory, read-only, so
+     *  that an index is decoded straight from the page cache instead of
+     *  from a copy on the heap. FILE must be a normal file smaller than
+     *  2 GiB. */
+    static MappedByteBuffer mapContents(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** The lower-case hexadecimal digits, by value. */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** The value of each hexadecimal digit, by character, or -1. */
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 16; i += 1) {
+            HEX_VALUES[HEX_DIGITS[i]] = (byte) i;
+            HEX_VALUES[Character.toUpperCase(HEX_DIGITS[i])] = (byte) i;
+        }
+    }
+
+    /** Returns the hexadecimal numeral for LENGTH bytes of BYTES starting
+     *  at OFFSET, two lower-case digits per byte. */
+    static String toHex(byte[] bytes, int offset, int length) {
+        char[] hex = new char[2 * length];
+        for (int i = 0; i < length; i += 1) {
+            int b = bytes[offset + i] & 0xff;
+            hex[2 * i] = HEX_DIGITS[b >>> 4];
+            hex[2 * i + 1] = HEX_DIGITS[b & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /** Returns the bytes denoted by the hexadecimal numeral HEX, which must
+     *  have an even number of digits.  Throws IllegalArgumentException if
+     *  HEX has any other character. */
+    static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i += 1) {
+            bytes[i] = (byte) (hexValue(hex.charAt(2 * i)) << 4 | hexValue(hex.charAt(2 * i + 1)));
+        }
+        return bytes;
+    }
+
+    /** Returns the value of the hexadecimal digit C. */
+    private static int hexValue(char c) {
+        int value = c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+        if (value < 0) {
+            throw new IllegalArgumentException("not a hexadecimal digit: " + c);
+        }
+        return value;
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -88,6 +203,29 @@ class Utils {
         return restrictedDelete(new File(file));
     }
 
+    /** Deletes the plain file at PATH, a '/'-separated path relative to the
+     *  working directory WORKDIR, if it exists, and then each directory
+     *  above it that this leaves empty, up to WORKDIR.  Returns true if the
+     *  file was deleted, and false otherwise.  Refuses to delete anything
+     *  and throws IllegalArgumentException unless WORKDIR contains a
+     *  directory named .gitlet. */
+    static boolean restrictedDelete(File workDir, String path) {
+        if (!(new File(workDir, ".gitlet")).isDirectory()) {
+            throw new IllegalArgumentException("not .gitlet working directory");
+        }
+        File file = new File(workDir, path);
+        if (file.isDirectory() || !file.delete()) {
+            return false;
+        }
+        for (int slash = path.lastIndexOf('/'); slash > 0;
+             slash = path.lastIndexOf('/', slash - 1)) {
+            if (!new File(workDir, path.substring(0, slash)).delete()) {
+                break;
+            }
+        }
+        return true;
+    }
+
     /* READING AND WRITING FILE CONTENTS */
 
     /** Return the entire contents of FILE as a byte array.  FILE must
@@ -188,6 +326,36 @@ class Utils {
         return plainFilenamesIn(new File(dir));
     }
 
+    /** Returns the '/'-separated paths, relative to DIR, of all plain files
+     *  in DIR and its subdirectories, leaving out any directory named
+     *  .gitlet, in lexicographic order as Java Strings.  Returns null if
+     *  DIR does not denote a directory. */
+    static List<String> plainFilenamesUnder(File dir) {
+        if (!dir.isDirectory()) {
+            return null;
+        }
+        List<String> paths = new ArrayList<>();
+        addPlainFilenames(dir, "", paths);
+        Collections.sort(paths);
+        return paths;
+    }
+
+    /** Adds to PATHS the path, starting with PREFIX, of every plain file
+     *  under DIR outside of .gitlet directories. */
+    private static void addPlainFilenames(File dir, String prefix, List<String> paths) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isFile()) {
+                paths.add(prefix + file.getName());
+            } else if (file.isDirectory() && !file.getName().equals(".gitlet")) {
+                addPlainFilenames(file, prefix + file.getName() + "/", paths);
+            }
+        }
+    }
+
     /* OTHER FILE UTILITIES */
 
     /** Return the concatentation of FIRST and OTHERS into a File designator,
@@ -220,6 +388,23 @@ class Utils {
         }
     }
 
+    /** Return an object of type T read from the serialized BYTES, casting it
+     *  to EXPECTEDCLASS.  Throws IllegalArgumentException in case of
+     *  problems. */
+    static <T extends Serializable> T deserialize(byte[] bytes,
+                                                  Class<T> expectedClass) {
+        try {
+            ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+            T result = expectedClass.cast(in.readObject());
+            in.close();
+            return result;
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
 
 
     /* MESSAGES AND ERROR REPORTING */